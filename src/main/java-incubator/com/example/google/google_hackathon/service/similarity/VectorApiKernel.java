@@ -0,0 +1,61 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.FloatVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * JDK Vector API による SIMD 版の内積。
+ * 起動時に --add-modules jdk.incubator.vector が指定されている場合だけ VectorKernel.select から読み込まれる。
+ * incubator モジュールを使うのはこのクラスだけなので、src/main/java-incubator に分けて別にコンパイルする（pom.xml）。
+ */
+final class VectorApiKernel implements VectorKernel {
+
+    private static final VectorSpecies<Float> FLOATS = FloatVector.SPECIES_PREFERRED;
+    // float と同じレーン数の byte species（8レーンなら 64bit）
+    private static final VectorSpecies<Byte> BYTES = VectorSpecies.of(byte.class,
+            VectorShape.forBitSize(FLOATS.length() * Byte.SIZE));
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        FloatVector acc = FloatVector.zero(FLOATS);
+        int i = 0;
+        int upper = FLOATS.loopBound(length);
+        for (; i < upper; i += FLOATS.length()) {
+            FloatVector va = FloatVector.fromArray(FLOATS, a, aOffset + i);
+            FloatVector vb = FloatVector.fromArray(FLOATS, b, bOffset + i);
+            acc = va.fma(vb, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += a[aOffset + i] * b[bOffset + i];
+        }
+        return sum;
+    }
+
+    @Override
+    public float dotCodes(float[] query, byte[] codes, int codesOffset, int length) {
+        FloatVector acc = FloatVector.zero(FLOATS);
+        int i = 0;
+        int upper = FLOATS.loopBound(length);
+        for (; i < upper; i += FLOATS.length()) {
+            FloatVector vq = FloatVector.fromArray(FLOATS, query, i);
+            FloatVector vc = ((FloatVector) ByteVector.fromArray(BYTES, codes, codesOffset + i)
+                    .convertShape(VectorOperators.B2F, FLOATS, 0))
+                    .add(128f);
+            acc = vq.fma(vc, acc);
+        }
+        float sum = acc.reduceLanes(VectorOperators.ADD);
+        for (; i < length; i++) {
+            sum += query[i] * (codes[codesOffset + i] + 128);
+        }
+        return sum;
+    }
+
+    @Override
+    public String name() {
+        return "vector-api";
+    }
+}
@@ -107,6 +107,9 @@ public class SecurityConfig {
                         .requestMatchers("/api/roadmap/generate").permitAll()
                         
 
+                        // 管理用API（埋め込みの再索引付け・作り直しなど）は AppUser.role が ADMIN のユーザーだけ
+                        .requestMatchers("/api/admin/**").hasRole("ADMIN")
+
                         // Google Calendar API 連携のエンドポイントは認証が必要
                         // ここでアプリケーション独自のJWT認証を要求する
                         .requestMatchers("/api/calendar/**").authenticated()
@@ -0,0 +1,50 @@
+package com.example.google.google_hackathon.config;
+
+import com.example.google.google_hackathon.service.FirestoreService;
+import com.example.google.google_hackathon.service.similarity.store.FirestoreVectorStore;
+import com.example.google.google_hackathon.service.similarity.store.InMemoryVectorStore;
+import com.example.google.google_hackathon.service.similarity.store.MappedFileVectorStore;
+import com.example.google.google_hackathon.service.similarity.store.VectorStore;
+import com.google.cloud.firestore.Firestore;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import java.io.IOException;
+import java.nio.file.Path;
+
+@Configuration
+public class VectorStoreConfig {
+
+    private static final Logger logger = LoggerFactory.getLogger(VectorStoreConfig.class);
+
+    // firestore: chat_embeddings / memory: プロセス内のみ / mmap: ローカルファイル
+    @Bean
+    public VectorStore vectorStore(@Value("${similarity.vector-store:firestore}") String type,
+            @Value("${similarity.vector-store.mmap.dir:./data/vectors}") String mmapDir,
+            @Value("${similarity.index.storage:float32}") String storage,
+            @Value("${similarity.vector-store.mmap.flush-interval-ms:5000}") long flushIntervalMillis,
+            @Value("${similarity.vector-store.mmap.tail-max-rows:1000}") int tailMaxRows,
+            @Value("${similarity.vector-store.mmap.compaction-segments:8}") int compactionSegments,
+            @Value("${similarity.vector-store.mmap.compaction-size-ratio:2.0}") double compactionSizeRatio,
+            @Value("${similarity.vector-store.mmap.sync:always}") String sync,
+            Firestore firestore, FirestoreService firestoreService) throws IOException {
+        VectorStore store;
+        switch (type.toLowerCase()) {
+            case "memory":
+                store = new InMemoryVectorStore();
+                break;
+            case "mmap":
+                // セグメントの行は常駐インデックスと同じ形式で持つ
+                store = new MappedFileVectorStore(Path.of(mmapDir), "int8".equalsIgnoreCase(storage),
+                        flushIntervalMillis, tailMaxRows, compactionSegments, compactionSizeRatio, !"interval".equalsIgnoreCase(sync));
+                break;
+            default:
+                store = new FirestoreVectorStore(firestore, firestoreService);
+                break;
+        }
+        logger.info("VectorStore: {}", store.name());
+        return store;
+    }
+}
@@ -0,0 +1,156 @@
+package com.example.google.google_hackathon.controller;
+
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+
+import com.example.google.google_hackathon.entity.EmbeddingBackfillJobEntity;
+import com.example.google.google_hackathon.entity.EmbeddingOutboxEntity;
+import com.example.google.google_hackathon.service.VertexAIService;
+import com.example.google.google_hackathon.service.similarity.EmbeddingBackfillJob;
+import com.example.google.google_hackathon.service.similarity.EmbeddingRecallEvaluator;
+import com.example.google.google_hackathon.service.similarity.EmbeddingOutboxService;
+import com.example.google.google_hackathon.service.similarity.LegacyEmbeddingMigration;
+import com.example.google.google_hackathon.service.similarity.store.VectorStore;
+
+// チャット埋め込みの索引付けを運用するための管理用API（SecurityConfig で ADMIN のユーザーに限る）
+@RestController
+@RequestMapping("/api/admin/embeddings")
+public class EmbeddingAdminController {
+
+    @Autowired
+    private EmbeddingOutboxService embeddingOutboxService;
+
+    @Autowired
+    private VectorStore vectorStore;
+
+    @Autowired
+    private VertexAIService vertexAIService;
+
+    @Autowired
+    private EmbeddingRecallEvaluator embeddingRecallEvaluator;
+
+    @Autowired
+    private EmbeddingBackfillJob embeddingBackfillJob;
+
+    @Autowired
+    private LegacyEmbeddingMigration legacyEmbeddingMigration;
+
+    // embedding_outbox の状態ごとの件数
+    @GetMapping("/outbox")
+    public ResponseEntity<Map<String, Object>> getOutboxStatus() {
+        Map<String, Object> response = new HashMap<>();
+        response.put("pending", embeddingOutboxService.countByStatus(EmbeddingOutboxEntity.STATUS_PENDING));
+        response.put("done", embeddingOutboxService.countByStatus(EmbeddingOutboxEntity.STATUS_DONE));
+        response.put("failed", embeddingOutboxService.countByStatus(EmbeddingOutboxEntity.STATUS_FAILED));
+        return ResponseEntity.ok(response);
+    }
+
+    // 指定期間のチャットメッセージを再索引付けする（例: ?from=2025-06-01T00:00:00&to=2025-07-01T00:00:00）
+    @PostMapping("/outbox/replay")
+    public ResponseEntity<Map<String, Object>> replay(
+            @RequestParam("from") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam("to") @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
+        if (!from.isBefore(to)) {
+            return ResponseEntity.badRequest().body(Map.of("error", "from は to より前を指定してください"));
+        }
+        int enqueued = embeddingOutboxService.replay(from, to);
+        return ResponseEntity.status(HttpStatus.ACCEPTED).body(Map.of("enqueued", enqueued));
+    }
+
+    // 自動採番IDの古い chat_embeddings をメッセージIDのドキュメントへ移す（同じメッセージが二重に検索されないように）
+    @PostMapping("/migrate-legacy")
+    public ResponseEntity<Map<String, Object>> migrateLegacy() throws Exception {
+        LegacyEmbeddingMigration.Result result = legacyEmbeddingMigration.migrate();
+        return ResponseEntity.ok(Map.of("scanned", result.scanned(), "rekeyed", result.rekeyed(),
+                "removed", result.removed(), "unmatched", result.unmatched()));
+    }
+
+    // VectorStore を空にして、chat_messages の全件を埋め込みジョブ（mode=missing）で作り直す（mmap / memory のみ）。
+    // 進捗は GET /backfill で確認でき、止めても resume で続きから再開できる
+    @PostMapping("/store/rebuild")
+    public ResponseEntity<Map<String, Object>> rebuildStore() throws Exception {
+        if (!vectorStore.supportsClear()) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", "この VectorStore は作り直せません: " + vectorStore.name()));
+        }
+        try {
+            EmbeddingBackfillJobEntity job = embeddingBackfillJob.rebuild();
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(Map.of("store", vectorStore.name(),
+                    "id", job.getId(), "mode", job.getMode(), "maxMessageId", job.getMaxMessageId()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    // similarity.embedding.output-dimensionality を変えたあと、全メッセージを今の設定で埋め込み直す（mode=all の埋め込みジョブ）。
+    // ドキュメントIDはメッセージIDなので既存のベクトルは上書きされ、終わるまでの間は古い次元数のベクトルが検索から外れる
+    @PostMapping("/reembed")
+    public ResponseEntity<Map<String, Object>> reembed() {
+        // 埋め込み直したベクトルは常駐インデックスの行も置き換えるので、インデックスは破棄しない
+        return startBackfill(EmbeddingBackfillJobEntity.MODE_ALL);
+    }
+
+    // chat_messages を主キー順に読んで埋め込むジョブを始める（mode=missing: 埋め込みの無いものだけ / all: すべて）
+    @PostMapping("/backfill")
+    public ResponseEntity<Map<String, Object>> startBackfill(
+            @RequestParam(value = "mode", defaultValue = EmbeddingBackfillJobEntity.MODE_MISSING) String mode) {
+        try {
+            EmbeddingBackfillJobEntity job = embeddingBackfillJob.start(mode);
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(Map.of("id", job.getId(), "mode", job.getMode(),
+                    "model", VertexAIService.MODEL_ID, "dimension", vertexAIService.outputDimension(),
+                    "maxMessageId", job.getMaxMessageId()));
+        } catch (IllegalArgumentException e) {
+            return ResponseEntity.badRequest().body(Map.of("error", e.getMessage()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    // 止めた（または落ちて止まった）埋め込みジョブを続きから再開する
+    @PostMapping("/backfill/resume")
+    public ResponseEntity<Map<String, Object>> resumeBackfill() {
+        try {
+            EmbeddingBackfillJobEntity job = embeddingBackfillJob.resume();
+            return ResponseEntity.status(HttpStatus.ACCEPTED).body(Map.of("id", job.getId(), "mode", job.getMode(),
+                    "lastMessageId", job.getLastMessageId()));
+        } catch (IllegalStateException e) {
+            return ResponseEntity.status(HttpStatus.CONFLICT).body(Map.of("error", e.getMessage()));
+        }
+    }
+
+    // 実行中の埋め込みジョブを、今の chunk を書き終えたところで止める
+    @PostMapping("/backfill/stop")
+    public ResponseEntity<Map<String, Object>> stopBackfill() {
+        return ResponseEntity.ok(Map.of("stopping", embeddingBackfillJob.stop()));
+    }
+
+    // 直近の埋め込みジョブの進捗と処理速度
+    @GetMapping("/backfill")
+    public ResponseEntity<Map<String, Object>> getBackfillStatus() {
+        return ResponseEntity.ok(embeddingBackfillJob.status());
+    }
+
+    // 次元数を縮めたときの recall@K（例: ?roomId=room1&dims=256,768,1536&topK=5&samples=100）
+    @GetMapping("/recall")
+    public ResponseEntity<Map<String, Object>> recall(@RequestParam("roomId") String roomId,
+            @RequestParam(value = "dims", defaultValue = "256,768,1536") String dims,
+            @RequestParam(value = "topK", defaultValue = "5") int topK,
+            @RequestParam(value = "samples", defaultValue = "100") int samples) throws Exception {
+        List<Integer> dimensions = Arrays.stream(dims.split(","))
+                .map(String::trim)
+                .filter(d -> !d.isEmpty())
+                .map(Integer::valueOf)
+                .collect(Collectors.toList());
+        return ResponseEntity.ok(embeddingRecallEvaluator.evaluate(roomId, dimensions, topK, samples));
+    }
+}
@@ -1,18 +1,31 @@
 package com.example.google.google_hackathon.controller;
 
 import com.example.google.google_hackathon.dto.QuestionRequest;
+import com.example.google.google_hackathon.dto.RoomSimilarMessageDTO;
 import com.example.google.google_hackathon.dto.SimilarMessageDTO;
 import com.example.google.google_hackathon.service.GeminiService;
 import com.example.google.google_hackathon.service.SimilarityService;
 import com.example.google.google_hackathon.service.SimilarityService.SimilarMessage;
+import com.example.google.google_hackathon.service.VertexAIService;
+import com.example.google.google_hackathon.service.similarity.CrossRoomSearch;
+import com.example.google.google_hackathon.service.similarity.SearchFilter;
+import com.example.google.google_hackathon.service.similarity.SearchTimings;
+import com.example.google.google_hackathon.service.similarity.SearchWindow;
+import com.example.google.google_hackathon.service.similarity.SemanticAnswerCache;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeParseException;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.stream.Collectors;
 
 @RestController
@@ -25,11 +38,56 @@ public class QuestionController {
     @Autowired
     private GeminiService geminiService;
 
+    @Autowired
+    private VertexAIService vertexAIService;
+
+    @Autowired
+    private SemanticAnswerCache answerCache;
+
     @PostMapping("/ask")
 public ResponseEntity<Map<String, Object>> askQuestion(@RequestBody QuestionRequest request) {
     try {
         String roomId = request.getRoomId();
-        List<SimilarMessage> topMessages = similarityService.findSimilarMessages(request.getQuestion(), roomId,5);//似た過去のメッセージを取得
+        SearchWindow window = searchWindow(request);
+        SearchFilter filter;
+        try {
+            filter = searchFilter(request);
+        } catch (DateTimeParseException e) {
+            return ResponseEntity.badRequest()
+                    .body(Map.of("error", "from / to は 2025-06-01 または 2025-06-01T09:00:00 の形式で指定してください"));
+        }
+        // 段階ごとの所要時間（レスポンスの timings に入れる）
+        SearchTimings timings = new SearchTimings();
+
+        // キーワードの質問が n-gram 検索だけで答えられるなら、埋め込みを作らない（回答キャッシュも引かない）
+        List<SimilarMessage> keywordMessages = answerCache.isEnabled() && filter.isEmpty()
+                ? similarityService.findByKeyword(request.getQuestion(), roomId, 5, window, filter, timings)
+                : null;
+
+        // 同じルームで似た質問に答えたばかりで、その後メッセージが増えていなければ前回の回答を返す
+        // （質問の埋め込みは EmbeddingCache に入るので、この後の検索で作り直すことはない）
+        List<Double> questionEmbedding = null;
+        long roomVersion = 0;
+        // 絞り込みがある質問は回答キャッシュを使わない（キャッシュは期間の指定だけで区別している）
+        if (keywordMessages == null && answerCache.isEnabled() && filter.isEmpty()) {
+            // キャッシュに無かったときに備えて、埋め込みを待つ間に常駐インデックスを読み込み始める
+            similarityService.prefetch(roomId);
+            roomVersion = answerCache.roomVersion(roomId);
+            questionEmbedding = timings.time("answerCache", () -> vertexAIService.generateEmbedding(request.getQuestion()));
+            SemanticAnswerCache.CachedAnswer cached = answerCache.lookup(roomId, window, questionEmbedding);
+            if (cached != null) {
+                Map<String, Object> response = new HashMap<>();
+                response.put("answer", cached.answer());
+                response.put("similarMessages", cached.similarMessages());
+                response.put("cached", true);
+                response.put("timings", timings.toMap());
+                return ResponseEntity.ok(response);
+            }
+        }
+
+        List<SimilarMessage> topMessages = keywordMessages != null ? keywordMessages
+                : similarityService.findSimilarMessages(request.getQuestion(), roomId,5,
+                window, filter, timings);//似た過去のメッセージを取得
         // List<String> messages = topMessages.stream()
         //         .map(SimilarMessage::getMessage)
         //         .collect(Collectors.toList());
@@ -38,11 +96,15 @@ List<SimilarMessageDTO> similarDtos = topMessages.stream()
     .map(SimilarMessageDTO::from)
     .collect(Collectors.toList());
 
-String answer = geminiService.generateAnswer(request.getQuestion(),similarDtos);
+String answer = timings.time("generate", () -> geminiService.generateAnswer(request.getQuestion(),similarDtos));
+if (questionEmbedding != null && geminiService.isAnswer(answer)) {
+    answerCache.put(roomId, roomVersion, window, questionEmbedding, answer, similarDtos);
+}
 
 Map<String, Object> response = new HashMap<>();
 response.put("answer", answer);
 response.put("similarMessages", similarDtos);
+response.put("timings", timings.toMap());
 
 return ResponseEntity.ok(response);
 
@@ -50,7 +112,83 @@ return ResponseEntity.ok(response);
         return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                 .body(Map.of("error", "エラーが発生しました: " + e.getMessage()));
     }
-}}
+}
+
+    // すべてのルーム（roomIndex を指定したらその部分木）をまたいで類似メッセージを探す（回答は生成しない）
+    // 期限までに検索し終わらなかったルームがあれば partial を true にし、そのルームを timedOutRooms / failedRooms に入れる
+    @PostMapping("/search")
+    public ResponseEntity<Map<String, Object>> searchAllRooms(@RequestBody QuestionRequest request,
+            @RequestParam(defaultValue = "10") int topK) {
+        if (request.getQuestion() == null || request.getQuestion().isBlank()) {
+            return ResponseEntity.badRequest().body(Map.of("error", "question を指定してください"));
+        }
+        try {
+            SearchFilter filter;
+            try {
+                filter = searchFilter(request);
+            } catch (DateTimeParseException e) {
+                return ResponseEntity.badRequest()
+                        .body(Map.of("error", "from / to は 2025-06-01 または 2025-06-01T09:00:00 の形式で指定してください"));
+            }
+            SearchTimings timings = new SearchTimings();
+            CrossRoomSearch.Result result = similarityService.searchAllRooms(request.getQuestion(),
+                    Math.max(1, Math.min(topK, 100)), searchWindow(request), filter, timings);
+
+            Map<String, Object> response = new HashMap<>();
+            response.put("similarMessages", result.hits().stream()
+                    .map(RoomSimilarMessageDTO::from)
+                    .collect(Collectors.toList()));
+            response.put("partial", result.partial());
+            response.put("rooms", result.shards());
+            response.put("timedOutRooms", result.timedOutRooms());
+            response.put("failedRooms", result.failedRooms());
+            response.put("timings", timings.toMap());
+            return ResponseEntity.ok(response);
+        } catch (Exception e) {
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                    .body(Map.of("error", "エラーが発生しました: " + e.getMessage()));
+        }
+    }
+
+    // 送信者・期間・Room.index の絞り込み（日時は UTC として扱う。to は日付だけならその日の終わりまで含む）
+    private SearchFilter searchFilter(QuestionRequest request) {
+        Set<String> senders = new HashSet<>();
+        if (request.getSenders() != null) {
+            for (String sender : request.getSenders()) {
+                if (sender != null && !sender.isBlank()) {
+                    senders.add(sender.trim());
+                }
+            }
+        }
+        Long from = request.getFrom() != null && !request.getFrom().isBlank() ? toEpochMillis(request.getFrom(), false) : null;
+        Long to = request.getTo() != null && !request.getTo().isBlank() ? toEpochMillis(request.getTo(), true) : null;
+        String roomIndex = request.getRoomIndex() != null && !request.getRoomIndex().isBlank()
+                ? request.getRoomIndex().trim()
+                : null;
+        return new SearchFilter(senders, from, to, roomIndex);
+    }
+
+    private static long toEpochMillis(String value, boolean endOfDay) {
+        String text = value.trim();
+        if (text.length() == 10) {
+            LocalDate date = LocalDate.parse(text);
+            return (endOfDay ? date.plusDays(1) : date).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+        }
+        return LocalDateTime.parse(text).toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    // リクエストで期間の指定があればそれを、無ければ設定の既定値を使う
+    private SearchWindow searchWindow(QuestionRequest request) {
+        SearchWindow defaults = similarityService.defaultWindow();
+        if (request.getTimeWindow() == null && request.getLookbackMonths() == null) {
+            return defaults;
+        }
+        String mode = request.getTimeWindow() != null ? request.getTimeWindow()
+                : (defaults.recentFirst() ? "recent" : "full");
+        int lookback = request.getLookbackMonths() != null ? request.getLookbackMonths() : defaults.lookbackMonths();
+        return SearchWindow.of(mode, lookback);
+    }
+}
 
 
        
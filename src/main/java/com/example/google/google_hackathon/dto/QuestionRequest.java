@@ -1,8 +1,21 @@
 package com.example.google.google_hackathon.dto;
 
+import java.util.List;
+
 public class QuestionRequest {
     private String question;
     private String roomId;
+    // 任意: "full" / "recent"（未指定なら設定の similarity.time-window.mode）
+    private String timeWindow;
+    // 任意: recent のとき遡る月数（未指定なら設定の similarity.time-window.lookback-months）
+    private Integer lookbackMonths;
+    // 任意: 絞り込み。送信者（いずれかに一致）
+    private List<String> senders;
+    // 任意: 期間（"2025-06-01" または "2025-06-01T09:00:00"、UTC）。from は含み、to は日付だけならその日の終わりまで含む
+    private String from;
+    private String to;
+    // 任意: Room.index（例: "2-1"）。そのルームと子孫のルームのメッセージに絞る
+    private String roomIndex;
 
     
     public String getQuestion() { return question; }
@@ -11,4 +24,22 @@ public class QuestionRequest {
     public String getRoomId() { return roomId; }
     public void setRoomId(String roomId) { this.roomId = roomId; }
 
+    public String getTimeWindow() { return timeWindow; }
+    public void setTimeWindow(String timeWindow) { this.timeWindow = timeWindow; }
+
+    public Integer getLookbackMonths() { return lookbackMonths; }
+    public void setLookbackMonths(Integer lookbackMonths) { this.lookbackMonths = lookbackMonths; }
+
+    public List<String> getSenders() { return senders; }
+    public void setSenders(List<String> senders) { this.senders = senders; }
+
+    public String getFrom() { return from; }
+    public void setFrom(String from) { this.from = from; }
+
+    public String getTo() { return to; }
+    public void setTo(String to) { this.to = to; }
+
+    public String getRoomIndex() { return roomIndex; }
+    public void setRoomIndex(String roomIndex) { this.roomIndex = roomIndex; }
+
 }
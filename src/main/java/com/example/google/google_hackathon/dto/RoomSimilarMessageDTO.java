@@ -0,0 +1,13 @@
+package com.example.google.google_hackathon.dto;
+
+import java.util.Date;
+
+import com.example.google.google_hackathon.service.similarity.CrossRoomSearch.RoomHit;
+
+// ルームをまたぐ検索の結果（roomId は Room.index）
+public record RoomSimilarMessageDTO(String roomId, String message, double similarity, String sender, Date timestamp) {
+    public static RoomSimilarMessageDTO from(RoomHit roomHit) {
+        return new RoomSimilarMessageDTO(roomHit.roomId(), roomHit.hit().message(), roomHit.hit().similarity(),
+                roomHit.hit().sender(), roomHit.hit().timestamp());
+    }
+}
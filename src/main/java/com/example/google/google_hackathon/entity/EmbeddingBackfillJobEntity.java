@@ -0,0 +1,173 @@
+package com.example.google.google_hackathon.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "embedding_backfill_jobs", schema = "public")
+public class EmbeddingBackfillJobEntity {
+
+  public static final String MODE_MISSING = "missing";
+  public static final String MODE_ALL = "all";
+
+  public static final String STATUS_RUNNING = "RUNNING";
+  public static final String STATUS_PAUSED = "PAUSED";
+  public static final String STATUS_DONE = "DONE";
+  public static final String STATUS_FAILED = "FAILED";
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  private Long id;
+
+  @Column(nullable = false, length = 16)
+  private String mode; // missing: 埋め込みの無いメッセージだけ / all: すべて埋め込み直す
+
+  @Column(nullable = false, length = 16)
+  private String status;
+
+  @Column(nullable = false)
+  private long lastMessageId; // ここまで処理した chat_messages.id（再開はこの次から）
+
+  @Column(nullable = false)
+  private long maxMessageId; // 開始時点の chat_messages.id の最大値
+
+  @Column(nullable = false)
+  private long processed;
+
+  @Column(nullable = false)
+  private long embedded;
+
+  @Column(nullable = false)
+  private long skipped;
+
+  @Column(nullable = false)
+  private long failed;
+
+  @Column(columnDefinition = "TEXT")
+  private String lastError;
+
+  @Column(nullable = false)
+  private LocalDateTime startedAt;
+
+  @Column(nullable = false)
+  private LocalDateTime updatedAt;
+
+  private LocalDateTime finishedAt;
+
+  // コンストラクタ
+  public EmbeddingBackfillJobEntity() {}
+
+  public EmbeddingBackfillJobEntity(String mode, long maxMessageId, LocalDateTime startedAt) {
+    this.mode = mode;
+    this.status = STATUS_RUNNING;
+    this.lastMessageId = 0L;
+    this.maxMessageId = maxMessageId;
+    this.startedAt = startedAt;
+    this.updatedAt = startedAt;
+  }
+
+  // ゲッターとセッター
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public String getMode() {
+    return mode;
+  }
+
+  public void setMode(String mode) {
+    this.mode = mode;
+  }
+
+  public String getStatus() {
+    return status;
+  }
+
+  public void setStatus(String status) {
+    this.status = status;
+  }
+
+  public long getLastMessageId() {
+    return lastMessageId;
+  }
+
+  public void setLastMessageId(long lastMessageId) {
+    this.lastMessageId = lastMessageId;
+  }
+
+  public long getMaxMessageId() {
+    return maxMessageId;
+  }
+
+  public void setMaxMessageId(long maxMessageId) {
+    this.maxMessageId = maxMessageId;
+  }
+
+  public long getProcessed() {
+    return processed;
+  }
+
+  public void setProcessed(long processed) {
+    this.processed = processed;
+  }
+
+  public long getEmbedded() {
+    return embedded;
+  }
+
+  public void setEmbedded(long embedded) {
+    this.embedded = embedded;
+  }
+
+  public long getSkipped() {
+    return skipped;
+  }
+
+  public void setSkipped(long skipped) {
+    this.skipped = skipped;
+  }
+
+  public long getFailed() {
+    return failed;
+  }
+
+  public void setFailed(long failed) {
+    this.failed = failed;
+  }
+
+  public String getLastError() {
+    return lastError;
+  }
+
+  public void setLastError(String lastError) {
+    this.lastError = lastError;
+  }
+
+  public LocalDateTime getStartedAt() {
+    return startedAt;
+  }
+
+  public void setStartedAt(LocalDateTime startedAt) {
+    this.startedAt = startedAt;
+  }
+
+  public LocalDateTime getUpdatedAt() {
+    return updatedAt;
+  }
+
+  public void setUpdatedAt(LocalDateTime updatedAt) {
+    this.updatedAt = updatedAt;
+  }
+
+  public LocalDateTime getFinishedAt() {
+    return finishedAt;
+  }
+
+  public void setFinishedAt(LocalDateTime finishedAt) {
+    this.finishedAt = finishedAt;
+  }
+}
@@ -0,0 +1,115 @@
+package com.example.google.google_hackathon.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "embedding_outbox", schema = "public")
+public class EmbeddingOutboxEntity {
+
+  public static final String STATUS_PENDING = "PENDING";
+  public static final String STATUS_DONE = "DONE";
+  public static final String STATUS_FAILED = "FAILED";
+
+  @Id
+  @GeneratedValue(strategy = GenerationType.IDENTITY)
+  private Long id;
+
+  @Column(nullable = false)
+  private Long chatMessageId; // 索引付け対象のチャットメッセージID
+
+  @Column(nullable = false, length = 16)
+  private String status;
+
+  @Column(nullable = false)
+  private int attempts;
+
+  @Column(nullable = false)
+  private LocalDateTime nextAttemptAt; // この時刻以降にリレーが処理する
+
+  @Column(columnDefinition = "TEXT")
+  private String lastError;
+
+  @Column(nullable = false)
+  private LocalDateTime createdAt;
+
+  @Column(nullable = false)
+  private LocalDateTime updatedAt;
+
+  // コンストラクタ
+  public EmbeddingOutboxEntity() {}
+
+  public EmbeddingOutboxEntity(Long chatMessageId, LocalDateTime nextAttemptAt, LocalDateTime createdAt) {
+    this.chatMessageId = chatMessageId;
+    this.status = STATUS_PENDING;
+    this.attempts = 0;
+    this.nextAttemptAt = nextAttemptAt;
+    this.createdAt = createdAt;
+    this.updatedAt = createdAt;
+  }
+
+  // ゲッターとセッター
+  public Long getId() {
+    return id;
+  }
+
+  public void setId(Long id) {
+    this.id = id;
+  }
+
+  public Long getChatMessageId() {
+    return chatMessageId;
+  }
+
+  public void setChatMessageId(Long chatMessageId) {
+    this.chatMessageId = chatMessageId;
+  }
+
+  public String getStatus() {
+    return status;
+  }
+
+  public void setStatus(String status) {
+    this.status = status;
+  }
+
+  public int getAttempts() {
+    return attempts;
+  }
+
+  public void setAttempts(int attempts) {
+    this.attempts = attempts;
+  }
+
+  public LocalDateTime getNextAttemptAt() {
+    return nextAttemptAt;
+  }
+
+  public void setNextAttemptAt(LocalDateTime nextAttemptAt) {
+    this.nextAttemptAt = nextAttemptAt;
+  }
+
+  public String getLastError() {
+    return lastError;
+  }
+
+  public void setLastError(String lastError) {
+    this.lastError = lastError;
+  }
+
+  public LocalDateTime getCreatedAt() {
+    return createdAt;
+  }
+
+  public void setCreatedAt(LocalDateTime createdAt) {
+    this.createdAt = createdAt;
+  }
+
+  public LocalDateTime getUpdatedAt() {
+    return updatedAt;
+  }
+
+  public void setUpdatedAt(LocalDateTime updatedAt) {
+    this.updatedAt = updatedAt;
+  }
+}
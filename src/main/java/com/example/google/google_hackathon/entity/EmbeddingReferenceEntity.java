@@ -0,0 +1,76 @@
+package com.example.google.google_hackathon.entity;
+
+import jakarta.persistence.*;
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "embedding_references", schema = "public")
+public class EmbeddingReferenceEntity {
+
+  @Id
+  private Long chatMessageId; // 埋め込みを作らなかったチャットメッセージID
+
+  @Column(nullable = false)
+  private Long duplicateOf; // 代わりに参照する（埋め込み済みの）チャットメッセージID
+
+  private String roomId;
+
+  @Column(nullable = false)
+  private int distance; // SimHash のハミング距離
+
+  @Column(nullable = false)
+  private LocalDateTime createdAt;
+
+  // コンストラクタ
+  public EmbeddingReferenceEntity() {}
+
+  public EmbeddingReferenceEntity(Long chatMessageId, Long duplicateOf, String roomId, int distance,
+      LocalDateTime createdAt) {
+    this.chatMessageId = chatMessageId;
+    this.duplicateOf = duplicateOf;
+    this.roomId = roomId;
+    this.distance = distance;
+    this.createdAt = createdAt;
+  }
+
+  // ゲッターとセッター
+  public Long getChatMessageId() {
+    return chatMessageId;
+  }
+
+  public void setChatMessageId(Long chatMessageId) {
+    this.chatMessageId = chatMessageId;
+  }
+
+  public Long getDuplicateOf() {
+    return duplicateOf;
+  }
+
+  public void setDuplicateOf(Long duplicateOf) {
+    this.duplicateOf = duplicateOf;
+  }
+
+  public String getRoomId() {
+    return roomId;
+  }
+
+  public void setRoomId(String roomId) {
+    this.roomId = roomId;
+  }
+
+  public int getDistance() {
+    return distance;
+  }
+
+  public void setDistance(int distance) {
+    this.distance = distance;
+  }
+
+  public LocalDateTime getCreatedAt() {
+    return createdAt;
+  }
+
+  public void setCreatedAt(LocalDateTime createdAt) {
+    this.createdAt = createdAt;
+  }
+}
@@ -1,43 +1,44 @@
 package com.example.google.google_hackathon.listener;
 
-import java.util.List;
-
-
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
 import com.example.google.google_hackathon.entity.ChatMessageEntity;
-import com.example.google.google_hackathon.service.FirestoreService;
-import com.example.google.google_hackathon.service.VertexAIService;
+import com.example.google.google_hackathon.service.similarity.ChatIndexingPipeline;
 
 import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
 
 @Component
 public class ChatMessageListener {
-    private static final Logger logger = LoggerFactory.getLogger(ChatMessageListener.class);
-
-    @Autowired
-    private FirestoreService firestoreService;
 
     @Autowired
-    private VertexAIService vertexAIService;
+    private ChatIndexingPipeline chatIndexingPipeline;
 
+    // 埋め込み生成と Firestore 保存はコミット後に別スレッドで行い、チャット送信を待たせない
     @PostPersist
     public void onPostPersist(ChatMessageEntity message) {
-        try {
-            // Vertex AI でベクトル生成（後述）
-            List<Double> embedding = vertexAIService.generateEmbedding(message.getText());
-
-            // Firestore に保存
-            firestoreService.saveChatMessageWithEmbedding(message, embedding);
-            
-            logger.info("Firestore 保存成功");
-        } catch (Exception e) {
-            System.err.println("Firestore保存失敗: " + e.getMessage());
-            logger.error("Firestore保存失敗", e);
+        afterCommit(() -> chatIndexingPipeline.submit(message));
+    }
+
+    // 削除されたメッセージの埋め込みも、コミット後に VectorStore と常駐インデックスから外す
+    @PostRemove
+    public void onPostRemove(ChatMessageEntity message) {
+        afterCommit(() -> chatIndexingPipeline.remove(message));
+    }
 
+    private void afterCommit(Runnable task) {
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCommit() {
+                    task.run();
+                }
+            });
+        } else {
+            task.run();
         }
     }
 }
-
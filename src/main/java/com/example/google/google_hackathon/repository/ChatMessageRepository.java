@@ -1,9 +1,28 @@
 package com.example.google.google_hackathon.repository;
 
+import java.time.LocalDateTime;
 import java.util.List;
+import org.springframework.data.domain.Pageable;
 import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
 import com.example.google.google_hackathon.entity.ChatMessageEntity;
 
 public interface ChatMessageRepository extends JpaRepository<ChatMessageEntity, Long> {
     List<ChatMessageEntity> findByRoomIdOrderByTimestampAsc(String roomId);
+
+    // 類似検索のルーム指定（room_id のプレフィックス）に合わせた読み込み。
+    // 主キーの続きから pageable の件数ずつ読む（ルーム全体を1つのリストにしない）
+    List<ChatMessageEntity> findByRoomIdStartingWithAndIdGreaterThanOrderByIdAsc(String roomIdPrefix, Long id,
+            Pageable pageable);
+
+    // 全件の埋め込み直し用。主キーの続きから pageable の件数ずつ読む（OFFSET を使わないので後半も遅くならない）
+    List<ChatMessageEntity> findByIdGreaterThanOrderByIdAsc(Long id, Pageable pageable);
+
+    long countByIdGreaterThanAndIdLessThanEqual(Long fromExclusive, Long toInclusive);
+
+    // 自動採番IDの古い chat_embeddings を元のメッセージに突き合わせる（Firestore 側の日時はミリ秒までなので範囲で探す）
+    List<ChatMessageEntity> findByRoomIdAndTimestampBetween(String roomId, LocalDateTime from, LocalDateTime to);
+
+    @Query("SELECT MAX(m.id) FROM ChatMessageEntity m")
+    Long findMaxId();
 }
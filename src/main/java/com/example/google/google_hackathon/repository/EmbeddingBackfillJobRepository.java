@@ -0,0 +1,17 @@
+package com.example.google.google_hackathon.repository;
+
+import java.util.Collection;
+import java.util.Optional;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import com.example.google.google_hackathon.entity.EmbeddingBackfillJobEntity;
+
+public interface EmbeddingBackfillJobRepository extends JpaRepository<EmbeddingBackfillJobEntity, Long> {
+
+  // 直近のジョブ（状態の表示用）
+  Optional<EmbeddingBackfillJobEntity> findFirstByOrderByIdDesc();
+
+  // 再開する対象（中断された RUNNING / 止めた PAUSED）
+  Optional<EmbeddingBackfillJobEntity> findFirstByStatusInOrderByIdDesc(Collection<String> statuses);
+}
@@ -0,0 +1,36 @@
+package com.example.google.google_hackathon.repository;
+
+import java.time.LocalDateTime;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import com.example.google.google_hackathon.entity.EmbeddingOutboxEntity;
+
+public interface EmbeddingOutboxRepository extends JpaRepository<EmbeddingOutboxEntity, Long> {
+
+  // 複数インスタンスで同じ行を取り合わないように、ロック中の行は飛ばして取得する
+  @Query(value = "SELECT * FROM public.embedding_outbox WHERE status = 'PENDING' AND next_attempt_at <= :now "
+      + "ORDER BY id LIMIT :limit FOR UPDATE SKIP LOCKED", nativeQuery = true)
+  List<EmbeddingOutboxEntity> lockDue(@Param("now") LocalDateTime now, @Param("limit") int limit);
+
+  List<EmbeddingOutboxEntity> findByChatMessageIdAndStatus(Long chatMessageId, String status);
+
+  long countByStatus(String status);
+
+  @Modifying
+  @Query("UPDATE EmbeddingOutboxEntity o SET o.status = 'DONE', o.lastError = null, o.updatedAt = :now "
+      + "WHERE o.chatMessageId = :chatMessageId AND o.status = 'PENDING'")
+  int markDone(@Param("chatMessageId") Long chatMessageId, @Param("now") LocalDateTime now);
+
+  @Modifying
+  @Query(value = "INSERT INTO public.embedding_outbox "
+      + "(chat_message_id, status, attempts, next_attempt_at, created_at, updated_at) "
+      + "SELECT m.id, 'PENDING', 0, :now, :now, :now FROM public.chat_messages m "
+      + "WHERE m.timestamp >= :from AND m.timestamp < :to", nativeQuery = true)
+  int enqueueRange(@Param("from") LocalDateTime from, @Param("to") LocalDateTime to,
+      @Param("now") LocalDateTime now);
+}
@@ -0,0 +1,13 @@
+package com.example.google.google_hackathon.repository;
+
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+
+import com.example.google.google_hackathon.entity.EmbeddingReferenceEntity;
+
+public interface EmbeddingReferenceRepository extends JpaRepository<EmbeddingReferenceEntity, Long> {
+
+  // 参照先のメッセージが削除されたときに、参照していたメッセージを探す
+  List<EmbeddingReferenceEntity> findByDuplicateOf(Long duplicateOf);
+}
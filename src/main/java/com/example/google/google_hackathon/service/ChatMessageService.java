@@ -5,19 +5,25 @@ import java.time.ZoneId;
 import java.time.ZonedDateTime;
 import java.util.List;
 import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
 import com.example.google.google_hackathon.config.model.ChatMessage;
 import com.example.google.google_hackathon.entity.ChatMessageEntity;
 import com.example.google.google_hackathon.repository.ChatMessageRepository;
+import com.example.google.google_hackathon.service.similarity.EmbeddingOutboxService;
 
 @Service
 public class ChatMessageService {
 
     private final ChatMessageRepository repository;
+    private final EmbeddingOutboxService embeddingOutboxService;
 
-    public ChatMessageService(ChatMessageRepository repository) {
+    public ChatMessageService(ChatMessageRepository repository, EmbeddingOutboxService embeddingOutboxService) {
         this.repository = repository;
+        this.embeddingOutboxService = embeddingOutboxService;
     }
 
+    // チャットの保存と embedding_outbox への登録は同じトランザクションで行う
+    @Transactional
     public void saveMessage(ChatMessage message) {
         ChatMessageEntity entity = new ChatMessageEntity();
         entity.setSender(message.getSender());
@@ -28,6 +34,7 @@ public class ChatMessageService {
         entity.setTimestamp(japanTime);
 
         repository.save(entity);
+        embeddingOutboxService.enqueue(entity.getId());
     }
 
     public List<ChatMessageEntity> getMessages(String roomId) {
@@ -1,26 +1,49 @@
 package com.example.google.google_hackathon.service;
 
 import java.io.IOException;
-import java.time.Instant;
 import java.time.LocalDateTime;
 import java.time.ZoneId;
-import java.time.ZoneOffset;
+import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import com.example.google.google_hackathon.entity.ChatMessageEntity;
+import com.example.google.google_hackathon.service.similarity.QuantizedVector;
+import com.example.google.google_hackathon.service.similarity.store.StoredVector;
+import com.google.api.core.ApiFuture;
+import com.google.cloud.firestore.Blob;
+import com.google.cloud.firestore.BulkWriter;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.FieldValue;
 import com.google.cloud.firestore.Firestore;
 import com.google.cloud.firestore.FirestoreOptions;
+import com.google.cloud.firestore.WriteResult;
 import com.google.cloud.Timestamp;
 
 @Service
 public class FirestoreService {
 
+    private static final Logger logger = LoggerFactory.getLogger(FirestoreService.class);
+
+    public static final String QUANTIZED_EMBEDDING_FIELD = "embedding_q8";
+    // 書き込み時のサーバー時刻。他のインスタンスが差分を追うカーソルに使う（timestamp はメッセージの時刻なので単調増加しない）
+    public static final String UPDATED_AT_FIELD = "updated_at";
+    // 埋め込みを作ったモデルと次元数（次元数の違うベクトルを混ぜて採点しないため）
+    public static final String EMBEDDING_MODEL_FIELD = "embedding_model";
+    public static final String EMBEDDING_DIMENSION_FIELD = "embedding_dim";
+
     private final Firestore db;
 
+    // float: 従来どおり double の配列で保存 / int8: 量子化したバイト列（embedding_q8）で保存
+    @Value("${similarity.storage.format:float}")
+    private String storageFormat;
+
     public FirestoreService() throws IOException {
         FirestoreOptions firestoreOptions =
             FirestoreOptions.getDefaultInstance().toBuilder()
@@ -29,26 +52,68 @@ public class FirestoreService {
         this.db = firestoreOptions.getService();
     }
 
-    public void saveChatMessageWithEmbedding(ChatMessageEntity message, List<Double> embedding) throws Exception {
-        
-        
-    Instant instant = message.getTimestamp().toInstant(ZoneOffset.UTC);
-    
-    Timestamp firestoreTimestamp = Timestamp.ofTimeSecondsAndNanos(
-    instant.getEpochSecond(),
-    instant.getNano()
-    );
+    /**
+     * チャットメッセージと埋め込みを chat_embeddings に保存する。
+     * ドキュメントIDはチャットメッセージのIDにするので、再試行や再索引付けで重複しない。
+     *
+     * @return 保存したドキュメントのID
+     */
+    public String saveChatMessageWithEmbedding(ChatMessageEntity message, List<Double> embedding) throws Exception {
+        return saveEmbedding(StoredVector.of(message, embedding, VertexAIService.MODEL_ID));
+    }
+
+    /**
+     * VectorStore の1件を chat_embeddings に保存する（同じドキュメントIDがあれば上書き）。
+     *
+     * @return 保存したドキュメントのID
+     */
+    public String saveEmbedding(StoredVector vector) throws Exception {
+        DocumentReference docRef = db.collection("chat_embeddings").document(vector.docId());
+        docRef.set(toDocument(vector)).get();
+        logger.debug("chat_embeddings に保存しました: docId={}, roomId={}", docRef.getId(), vector.roomId());
+        return docRef.getId();
+    }
+
+    /**
+     * まとめて保存する（全件の埋め込み直し用）。BulkWriter が書き込みを並行に送り、失敗した書き込みは再試行する。
+     * すべて書き終わるまで待ち、再試行しても失敗したものがあれば最初の例外を投げる。
+     */
+    public void saveEmbeddings(List<StoredVector> vectors) throws Exception {
+        List<ApiFuture<WriteResult>> results = new ArrayList<>(vectors.size());
+        try (BulkWriter writer = db.bulkWriter()) {
+            for (StoredVector vector : vectors) {
+                results.add(writer.set(db.collection("chat_embeddings").document(vector.docId()), toDocument(vector)));
+            }
+        }
+        for (ApiFuture<WriteResult> result : results) {
+            result.get();
+        }
+    }
 
+    private Map<String, Object> toDocument(StoredVector vector) {
+        Timestamp firestoreTimestamp = vector.timestamp() != null ? Timestamp.of(vector.timestamp()) : null;
 
         Map<String, Object> docData = new HashMap<>();
-        docData.put("room_id", message.getRoomId());
-        docData.put("message", message.getText());
-        docData.put("sender", message.getSender());
-        docData.put("embedding", embedding);
-        docData.put("timestamp", firestoreTimestamp
-        );
-
-        db.collection("chat_embeddings").add(docData).get();
-        System.out.println("保存完了: " + message.getText());
+        docData.put("message_id", vector.messageId());
+        docData.put("room_id", vector.roomId());
+        docData.put("message", vector.message());
+        docData.put("sender", vector.sender());
+        if (vector.quantized() != null) {
+            docData.put(QUANTIZED_EMBEDDING_FIELD, Blob.fromBytes(vector.quantized().toBytes()));
+        } else if ("int8".equalsIgnoreCase(storageFormat)) {
+            docData.put(QUANTIZED_EMBEDDING_FIELD,
+                    Blob.fromBytes(QuantizedVector.quantize(vector.embedding()).toBytes()));
+        } else {
+            docData.put("embedding", vector.embedding());
+        }
+        docData.put("timestamp", firestoreTimestamp);
+        docData.put(EMBEDDING_MODEL_FIELD, vector.model());
+        docData.put(EMBEDDING_DIMENSION_FIELD, vector.dimension());
+        docData.put(UPDATED_AT_FIELD, FieldValue.serverTimestamp());
+        return docData;
+    }
+
+    public void deleteEmbedding(String docId) throws Exception {
+        db.collection("chat_embeddings").document(docId).delete().get();
     }
 }
@@ -19,6 +19,9 @@ public class GeminiService {
 
     private static final Logger logger = LoggerFactory.getLogger(GeminiService.class);
 
+    private static final String NO_ANSWER = "回答を生成できませんでした。";
+    private static final String ERROR_PREFIX = "エラーが発生しました: ";
+
     public String generateAnswer(String userQuestion, List<SimilarMessageDTO> similarMessages) {
         try {
             // アクセストークン取得
@@ -78,15 +81,22 @@ public class GeminiService {
                 return partsArray.get(0).getAsJsonObject().get("text").getAsString();
             } else {
                 logger.warn("Vertex AI API returned no candidates: {}", response.body());
-                return "回答を生成できませんでした。";
+                return NO_ANSWER;
             }
 
         } catch (Exception e) {
             logger.error("Vertex AI 呼び出し中にエラーが発生しました", e);
-            return "エラーが発生しました: " + e.getMessage();
+            return ERROR_PREFIX + e.getMessage();
         }
     }
 
+    /**
+     * generateAnswer の戻り値が回答そのものか（失敗時のメッセージでないか）。失敗時の文言はキャッシュしないために使う。
+     */
+    public boolean isAnswer(String answer) {
+        return answer != null && !answer.equals(NO_ANSWER) && !answer.startsWith(ERROR_PREFIX);
+    }
+
     public String generateRoadmapProposal(String category, List<ReflectionSummaryDtoByFuji> summaries) {
     StringBuilder promptBuilder = new StringBuilder();
     promptBuilder.append("\r\n" + //
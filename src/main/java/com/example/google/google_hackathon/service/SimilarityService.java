@@ -1,62 +1,333 @@
 package com.example.google.google_hackathon.service;
 
-import com.google.api.core.ApiFuture;
-import com.google.cloud.firestore.*;
+import com.example.google.google_hackathon.service.similarity.CrossRoomSearch;
+import com.example.google.google_hackathon.service.similarity.KeywordQuery;
+import com.example.google.google_hackathon.service.similarity.LexicalIndex;
+import com.example.google.google_hackathon.service.similarity.LexicalIndexManager;
+import com.example.google.google_hackathon.service.similarity.MaximalMarginalRelevance;
+import com.example.google.google_hackathon.service.similarity.MessageHydrator;
+import com.example.google.google_hackathon.service.similarity.RankFusion;
+import com.example.google.google_hackathon.service.similarity.RoomVectorIndex;
+import com.example.google.google_hackathon.service.similarity.RoomVectorIndexManager;
+import com.example.google.google_hackathon.service.similarity.SearchFilter;
+import com.example.google.google_hackathon.service.similarity.SearchTimings;
+import com.example.google.google_hackathon.service.similarity.SearchWindow;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import java.util.*;
-//import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 
 @Service
 public class SimilarityService {
 
+    private static final Logger logger = LoggerFactory.getLogger(SimilarityService.class);
+
     @Autowired
-    private Firestore db;
+    private RoomVectorIndexManager roomVectorIndexManager;
 
     @Autowired
     private VertexAIService vertexAIService;
 
+    @Autowired
+    private MessageHydrator messageHydrator;
+
+    @Autowired
+    private LexicalIndexManager lexicalIndexManager;
+
+    @Autowired
+    private CrossRoomSearch crossRoomSearch;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // true: n-gram 検索（BM25）とベクトル検索の結果を RRF でまとめる / false: ベクトル検索のみ
+    @Value("${similarity.hybrid.enabled:false}")
+    private boolean hybridEnabled;
+
+    // まとめる前にそれぞれの検索から取る件数
+    @Value("${similarity.hybrid.candidates:50}")
+    private int hybridCandidates;
+
+    @Value("${similarity.hybrid.rrf-k:60}")
+    private int rrfK;
+
+    // キーワードで引くだけの質問は、n-gram 検索で完全一致があれば埋め込みを作らずに返す
+    @Value("${similarity.lexical.fast-path:true}")
+    private boolean lexicalFastPath;
+
+    @Value("${similarity.lexical.keyword-max-length:20}")
+    private int keywordMaxLength;
+
+    // full: 全期間を採点する / recent: 新しい月から順に採点し、上位に入り得ない古い月は打ち切る
+    @Value("${similarity.time-window.mode:full}")
+    private String timeWindowMode;
+
+    // recent のとき遡る月数（今月を含む、0 なら制限なし）
+    @Value("${similarity.time-window.lookback-months:0}")
+    private int lookbackMonths;
+
+    // true: 上位 candidates 件を MMR で並べ直し、似たメッセージばかりにならないように topK 件を選ぶ
+    @Value("${similarity.mmr.enabled:false}")
+    private boolean mmrEnabled;
+
+    @Value("${similarity.mmr.candidates:20}")
+    private int mmrCandidates;
+
+    // 1 に近いほど質問との類似度を、0 に近いほど多様さを優先する
+    @Value("${similarity.mmr.lambda:0.7}")
+    private double mmrLambda;
+
+    // true: 質問の埋め込み生成と常駐インデックスの取得を同時に行う / false: 順番に行う
+    @Value("${similarity.pipeline.enabled:true}")
+    private boolean pipelineEnabled;
+
+    // 上の2つを実行するスレッド数（Vertex AI への同時呼び出し数の上限にもなる）
+    @Value("${similarity.pipeline.threads:16}")
+    private int pipelineThreads;
+
+    private ExecutorService stageExecutor;
+
+    @PostConstruct
+    public void startStageExecutor() {
+        if (!pipelineEnabled) {
+            return;
+        }
+        AtomicInteger threadNumber = new AtomicInteger();
+        stageExecutor = Executors.newFixedThreadPool(Math.max(2, pipelineThreads), r -> {
+            Thread t = new Thread(r, "similarity-stage-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void stopStageExecutor() {
+        if (stageExecutor != null) {
+            stageExecutor.shutdownNow();
+        }
+    }
+
     public List<SimilarMessage> findSimilarMessages(String userQuestion, String roomId,int topK) throws Exception {
-        // 1. ユーザーの質問をベクトル化
-        List<Double> userEmbedding = vertexAIService.generateEmbedding(userQuestion);
-
-        // 2. Firestore から履歴を取得
-        String roomIdEnd = roomId + "\uf8ff";
-        ApiFuture<QuerySnapshot> future = db.collection("chat_embeddings")
-        .whereGreaterThanOrEqualTo("room_id", roomId)
-        .whereLessThanOrEqualTo("room_id", roomIdEnd)
-        .get();
-        System.out.println("roomId: " + roomId);
-        List<QueryDocumentSnapshot> documents = future.get().getDocuments();
-
-        // 3. 類似度を計算
-        List<SimilarMessage> similarMessages = new ArrayList<>();
-        for (QueryDocumentSnapshot doc : documents) {
-            List<Double> embedding = (List<Double>) doc.get("embedding");
-            String message = (String) doc.get("message");
-            String sender = doc.getString("sender");
-            Date timestamp = doc.getDate("timestamp");
-
-            double similarity = cosineSimilarity(userEmbedding, embedding);
-            similarMessages.add(new SimilarMessage(message, similarity,sender,timestamp));
-        }
-
-        // 4. 類似度順にソートして上位を返す
-        return similarMessages.stream()
-                .sorted(Comparator.comparingDouble(SimilarMessage::getSimilarity).reversed())
-                .limit(topK)
+        return findSimilarMessages(userQuestion, roomId, topK, defaultWindow());
+    }
+
+    /**
+     * 検索期間を指定して類似メッセージを探す。
+     */
+    public List<SimilarMessage> findSimilarMessages(String userQuestion, String roomId, int topK, SearchWindow window)
+            throws Exception {
+        return findSimilarMessages(userQuestion, roomId, topK, window, new SearchTimings());
+    }
+
+    /**
+     * 検索期間を指定して類似メッセージを探し、段階ごとの所要時間を timings に記録する。
+     * similarity.pipeline.enabled なら、質問の埋め込み生成と常駐インデックスの取得（未ロードなら VectorStore からの読み込み）を
+     * 専用のスレッドで同時に始め、両方そろってから採点する。
+     */
+    public List<SimilarMessage> findSimilarMessages(String userQuestion, String roomId, int topK, SearchWindow window,
+            SearchTimings timings) throws Exception {
+        return findSimilarMessages(userQuestion, roomId, topK, window, SearchFilter.none(), timings);
+    }
+
+    /**
+     * 送信者・期間・Room.index の部分木で絞り込んで類似メッセージを探す。絞り込みは採点の前に行う。
+     */
+    public List<SimilarMessage> findSimilarMessages(String userQuestion, String roomId, int topK, SearchWindow window,
+            SearchFilter filter, SearchTimings timings) throws Exception {
+        logger.debug("類似検索: roomId={}", roomId);
+        // MMR で選び直すときは多めに取る
+        int searchTopK = mmrEnabled ? Math.max(topK, mmrCandidates) : topK;
+        RankFusion.Fused candidates;
+        if (hybridEnabled) {
+            candidates = hybridSearch(userQuestion, roomId, searchTopK, window, filter, timings);
+        } else {
+            // 1. ユーザーの質問をベクトル化 / 2. 常駐インデックスを取得（初回のみ VectorStore から読み込む）
+            CompletableFuture<List<Double>> userEmbedding = stage(timings, "embedding",
+                    () -> vertexAIService.generateEmbedding(userQuestion));
+            CompletableFuture<RoomVectorIndex> index = stage(timings, "fetch",
+                    () -> roomVectorIndexManager.getIndex(roomId));
+
+            // 3. 類似度上位を取得
+            List<Double> embedding = join(userEmbedding);
+            RoomVectorIndex loaded = join(index);
+            long scoreStart = System.nanoTime();
+            candidates = new RankFusion.Fused(loaded.search(embedding, searchTopK, window, filter), null);
+            timings.record("score", scoreStart);
+            countSearch("vector");
+        }
+        return toSimilarMessages(roomId, candidates, topK, timings);
+    }
+
+    /**
+     * キーワードの質問が n-gram 検索だけで答えられる（lexical fast path）ときはその結果を返し、そうでなければ null を返す。
+     * 埋め込みを作らないので、回答キャッシュを引く前に呼べば、キーワードの質問では質問の埋め込みを作らずに済む。
+     */
+    public List<SimilarMessage> findByKeyword(String userQuestion, String roomId, int topK, SearchWindow window,
+            SearchFilter filter, SearchTimings timings) throws Exception {
+        if (!hybridEnabled || !lexicalFastPath || !KeywordQuery.isKeywordLookup(userQuestion, keywordMaxLength)) {
+            return null;
+        }
+        int searchTopK = mmrEnabled ? Math.max(topK, mmrCandidates) : topK;
+        LexicalIndex.Result lexical = lexicalSearch(userQuestion, roomId, Math.max(searchTopK, hybridCandidates),
+                window, filter, timings);
+        if (!lexical.fullMatch()) {
+            return null;
+        }
+        countSearch("lexical");
+        return toSimilarMessages(roomId, RankFusion.fuseRanked(List.of(), lexical.hits(), rrfK, searchTopK), topK,
+                timings);
+    }
+
+    private List<SimilarMessage> toSimilarMessages(String roomId, RankFusion.Fused candidates, int topK,
+            SearchTimings timings) throws Exception {
+        List<RoomVectorIndex.Hit> hits = candidates.hits().size() > topK
+                ? timings.time("mmr", () -> diversify(roomId, candidates, topK))
+                : candidates.hits();
+
+        // 4. 類似度順の上位を返す（ID とベクトルだけの常駐なら、ここで上位分の本文を取得する）
+        List<RoomVectorIndex.Hit> hydrated = timings.time("hydrate", () -> messageHydrator.hydrate(hits));
+        return hydrated.stream()
+                .map(hit -> new SimilarMessage(hit.message(), hit.similarity(), hit.sender(), hit.timestamp()))
                 .collect(Collectors.toList());
     }
 
-    private double cosineSimilarity(List<Double> vec1, List<Double> vec2) {
-        double dot = 0.0, norm1 = 0.0, norm2 = 0.0;
-        for (int i = 0; i < vec1.size(); i++) {
-            dot += vec1.get(i) * vec2.get(i);
-            norm1 += Math.pow(vec1.get(i), 2);
-            norm2 += Math.pow(vec2.get(i), 2);
+    // 常駐インデックスにあるベクトル同士の類似度を使って、MMR で topK 件を選ぶ（本文の取得より前に行うので、取得も topK 件で済む）
+    // ハイブリッド検索の結果は RRF でまとめた順位（relevance）を関連度にする（hit.similarity() はコサインと BM25 が混ざっている）
+    private List<RoomVectorIndex.Hit> diversify(String roomId, RankFusion.Fused candidates, int topK)
+            throws Exception {
+        List<String> docIds = new ArrayList<>(candidates.hits().size());
+        for (RoomVectorIndex.Hit hit : candidates.hits()) {
+            docIds.add(hit.docId());
+        }
+        float[][] similarities = roomVectorIndexManager.getIndex(roomId).similarities(docIds);
+        if (candidates.relevance() == null) {
+            return MaximalMarginalRelevance.rerank(candidates.hits(), similarities, mmrLambda, topK);
+        }
+        return MaximalMarginalRelevance.rerank(candidates.hits(), similarities, candidates.relevance(), mmrLambda,
+                topK);
+    }
+
+    /**
+     * すべてのルーム（filter.roomSubtree() があればその部分木のもの）をまたいで類似メッセージを探す。
+     * ルームごとに findSimilarMessages を繰り返すのではなく、質問の埋め込みを1回だけ作り、ルームごとの常駐インデックスを
+     * 同時に採点してまとめる。期限までに終わらなかったルームがあれば、結果の partial() が true になる。
+     */
+    public CrossRoomSearch.Result searchAllRooms(String userQuestion, int topK, SearchWindow window, SearchFilter filter,
+            SearchTimings timings) throws Exception {
+        List<Double> embedding = timings.time("embedding", () -> vertexAIService.generateEmbedding(userQuestion));
+        CrossRoomSearch.Result result = timings.time("scatter", () -> crossRoomSearch.search(embedding, topK, window,
+                filter));
+        countSearch("cross-room");
+
+        // 本文が常駐していなければ、まとめた上位分だけ取得する（順序と件数は変わらない）
+        List<RoomVectorIndex.Hit> hits = new ArrayList<>(result.hits().size());
+        for (CrossRoomSearch.RoomHit roomHit : result.hits()) {
+            hits.add(roomHit.hit());
+        }
+        List<RoomVectorIndex.Hit> hydrated = timings.time("hydrate", () -> messageHydrator.hydrate(hits));
+        List<CrossRoomSearch.RoomHit> roomHits = new ArrayList<>(hydrated.size());
+        for (int i = 0; i < hydrated.size(); i++) {
+            roomHits.add(new CrossRoomSearch.RoomHit(result.hits().get(i).roomId(), hydrated.get(i)));
         }
-        return dot / (Math.sqrt(norm1) * Math.sqrt(norm2));
+        return result.withHits(roomHits);
+    }
+
+    /**
+     * 質問の埋め込みを待つ間に、ルームの常駐インデックスを読み込み始める（回答キャッシュの確認より前に呼ぶ）。
+     * 読み込みの失敗は、後の検索でもう一度読み込むときに扱う。
+     */
+    public void prefetch(String roomId) {
+        if (stageExecutor != null) {
+            stageExecutor.execute(() -> {
+                try {
+                    roomVectorIndexManager.getIndex(roomId);
+                } catch (Exception e) {
+                    // 検索側で読み込み直して例外を返す
+                }
+            });
+        }
+    }
+
+    /**
+     * 設定（similarity.time-window.*）どおりの検索期間。
+     */
+    public SearchWindow defaultWindow() {
+        return SearchWindow.of(timeWindowMode, lookbackMonths);
+    }
+
+    private RankFusion.Fused hybridSearch(String userQuestion, String roomId, int topK, SearchWindow window,
+            SearchFilter filter, SearchTimings timings) throws Exception {
+        int candidates = Math.max(topK, hybridCandidates);
+        boolean keywordLookup = lexicalFastPath && KeywordQuery.isKeywordLookup(userQuestion, keywordMaxLength);
+        CompletableFuture<RoomVectorIndex> index = stage(timings, "fetch", () -> roomVectorIndexManager.getIndex(roomId));
+        // キーワードの質問は n-gram 検索で済むかもしれないので、結果を見てから埋め込みを作る
+        CompletableFuture<List<Double>> userEmbedding = keywordLookup ? null
+                : stage(timings, "embedding", () -> vertexAIService.generateEmbedding(userQuestion));
+
+        LexicalIndex.Result lexical = lexicalSearch(userQuestion, roomId, candidates, window, filter, timings);
+        if (keywordLookup && lexical.fullMatch()) {
+            countSearch("lexical");
+            return RankFusion.fuseRanked(List.of(), lexical.hits(), rrfK, topK);
+        }
+        if (userEmbedding == null) {
+            userEmbedding = stage(timings, "embedding", () -> vertexAIService.generateEmbedding(userQuestion));
+        }
+
+        List<Double> embedding = join(userEmbedding);
+        RoomVectorIndex loaded = join(index);
+        long scoreStart = System.nanoTime();
+        List<RoomVectorIndex.Hit> vectorHits = loaded.search(embedding, candidates, window, filter);
+        timings.record("score", scoreStart);
+        countSearch("hybrid");
+        return RankFusion.fuseRanked(vectorHits, lexical.hits(), rrfK, topK);
+    }
+
+    private LexicalIndex.Result lexicalSearch(String userQuestion, String roomId, int candidates, SearchWindow window,
+            SearchFilter filter, SearchTimings timings) throws Exception {
+        // n-gram 側もベクトル側と同じ期間に絞る
+        return timings.time("lexical", () -> lexicalIndexManager.getIndex(roomId)
+                .search(userQuestion, candidates, window.minTimestamp(System.currentTimeMillis()), filter));
+    }
+
+    // 段階を1つ始める。パイプラインが無効ならこの場で実行して、終わった Future を返す（従来どおり順番に実行される）
+    private <T> CompletableFuture<T> stage(SearchTimings timings, String name, Callable<T> task) throws Exception {
+        if (stageExecutor == null) {
+            return CompletableFuture.completedFuture(timings.time(name, task));
+        }
+        return CompletableFuture.supplyAsync(() -> {
+            try {
+                return timings.time(name, task);
+            } catch (Exception e) {
+                throw new CompletionException(e);
+            }
+        }, stageExecutor);
+    }
+
+    private static <T> T join(CompletableFuture<T> future) throws Exception {
+        try {
+            return future.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof Exception cause) {
+                throw cause;
+            }
+            throw e;
+        }
+    }
+
+    private void countSearch(String path) {
+        meterRegistry.counter("similarity.search.requests", "path", path).increment();
     }
 
     public static class SimilarMessage {
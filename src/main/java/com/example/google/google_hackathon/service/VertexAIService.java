@@ -2,11 +2,28 @@ package com.example.google.google_hackathon.service;
 
 import com.google.auth.oauth2.GoogleCredentials;
 import com.google.gson.*;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
+
+import com.example.google.google_hackathon.service.similarity.EmbeddingCache;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
 import java.io.IOException;
 import java.net.URI;
 import java.net.http.*;
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.stream.StreamSupport;
 import org.slf4j.Logger;
@@ -16,13 +33,145 @@ import org.slf4j.LoggerFactory;
 public class VertexAIService {
 
     private static final String PROJECT_ID = "nomadic-bison-459812-a8";
+    public static final String MODEL_ID = "gemini-embedding-001";
     private static final Logger logger = LoggerFactory.getLogger(VertexAIService.class);
     private static final String ENDPOINT = String.format(
-        "https://us-central1-aiplatform.googleapis.com/v1/projects/%s/locations/us-central1/publishers/google/models/gemini-embedding-001:predict",
-        PROJECT_ID
+        "https://us-central1-aiplatform.googleapis.com/v1/projects/%s/locations/us-central1/publishers/google/models/%s:predict",
+        PROJECT_ID, MODEL_ID
     );
 
+    // gemini-embedding-001 の既定の次元数
+    public static final int DEFAULT_DIMENSION = 3072;
+
+    // gemini-embedding-001 の :predict は1リクエストに1テキストしか受け付けない（複数送るとリクエストごと拒否される）
+    public static final int MAX_INSTANCES_PER_REQUEST = 1;
+
+    @Autowired
+    private EmbeddingCache embeddingCache;
+
+    @Autowired
+    private MeterRegistry meterRegistry;
+
+    // 実際に送った :predict の数（キャッシュから返したものは数えない）
+    private Counter requestCounter;
+
+    // 複数テキストを埋め込むときに同時に送る :predict の数
+    @Value("${similarity.embedding.max-concurrent-requests:8}")
+    private int maxConcurrentRequests;
+
+    // :predict 1回の上限（接続と応答の待ち時間）。超えたら HttpTimeoutException で失敗させ、呼び出し元の再試行に回す
+    @Value("${similarity.embedding.request-timeout-ms:10000}")
+    private long requestTimeoutMillis;
+
+    private ExecutorService requestExecutor;
+
+    @PostConstruct
+    public void startRequestExecutor() {
+        requestCounter = meterRegistry.counter("embedding.requests");
+        AtomicInteger threadNumber = new AtomicInteger();
+        requestExecutor = Executors.newFixedThreadPool(Math.max(1, maxConcurrentRequests), r -> {
+            Thread t = new Thread(r, "vertex-embedding-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void stopRequestExecutor() {
+        if (requestExecutor != null) {
+            requestExecutor.shutdownNow();
+        }
+    }
+
+    // 0 ならモデルの既定（3072 次元）。256 / 768 / 1536 などに縮めると保存・転送・採点が軽くなる
+    // 変えたあとは既存のベクトルと混ぜられないので、/api/admin/embeddings/reembed で埋め込み直す
+    @Value("${similarity.embedding.output-dimensionality:0}")
+    private int outputDimensionality;
+
+    /**
+     * 生成する埋め込みの次元数。
+     */
+    public int outputDimension() {
+        return outputDimensionality > 0 ? outputDimensionality : DEFAULT_DIMENSION;
+    }
+
+    // キャッシュは次元数ごとに分ける（次元数を変えたら別物として取り直す）
+    private String cacheKeyModel() {
+        return outputDimensionality > 0 ? MODEL_ID + "@" + outputDimensionality : MODEL_ID;
+    }
+
+    // 同じテキスト（正規化後）の埋め込みはキャッシュから返し、Vertex AI を呼ばない
     public List<Double> generateEmbedding(String text) throws IOException, InterruptedException {
+        return generateEmbeddings(List.of(text)).get(0);
+    }
+
+    /**
+     * 複数テキストの埋め込みを取得する。戻り値は texts と同じ順番。1件でも失敗したら例外を投げる。
+     */
+    public List<List<Double>> generateEmbeddings(List<String> texts) throws IOException, InterruptedException {
+        List<CompletableFuture<List<Double>>> futures = generateEmbeddingsAsync(texts);
+        List<List<Double>> results = new ArrayList<>(futures.size());
+        for (CompletableFuture<List<Double>> future : futures) {
+            try {
+                results.add(future.get());
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException cause) {
+                    throw cause;
+                }
+                if (e.getCause() instanceof RuntimeException cause) {
+                    throw cause;
+                }
+                throw new IOException(e.getCause());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * 複数テキストの埋め込みを、テキストごとの Future で返す（texts と同じ順番）。
+     * キャッシュに無いものだけを MAX_INSTANCES_PER_REQUEST 件ずつの :predict に分けて同時に送る。
+     * 1つのリクエストが失敗しても、そのリクエストのテキストの Future だけが失敗する。
+     */
+    public List<CompletableFuture<List<Double>>> generateEmbeddingsAsync(List<String> texts) {
+        List<CompletableFuture<List<Double>>> results = new ArrayList<>(texts.size());
+        List<Integer> missing = new ArrayList<>();
+        for (int i = 0; i < texts.size(); i++) {
+            List<Double> cached = embeddingCache.get(cacheKeyModel(), texts.get(i));
+            if (cached != null) {
+                results.add(CompletableFuture.completedFuture(cached));
+            } else {
+                results.add(new CompletableFuture<>());
+                missing.add(i);
+            }
+        }
+        for (int from = 0; from < missing.size(); from += MAX_INSTANCES_PER_REQUEST) {
+            List<Integer> chunk = missing.subList(from, Math.min(missing.size(), from + MAX_INSTANCES_PER_REQUEST));
+            Runnable request = () -> {
+                List<String> chunkTexts = chunk.stream().map(texts::get).collect(Collectors.toList());
+                try {
+                    List<List<Double>> fetched = requestEmbeddings(chunkTexts);
+                    for (int i = 0; i < chunk.size(); i++) {
+                        embeddingCache.put(cacheKeyModel(), chunkTexts.get(i), fetched.get(i));
+                        results.get(chunk.get(i)).complete(fetched.get(i));
+                    }
+                } catch (Exception e) {
+                    if (e instanceof InterruptedException) {
+                        Thread.currentThread().interrupt();
+                    }
+                    chunk.forEach(i -> results.get(i).completeExceptionally(e));
+                }
+            };
+            // 1リクエストで済むときは呼び出し元のスレッドで送る
+            if (missing.size() <= MAX_INSTANCES_PER_REQUEST) {
+                request.run();
+            } else {
+                requestExecutor.execute(request);
+            }
+        }
+        return results;
+    }
+
+    private List<List<Double>> requestEmbeddings(List<String> texts) throws IOException, InterruptedException {
     GoogleCredentials credentials = GoogleCredentials.getApplicationDefault()
         .createScoped("https://www.googleapis.com/auth/cloud-platform");
     credentials.refreshIfExpired();
@@ -30,10 +179,17 @@ public class VertexAIService {
 
     JsonObject requestBody = new JsonObject();
     JsonArray instances = new JsonArray();
-    JsonObject instance = new JsonObject();
-    instance.addProperty("content", text);
-    instances.add(instance);
+    for (String text : texts) {
+        JsonObject instance = new JsonObject();
+        instance.addProperty("content", text);
+        instances.add(instance);
+    }
     requestBody.add("instances", instances);
+    if (outputDimensionality > 0) {
+        JsonObject parameters = new JsonObject();
+        parameters.addProperty("outputDimensionality", outputDimensionality);
+        requestBody.add("parameters", parameters);
+    }
 
     logger.debug("Vertex AI embedding request body: {}", requestBody.toString());
 
@@ -42,11 +198,17 @@ public class VertexAIService {
         .header("Authorization", "Bearer " + accessToken)
         .header("Content-Type", "application/json")
         .POST(HttpRequest.BodyPublishers.ofString(requestBody.toString()))
+        .timeout(Duration.ofMillis(requestTimeoutMillis))
         .build();
 
-    HttpResponse<String> response = HttpClient.newHttpClient().send(request, HttpResponse.BodyHandlers.ofString());
+    requestCounter.increment();
+    HttpClient client = HttpClient.newBuilder().connectTimeout(Duration.ofMillis(requestTimeoutMillis)).build();
+    HttpResponse<String> response = client.send(request, HttpResponse.BodyHandlers.ofString());
 
     logger.debug("Vertex AI embedding response body: {}", response.body());
+    if (response.statusCode() / 100 != 2) {
+        throw new IOException("Vertex AI embedding API returned HTTP " + response.statusCode() + ": " + response.body());
+    }
 
     JsonObject json = JsonParser.parseString(response.body()).getAsJsonObject();
     JsonArray predictions = json.getAsJsonArray("predictions");
@@ -54,31 +216,38 @@ public class VertexAIService {
     if (predictions == null || predictions.size() == 0) {
         throw new RuntimeException("Vertex AI embedding API returned no predictions: " + response.body());
     }
+    if (predictions.size() != texts.size()) {
+        throw new RuntimeException("Vertex AI embedding API returned " + predictions.size()
+            + " predictions for " + texts.size() + " instances");
+    }
 
-    // JsonArray vector = predictions.get(0).getAsJsonObject().getAsJsonArray("values");
-
-    // if (vector == null) {
-    //     throw new RuntimeException("Vertex AI embedding API returned no values: " + response.body());
-    // }
-
-JsonObject firstPrediction = predictions.get(0).getAsJsonObject();
-JsonObject embeddings = firstPrediction.has("embeddings") ? firstPrediction.getAsJsonObject("embeddings") : null;
-
-JsonArray vector = null;
-if (embeddings != null && embeddings.has("values") && embeddings.get("values").isJsonArray()) {
-    vector = embeddings.getAsJsonArray("values");
-}
-
-if (vector == null || vector.size() == 0) {
-    throw new RuntimeException("Vertex AI embedding API returned no values: " + response.body());
-}
-
-logger.debug("Embedding vector size: {}", vector.size());
-
-return StreamSupport.stream(vector.spliterator(), false)
-    .map(JsonElement::getAsDouble)
-    .collect(Collectors.toList());
-
+    // predictions は instances と同じ順番で返る
+    List<List<Double>> vectors = new ArrayList<>(predictions.size());
+    for (JsonElement prediction : predictions) {
+        JsonObject embeddings = prediction.getAsJsonObject().has("embeddings")
+            ? prediction.getAsJsonObject().getAsJsonObject("embeddings") : null;
+
+        JsonArray vector = null;
+        if (embeddings != null && embeddings.has("values") && embeddings.get("values").isJsonArray()) {
+            vector = embeddings.getAsJsonArray("values");
+        }
+
+        if (vector == null || vector.size() == 0) {
+            throw new RuntimeException("Vertex AI embedding API returned no values: " + response.body());
+        }
+
+        logger.debug("Embedding vector size: {}", vector.size());
+        if (vector.size() != outputDimension()) {
+            // 次元数の違うベクトルは保存も採点もできないので、ここで止める
+            throw new RuntimeException("Vertex AI embedding API returned " + vector.size()
+                + " dimensions (expected " + outputDimension() + ")");
+        }
+
+        vectors.add(StreamSupport.stream(vector.spliterator(), false)
+            .map(JsonElement::getAsDouble)
+            .collect(Collectors.toList()));
+    }
+    return vectors;
 }
 
 }
@@ -0,0 +1,192 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.example.google.google_hackathon.entity.ChatMessageEntity;
+import com.example.google.google_hackathon.service.VertexAIService;
+import com.example.google.google_hackathon.service.similarity.store.StoredVector;
+import com.example.google.google_hackathon.service.similarity.store.VectorStore;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * チャットメッセージの埋め込み生成と VectorStore への保存を、チャット送信とは別スレッドで行う。
+ * 結果は embedding_outbox に反映し、失敗したものは EmbeddingOutboxRelay が再試行する。
+ * キューは上限付きで、溢れた場合はしばらく待ち、それでも空かなければ呼び出し元スレッドで処理する（取りこぼさない）。
+ */
+@Component
+public class ChatIndexingPipeline {
+
+    private static final Logger logger = LoggerFactory.getLogger(ChatIndexingPipeline.class);
+
+    private final VectorStore vectorStore;
+    private final VertexAIService vertexAIService;
+    private final RoomVectorIndexManager roomVectorIndexManager;
+    private final LexicalIndexManager lexicalIndexManager;
+    private final EmbeddingOutboxService outboxService;
+    private final SemanticAnswerCache answerCache;
+    private final EmbeddingAdmissionPolicy admissionPolicy;
+
+    private final ArrayBlockingQueue<Runnable> queue;
+    private final ThreadPoolExecutor workers;
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final Counter submitted;
+    private final Counter completed;
+    private final Counter failed;
+    private final Counter skipped;
+    private final Counter callerRuns;
+
+    public ChatIndexingPipeline(VectorStore vectorStore, VertexAIService vertexAIService,
+            RoomVectorIndexManager roomVectorIndexManager, LexicalIndexManager lexicalIndexManager,
+            EmbeddingOutboxService outboxService, SemanticAnswerCache answerCache,
+            EmbeddingAdmissionPolicy admissionPolicy, MeterRegistry meterRegistry,
+            @Value("${similarity.indexing.workers:8}") int workerCount,
+            @Value("${similarity.indexing.queue-capacity:1000}") int queueCapacity,
+            @Value("${similarity.indexing.enqueue-timeout-ms:200}") long enqueueTimeoutMillis) {
+        this.vectorStore = vectorStore;
+        this.vertexAIService = vertexAIService;
+        this.roomVectorIndexManager = roomVectorIndexManager;
+        this.lexicalIndexManager = lexicalIndexManager;
+        this.outboxService = outboxService;
+        this.answerCache = answerCache;
+        this.admissionPolicy = admissionPolicy;
+
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        AtomicInteger threadNumber = new AtomicInteger();
+        this.workers = new ThreadPoolExecutor(workerCount, workerCount, 60, TimeUnit.SECONDS, queue, r -> {
+            Thread t = new Thread(r, "chat-indexing-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }, backpressure(enqueueTimeoutMillis));
+
+        this.submitted = meterRegistry.counter("chat.indexing.tasks", "result", "submitted");
+        this.completed = meterRegistry.counter("chat.indexing.tasks", "result", "completed");
+        this.failed = meterRegistry.counter("chat.indexing.tasks", "result", "failed");
+        this.skipped = meterRegistry.counter("chat.indexing.tasks", "result", "skipped");
+        this.callerRuns = meterRegistry.counter("chat.indexing.caller.runs");
+        Gauge.builder("chat.indexing.queue.depth", queue, ArrayBlockingQueue::size).register(meterRegistry);
+        Gauge.builder("chat.indexing.in.flight", inFlight, AtomicInteger::get).register(meterRegistry);
+    }
+
+    /**
+     * 保存済みのチャットメッセージを索引付けのキューに入れる。
+     */
+    public void submit(ChatMessageEntity message) {
+        // n-gram インデックスは埋め込みを待たずにすぐ反映する
+        lexicalIndexManager.append(message);
+        answerCache.invalidateRoom(message.getRoomId());
+        submitted.increment();
+        workers.execute(() -> index(message));
+    }
+
+    public int queueDepth() {
+        return queue.size();
+    }
+
+    private void index(ChatMessageEntity message) {
+        inFlight.incrementAndGet();
+        try {
+            // 相づちや直前のメッセージの重複は埋め込まない（重複は参照先を embedding_references に残す）
+            EmbeddingAdmissionPolicy.Decision decision = admissionPolicy.evaluate(message);
+            if (!decision.admitted()) {
+                outboxService.markDone(message.getId());
+                skipped.increment();
+                logger.debug("埋め込みを省略しました: messageId={}, result={}, duplicateOf={}", message.getId(),
+                        decision.result(), decision.duplicateOf());
+                return;
+            }
+
+            // Vertex AI でベクトル生成。gemini-embedding-001 は1リクエスト1テキストなので、まとめずにこのワーカーから送る
+            // （待つのは similarity.embedding.request-timeout-ms まで。失敗・タイムアウトは outbox の再試行に回す）
+            List<Double> embedding = vertexAIService.generateEmbedding(message.getText());
+
+            // VectorStore（既定は Firestore）に保存
+            StoredVector vector = StoredVector.of(message, embedding, VertexAIService.MODEL_ID);
+            String docId = vectorStore.upsert(vector);
+
+            // 埋め込みを保存できたので、以降の近い重複はこのメッセージを参照させる
+            admissionPolicy.recordIndexed(message);
+
+            // 常駐インデックスにも反映（次の質問から VectorStore を読み直さずに検索できる）
+            roomVectorIndexManager.append(docId, message.getRoomId(), message.getText(), message.getSender(),
+                    vector.timestamp(), embedding);
+            // n-gram 側の反映時にも捨てているが、ベクトル側に入る前に作られた回答もここで捨てる
+            answerCache.invalidateRoom(message.getRoomId());
+
+            outboxService.markDone(message.getId());
+            completed.increment();
+            logger.info("Firestore 保存成功");
+        } catch (Exception e) {
+            failed.increment();
+            logger.error("Firestore保存失敗: messageId={}", message.getId(), e);
+            // outbox の行は残したまま、バックオフ後に EmbeddingOutboxRelay が再試行する
+            try {
+                outboxService.recordFailure(message.getId(), e);
+            } catch (Exception outboxError) {
+                logger.error("embedding_outbox の更新に失敗しました: messageId={}", message.getId(), outboxError);
+            }
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * 削除されたチャットメッセージを VectorStore と常駐インデックスから外す。
+     */
+    public void remove(ChatMessageEntity message) {
+        lexicalIndexManager.remove(message);
+        answerCache.invalidateRoom(message.getRoomId());
+        workers.execute(() -> {
+            String docId = String.valueOf(message.getId());
+            try {
+                vectorStore.delete(docId);
+                roomVectorIndexManager.remove(docId, message.getRoomId());
+                answerCache.invalidateRoom(message.getRoomId());
+                // このメッセージを参照していた重複メッセージは、参照先が無くなるので改めて埋め込む
+                for (Long orphan : admissionPolicy.forget(message)) {
+                    outboxService.enqueue(orphan);
+                }
+            } catch (Exception e) {
+                logger.error("埋め込みの削除に失敗しました: messageId={}", message.getId(), e);
+            }
+        });
+    }
+
+    private RejectedExecutionHandler backpressure(long enqueueTimeoutMillis) {
+        return (task, executor) -> {
+            try {
+                if (!executor.isShutdown() && queue.offer(task, enqueueTimeoutMillis, TimeUnit.MILLISECONDS)) {
+                    return;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            // キューが空かなければ送信スレッドで処理して速度を落とさせる
+            callerRuns.increment();
+            logger.warn("索引付けキューが満杯のため呼び出し元スレッドで処理します: depth={}", queue.size());
+            task.run();
+        };
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        workers.shutdown();
+        if (!workers.awaitTermination(10, TimeUnit.SECONDS)) {
+            logger.warn("索引付けの未処理タスクが残ったまま停止します: {}", queue.size());
+        }
+    }
+}
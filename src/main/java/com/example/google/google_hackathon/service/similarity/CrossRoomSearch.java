@@ -0,0 +1,210 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.example.google.google_hackathon.dto.RoomDTO;
+import com.example.google.google_hackathon.service.RoomService;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * ルームをまたいだ類似検索。ルーム一覧（/chat/rooms と同じ RoomService#getAllRooms。ルームは誰でも見られる）の
+ * ルーム（scope を指定したらその部分木のもの）ごとに、
+ * そのルームのメッセージだけを持つ常駐インデックス（RoomVectorIndexManager#getRoomIndex）を1つのシャードとし、
+ * 専用のスレッドで同時に採点して、シャードごとの上位 K 件を類似度順にまとめる。
+ *
+ * シャードはルームの境界で分かれていて重ならないので、ルームで絞り込む必要は無く、HNSW や月ごとの区分もそのまま使える。
+ * 期限（shard-timeout-ms）までに終わらなかったシャードは取り消して（順番待ちなら実行せず、実行中なら割り込む）結果に含めず、
+ * 失敗したシャードとともに partial にする。
+ */
+@Component
+public class CrossRoomSearch {
+
+    private static final Logger logger = LoggerFactory.getLogger(CrossRoomSearch.class);
+
+    private final RoomVectorIndexManager roomVectorIndexManager;
+    private final RoomService roomService;
+
+    private final Counter completedShards;
+    private final Counter timedOutShards;
+    private final Counter failedShards;
+
+    // シャードごとの期限（検索を始めてからのミリ秒。読み込み待ち・スレッドの空き待ちも含む）
+    @Value("${similarity.cross-room.shard-timeout-ms:2000}")
+    private long shardTimeoutMs;
+
+    // シャードを採点するスレッド数（ルーム数より少なければ順番待ちになる）
+    @Value("${similarity.cross-room.threads:8}")
+    private int threads;
+
+    private ExecutorService shardExecutor;
+
+    public CrossRoomSearch(RoomVectorIndexManager roomVectorIndexManager, RoomService roomService,
+            MeterRegistry meterRegistry) {
+        this.roomVectorIndexManager = roomVectorIndexManager;
+        this.roomService = roomService;
+        this.completedShards = meterRegistry.counter("similarity.cross-room.shards", "result", "ok");
+        this.timedOutShards = meterRegistry.counter("similarity.cross-room.shards", "result", "timeout");
+        this.failedShards = meterRegistry.counter("similarity.cross-room.shards", "result", "error");
+    }
+
+    @PostConstruct
+    public void startShardExecutor() {
+        AtomicInteger threadNumber = new AtomicInteger();
+        shardExecutor = Executors.newFixedThreadPool(Math.max(1, threads), r -> {
+            Thread t = new Thread(r, "similarity-cross-room-" + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void stopShardExecutor() {
+        if (shardExecutor != null) {
+            shardExecutor.shutdownNow();
+        }
+    }
+
+    /**
+     * 検索対象のシャード（Room.index）。ルーム一覧のうち、filter.roomSubtree() があればその部分木のもの、無ければすべて。
+     */
+    public List<String> shards(SearchFilter filter) {
+        List<String> shards = new ArrayList<>();
+        for (RoomDTO room : roomService.getAllRooms()) {
+            if (room.getIndex() != null && !room.getIndex().isBlank() && filter.matchesRoom(room.getIndex())) {
+                shards.add(room.getIndex());
+            }
+        }
+        Collections.sort(shards);
+        return shards;
+    }
+
+    /**
+     * 質問ベクトルでルームを同時に検索し、類似度の高い順に topK 件を返す。
+     */
+    public Result search(List<Double> query, int topK, SearchWindow window, SearchFilter filter) {
+        List<String> shards = shards(filter);
+        // シャードはルームそのものなので、ルームでは絞らない（送信者・期間の指定が無ければ HNSW・区分の打ち切りが効く）
+        SearchFilter shardFilter = new SearchFilter(filter.senders(), filter.fromMillis(), filter.toMillis(), null);
+        Map<String, Future<ShardResult>> futures = new LinkedHashMap<>();
+        for (String shard : shards) {
+            futures.put(shard, shardExecutor.submit(() -> searchShard(shard, query, topK, window, shardFilter)));
+        }
+
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(shardTimeoutMs);
+        List<List<RoomHit>> completed = new ArrayList<>();
+        List<String> timedOut = new ArrayList<>();
+        List<String> failed = new ArrayList<>();
+        for (Map.Entry<String, Future<ShardResult>> e : futures.entrySet()) {
+            Future<ShardResult> future = e.getValue();
+            ShardResult result;
+            try {
+                result = future.get(Math.max(0L, deadline - System.nanoTime()), TimeUnit.NANOSECONDS);
+            } catch (TimeoutException ex) {
+                // 順番待ちのものは実行されず、実行中のものは割り込まれる
+                future.cancel(true);
+                timedOut.add(e.getKey());
+                timedOutShards.increment();
+                continue;
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+                futures.values().forEach(f -> f.cancel(true));
+                throw new IllegalStateException("ルームをまたぐ検索が中断されました", ex);
+            } catch (ExecutionException ex) {
+                failed.add(e.getKey());
+                failedShards.increment();
+                logger.warn("ルームをまたぐ検索でシャードの検索に失敗しました: room={}", e.getKey(), ex.getCause());
+                continue;
+            }
+            completed.add(result.hits());
+            completedShards.increment();
+        }
+        if (!timedOut.isEmpty()) {
+            logger.info("ルームをまたぐ検索で {}ms までに終わらなかったシャードを取り消しました: {}", shardTimeoutMs, timedOut);
+        }
+        return new Result(merge(completed, topK), shards.size(), timedOut, failed);
+    }
+
+    private ShardResult searchShard(String shard, List<Double> query, int topK, SearchWindow window,
+            SearchFilter filter) throws Exception {
+        RoomVectorIndex index = roomVectorIndexManager.getRoomIndex(shard);
+        if (Thread.currentThread().isInterrupted()) {
+            // 読み込みの間に期限を過ぎて取り消された
+            throw new InterruptedException();
+        }
+        List<RoomVectorIndex.Hit> hits = index.search(query, topK, window, filter);
+        List<RoomHit> roomHits = new ArrayList<>(hits.size());
+        for (RoomVectorIndex.Hit hit : hits) {
+            roomHits.add(new RoomHit(shard, hit));
+        }
+        return new ShardResult(roomHits);
+    }
+
+    /**
+     * 類似度の高い順に並んだシャードごとの結果を、先頭同士を比べながら topK 件までまとめる。
+     */
+    static List<RoomHit> merge(List<List<RoomHit>> shardHits, int topK) {
+        // {シャードの番号, シャード内の位置}
+        PriorityQueue<int[]> heads = new PriorityQueue<>(Comparator.comparingDouble(
+                (int[] head) -> shardHits.get(head[0]).get(head[1]).hit().similarity()).reversed());
+        for (int i = 0; i < shardHits.size(); i++) {
+            if (!shardHits.get(i).isEmpty()) {
+                heads.add(new int[] { i, 0 });
+            }
+        }
+        List<RoomHit> merged = new ArrayList<>(Math.max(0, topK));
+        while (merged.size() < topK && !heads.isEmpty()) {
+            int[] head = heads.poll();
+            List<RoomHit> hits = shardHits.get(head[0]);
+            merged.add(hits.get(head[1]));
+            if (head[1] + 1 < hits.size()) {
+                heads.add(new int[] { head[0], head[1] + 1 });
+            }
+        }
+        return merged;
+    }
+
+    private record ShardResult(List<RoomHit> hits) {
+    }
+
+    /**
+     * どのルーム（Room.index）のメッセージかを付けた検索結果。
+     */
+    public record RoomHit(String roomId, RoomVectorIndex.Hit hit) {
+    }
+
+    /**
+     * ルームをまたぐ検索の結果。timedOutRooms / failedRooms のシャードは hits に含まれていない。
+     */
+    public record Result(List<RoomHit> hits, int shards, List<String> timedOutRooms, List<String> failedRooms) {
+
+        public boolean partial() {
+            return !timedOutRooms.isEmpty() || !failedRooms.isEmpty();
+        }
+
+        public Result withHits(List<RoomHit> hits) {
+            return new Result(hits, shards, timedOutRooms, failedRooms);
+        }
+    }
+}
@@ -0,0 +1,296 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.nio.charset.StandardCharsets;
+import java.text.Normalizer;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.example.google.google_hackathon.entity.ChatMessageEntity;
+import com.example.google.google_hackathon.entity.EmbeddingReferenceEntity;
+import com.example.google.google_hackathon.repository.EmbeddingReferenceRepository;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * 埋め込みを作る前に、作る価値のあるメッセージかを判定する。
+ * 相づち・スタンプだけのような短いメッセージ（trivial）は埋め込まない。
+ * 同じルームの最近のメッセージと SimHash がほぼ同じもの（duplicate）は埋め込まず、embedding_references に参照先を残す。
+ *
+ * 本文は NFKC 正規化・小文字化し、文字と数字だけを残したもので判定する（空白・記号・絵文字の違いは無視する）。
+ * 指紋はインスタンスのメモリにだけ持つので、再起動前のメッセージとの重複は見つけられない（その場合は普通に埋め込む）。
+ */
+@Component
+public class EmbeddingAdmissionPolicy {
+
+    private static final int SHINGLE_LENGTH = 3;
+
+    private final EmbeddingReferenceRepository referenceRepository;
+
+    private final Counter admittedCounter;
+    private final Counter trivialCounter;
+    private final Counter duplicateCounter;
+    private final AtomicLong evaluatedCount = new AtomicLong();
+    private final AtomicLong skippedCount = new AtomicLong();
+
+    @Value("${similarity.admission.enabled:true}")
+    private boolean enabled;
+
+    // 文字と数字がこれより少ないメッセージは埋め込まない
+    @Value("${similarity.admission.min-length:3}")
+    private int minLength;
+
+    // 使われている文字の種類がこれより少ないメッセージ（「wwww」「ーーー」など）は埋め込まない
+    @Value("${similarity.admission.min-distinct-chars:2}")
+    private int minDistinctChars;
+
+    // 長さに関係なく埋め込まない定型の相づち（正規化した本文と完全一致で判定する）
+    @Value("${similarity.admission.trivial-phrases:}")
+    private String trivialPhrases;
+
+    @Value("${similarity.admission.dedup.enabled:true}")
+    private boolean dedupEnabled;
+
+    // SimHash（64ビット）のハミング距離がこれ以下なら重複とみなす
+    @Value("${similarity.admission.dedup.max-distance:3}")
+    private int maxDistance;
+
+    // ルームごとに覚えておく直近のメッセージ数
+    @Value("${similarity.admission.dedup.window-per-room:500}")
+    private int windowPerRoom;
+
+    @Value("${similarity.admission.dedup.max-rooms:10000}")
+    private int maxRooms;
+
+    private volatile Set<String> trivialPhraseSet;
+
+    // ルームID → (メッセージID → 指紋)。最後に使ったルームから順に max-rooms まで残す。rooms で同期する
+    private final LinkedHashMap<String, LinkedHashMap<Long, Long>> rooms = new LinkedHashMap<>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, LinkedHashMap<Long, Long>> eldest) {
+            return size() > maxRooms;
+        }
+    };
+
+    public EmbeddingAdmissionPolicy(EmbeddingReferenceRepository referenceRepository, MeterRegistry meterRegistry) {
+        this.referenceRepository = referenceRepository;
+        this.admittedCounter = meterRegistry.counter("embedding.admission.messages", "result", "admitted");
+        this.trivialCounter = meterRegistry.counter("embedding.admission.messages", "result", "trivial");
+        this.duplicateCounter = meterRegistry.counter("embedding.admission.messages", "result", "duplicate");
+        Gauge.builder("embedding.admission.skip-rate", this, EmbeddingAdmissionPolicy::skipRate).register(meterRegistry);
+    }
+
+    /**
+     * メッセージを埋め込むかを判定する。重複なら参照を embedding_references に保存してから返す。
+     * 埋め込むと判定しただけでは参照先として覚えない（埋め込みに失敗すると、ベクトルの無いメッセージを参照してしまうので）。
+     * 保存し終わったら recordIndexed を呼ぶ。
+     */
+    public Decision evaluate(ChatMessageEntity message) {
+        if (!enabled) {
+            return Decision.ADMITTED;
+        }
+        evaluatedCount.incrementAndGet();
+        String text = normalize(message.getText());
+        if (isTrivial(text)) {
+            skippedCount.incrementAndGet();
+            trivialCounter.increment();
+            return Decision.TRIVIAL;
+        }
+        if (dedupEnabled && message.getId() != null && message.getRoomId() != null) {
+            long fingerprint = simHash(text);
+            Long duplicateOf = null;
+            int bestDistance = maxDistance + 1;
+            synchronized (rooms) {
+                // 参照先にできるのは埋め込みを保存し終わったメッセージ（recordIndexed）だけ
+                Map<Long, Long> room = rooms.getOrDefault(message.getRoomId(), new LinkedHashMap<>());
+                for (Map.Entry<Long, Long> e : room.entrySet()) {
+                    // 埋め込みに失敗して再試行されたメッセージは、自分自身を重複とみなさない
+                    if (e.getKey().equals(message.getId())) {
+                        continue;
+                    }
+                    int distance = Long.bitCount(fingerprint ^ e.getValue());
+                    if (distance < bestDistance) {
+                        bestDistance = distance;
+                        duplicateOf = e.getKey();
+                    }
+                }
+            }
+            if (duplicateOf != null) {
+                referenceRepository.save(new EmbeddingReferenceEntity(message.getId(), duplicateOf,
+                        message.getRoomId(), bestDistance, LocalDateTime.now()));
+                skippedCount.incrementAndGet();
+                duplicateCounter.increment();
+                return Decision.duplicate(duplicateOf);
+            }
+        }
+        admittedCounter.increment();
+        return Decision.ADMITTED;
+    }
+
+    /**
+     * 埋め込みを VectorStore に保存し終わったメッセージを、以降の重複判定の参照先として覚える。
+     */
+    public void recordIndexed(ChatMessageEntity message) {
+        if (!enabled || !dedupEnabled || message.getId() == null || message.getRoomId() == null) {
+            return;
+        }
+        long fingerprint = simHash(normalize(message.getText()));
+        synchronized (rooms) {
+            LinkedHashMap<Long, Long> room = rooms.computeIfAbsent(message.getRoomId(), k -> new LinkedHashMap<>());
+            room.remove(message.getId());
+            room.put(message.getId(), fingerprint);
+            if (room.size() > windowPerRoom) {
+                room.remove(room.keySet().iterator().next());
+            }
+        }
+    }
+
+    /**
+     * 削除されたメッセージの指紋と参照を捨てる。
+     *
+     * @return このメッセージを参照していた（埋め込みを持たない）メッセージのID。呼び出し元で索引付けし直す
+     */
+    public List<Long> forget(ChatMessageEntity message) {
+        if (message.getRoomId() != null) {
+            synchronized (rooms) {
+                LinkedHashMap<Long, Long> room = rooms.get(message.getRoomId());
+                if (room != null) {
+                    room.remove(message.getId());
+                }
+            }
+        }
+        if (referenceRepository.existsById(message.getId())) {
+            referenceRepository.deleteById(message.getId());
+        }
+        List<EmbeddingReferenceEntity> orphans = referenceRepository.findByDuplicateOf(message.getId());
+        referenceRepository.deleteAll(orphans);
+        List<Long> orphanIds = new ArrayList<>(orphans.size());
+        for (EmbeddingReferenceEntity orphan : orphans) {
+            orphanIds.add(orphan.getChatMessageId());
+        }
+        return orphanIds;
+    }
+
+    /**
+     * 指定したメッセージのうち、重複として参照だけを保存してあるもののID。
+     */
+    public Set<Long> referencedIds(Collection<Long> messageIds) {
+        Set<Long> ids = new HashSet<>();
+        for (EmbeddingReferenceEntity reference : referenceRepository.findAllById(messageIds)) {
+            ids.add(reference.getChatMessageId());
+        }
+        return ids;
+    }
+
+    private boolean isTrivial(String text) {
+        if (text.codePointCount(0, text.length()) < minLength) {
+            return true;
+        }
+        if (text.codePoints().distinct().count() < minDistinctChars) {
+            return true;
+        }
+        return trivialPhrases().contains(text);
+    }
+
+    private Set<String> trivialPhrases() {
+        Set<String> phrases = trivialPhraseSet;
+        if (phrases == null) {
+            phrases = Arrays.stream(trivialPhrases.split(","))
+                    .map(EmbeddingAdmissionPolicy::normalize)
+                    .filter(p -> !p.isEmpty())
+                    .collect(Collectors.toSet());
+            trivialPhraseSet = phrases;
+        }
+        return phrases;
+    }
+
+    private double skipRate() {
+        long evaluated = evaluatedCount.get();
+        return evaluated > 0 ? (double) skippedCount.get() / evaluated : 0.0;
+    }
+
+    /**
+     * NFKC 正規化・小文字化して、文字と数字だけを残す。
+     */
+    static String normalize(String text) {
+        if (text == null) {
+            return "";
+        }
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+        StringBuilder sb = new StringBuilder(normalized.length());
+        normalized.codePoints().filter(Character::isLetterOrDigit).forEach(sb::appendCodePoint);
+        return sb.toString();
+    }
+
+    /**
+     * 文字 3-gram の 64 ビット SimHash。本文が 3 文字未満なら本文全体を1つの shingle にする。
+     */
+    static long simHash(String text) {
+        int[] codePoints = text.codePoints().toArray();
+        int[] weights = new int[64];
+        int shingles = Math.max(1, codePoints.length - SHINGLE_LENGTH + 1);
+        for (int i = 0; i < shingles; i++) {
+            long hash = hash(codePoints, i, Math.min(codePoints.length, i + SHINGLE_LENGTH));
+            for (int bit = 0; bit < 64; bit++) {
+                weights[bit] += ((hash >>> bit) & 1L) != 0 ? 1 : -1;
+            }
+        }
+        long fingerprint = 0L;
+        for (int bit = 0; bit < 64; bit++) {
+            if (weights[bit] > 0) {
+                fingerprint |= 1L << bit;
+            }
+        }
+        return fingerprint;
+    }
+
+    // FNV-1a（UTF-8 のバイト列）を murmur3 の fmix64 で混ぜたもの
+    private static long hash(int[] codePoints, int from, int to) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : new String(codePoints, from, to - from).getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+
+    /**
+     * 判定結果。duplicateOf は DUPLICATE のときの参照先のメッセージID。
+     */
+    public record Decision(Result result, Long duplicateOf) {
+
+        static final Decision ADMITTED = new Decision(Result.ADMITTED, null);
+        static final Decision TRIVIAL = new Decision(Result.TRIVIAL, null);
+
+        static Decision duplicate(Long duplicateOf) {
+            return new Decision(Result.DUPLICATE, duplicateOf);
+        }
+
+        public boolean admitted() {
+            return result == Result.ADMITTED;
+        }
+    }
+
+    public enum Result {
+        ADMITTED, TRIVIAL, DUPLICATE
+    }
+}
@@ -0,0 +1,424 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import com.example.google.google_hackathon.entity.ChatMessageEntity;
+import com.example.google.google_hackathon.entity.EmbeddingBackfillJobEntity;
+import com.example.google.google_hackathon.repository.ChatMessageRepository;
+import com.example.google.google_hackathon.repository.EmbeddingBackfillJobRepository;
+import com.example.google.google_hackathon.service.VertexAIService;
+import com.example.google.google_hackathon.service.similarity.store.StoredVector;
+import com.example.google.google_hackathon.service.similarity.store.VectorStore;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * chat_messages を主キー順に chunk-size 件ずつ読み、VertexAIService で埋め込んで VectorStore にまとめて保存するジョブ。
+ * 全件を一度にメモリへ載せず、embedding_outbox に全件を積むこともしない。
+ *
+ * missing: VectorStore に無いメッセージだけ埋め込む / all: すべて埋め込み直す（次元数を変えたあとなど）。
+ * ベクトルの無いメッセージは、どちらも EmbeddingAdmissionPolicy で省略されるものは埋め込まない
+ * （all でもベクトルのあるメッセージは判定し直さない）。
+ * 進捗（処理済みの chat_messages.id）は chunk ごとに embedding_backfill_jobs へ保存し、止めたり落ちたりしても続きから再開できる。
+ * 対象は開始時点の最大IDまで（それ以降のメッセージは通常の索引付けが処理する）。
+ * 始める前に LegacyEmbeddingMigration で自動採番IDの古い chat_embeddings をメッセージIDへ移す（移せなければジョブは失敗にする）。
+ * Vertex AI の呼び出しは rate-per-second（テキスト数/秒）で全体を絞る。埋め込みに失敗したメッセージは embedding_outbox に回す。
+ */
+@Component
+public class EmbeddingBackfillJob {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddingBackfillJob.class);
+
+    private final ChatMessageRepository chatMessageRepository;
+    private final EmbeddingBackfillJobRepository jobRepository;
+    private final VertexAIService vertexAIService;
+    private final VectorStore vectorStore;
+    private final RoomVectorIndexManager roomVectorIndexManager;
+    private final SemanticAnswerCache answerCache;
+    private final EmbeddingOutboxService outboxService;
+    private final EmbeddingAdmissionPolicy admissionPolicy;
+    private final LegacyEmbeddingMigration legacyMigration;
+
+    private final Counter embeddedCounter;
+    private final Counter skippedCounter;
+    private final Counter failedCounter;
+
+    @Value("${similarity.backfill.chunk-size:200}")
+    private int chunkSize;
+
+    // 1秒あたりに埋め込むテキスト数の上限（0 以下なら制限なし）
+    @Value("${similarity.backfill.rate-per-second:50}")
+    private double ratePerSecond;
+
+    // RUNNING のまま updated_at がこれだけ進んでいないジョブは、実行していたインスタンスが落ちたとみなして再開できる
+    @Value("${similarity.backfill.stale-ms:300000}")
+    private long staleMillis;
+
+    // 1件の埋め込みを待つ上限。超えたものは失敗として outbox の再試行に回す
+    @Value("${similarity.backfill.embedding-timeout-ms:60000}")
+    private long embeddingTimeoutMillis;
+
+    private final ExecutorService executor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "embedding-backfill");
+        t.setDaemon(true);
+        return t;
+    });
+
+    // このインスタンスで実行中のジョブ（無ければ null）
+    private volatile Run current;
+
+    public EmbeddingBackfillJob(ChatMessageRepository chatMessageRepository,
+            EmbeddingBackfillJobRepository jobRepository, VertexAIService vertexAIService, VectorStore vectorStore,
+            RoomVectorIndexManager roomVectorIndexManager, SemanticAnswerCache answerCache,
+            EmbeddingOutboxService outboxService, EmbeddingAdmissionPolicy admissionPolicy,
+            LegacyEmbeddingMigration legacyMigration, MeterRegistry meterRegistry) {
+        this.chatMessageRepository = chatMessageRepository;
+        this.jobRepository = jobRepository;
+        this.vertexAIService = vertexAIService;
+        this.vectorStore = vectorStore;
+        this.roomVectorIndexManager = roomVectorIndexManager;
+        this.answerCache = answerCache;
+        this.outboxService = outboxService;
+        this.admissionPolicy = admissionPolicy;
+        this.legacyMigration = legacyMigration;
+        this.embeddedCounter = meterRegistry.counter("embedding.backfill.messages", "result", "embedded");
+        this.skippedCounter = meterRegistry.counter("embedding.backfill.messages", "result", "skipped");
+        this.failedCounter = meterRegistry.counter("embedding.backfill.messages", "result", "failed");
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        Run run = current;
+        if (run != null) {
+            run.stopRequested = true;
+        }
+        executor.shutdown();
+    }
+
+    /**
+     * 新しいジョブを始める。
+     *
+     * @throws IllegalArgumentException mode が missing / all 以外のとき
+     * @throws IllegalStateException    他のジョブが実行中のとき
+     */
+    public synchronized EmbeddingBackfillJobEntity start(String mode) {
+        if (!EmbeddingBackfillJobEntity.MODE_MISSING.equals(mode) && !EmbeddingBackfillJobEntity.MODE_ALL.equals(mode)) {
+            throw new IllegalArgumentException("mode は missing か all を指定してください: " + mode);
+        }
+        ensureNotRunning();
+        Long maxId = chatMessageRepository.findMaxId();
+        EmbeddingBackfillJobEntity job = jobRepository.save(
+                new EmbeddingBackfillJobEntity(mode, maxId != null ? maxId : 0L, LocalDateTime.now()));
+        launch(job);
+        return job;
+    }
+
+    /**
+     * VectorStore を空にしてから mode=missing のジョブを始める（chat_messages からの作り直し）。
+     * 実行中のジョブがあれば消さずに例外にする。VectorStore が supportsClear でなければ呼ばない。
+     *
+     * @throws IllegalStateException 他のジョブが実行中のとき
+     */
+    public synchronized EmbeddingBackfillJobEntity rebuild() throws Exception {
+        ensureNotRunning();
+        vectorStore.clear();
+        roomVectorIndexManager.invalidateAll();
+        logger.info("VectorStore を空にしました。chat_messages から埋め込み直します: store={}", vectorStore.name());
+        return start(EmbeddingBackfillJobEntity.MODE_MISSING);
+    }
+
+    /**
+     * 止めた（または落ちて止まった）直近のジョブを、保存済みの位置から再開する。
+     *
+     * @throws IllegalStateException 再開するジョブが無いか、実行中のとき
+     */
+    public synchronized EmbeddingBackfillJobEntity resume() {
+        ensureNotRunning();
+        EmbeddingBackfillJobEntity job = jobRepository
+                .findFirstByStatusInOrderByIdDesc(List.of(EmbeddingBackfillJobEntity.STATUS_RUNNING,
+                        EmbeddingBackfillJobEntity.STATUS_PAUSED))
+                .orElseThrow(() -> new IllegalStateException("再開できるジョブがありません"));
+        job.setStatus(EmbeddingBackfillJobEntity.STATUS_RUNNING);
+        job.setLastError(null);
+        job.setUpdatedAt(LocalDateTime.now());
+        job = jobRepository.save(job);
+        launch(job);
+        return job;
+    }
+
+    /**
+     * 実行中のジョブを、今の chunk を書き終えたところで止める（PAUSED になり、resume で続きから再開できる）。
+     *
+     * @return 止めるジョブがあれば true
+     */
+    public boolean stop() {
+        Run run = current;
+        if (run == null) {
+            return false;
+        }
+        run.stopRequested = true;
+        return true;
+    }
+
+    /**
+     * 直近のジョブの進捗。このインスタンスで実行中なら、今回の実行での処理速度（件/秒）も含める。
+     */
+    public Map<String, Object> status() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        Optional<EmbeddingBackfillJobEntity> latest = jobRepository.findFirstByOrderByIdDesc();
+        if (latest.isEmpty()) {
+            status.put("status", "NONE");
+            return status;
+        }
+        EmbeddingBackfillJobEntity job = latest.get();
+        status.put("id", job.getId());
+        status.put("mode", job.getMode());
+        status.put("status", job.getStatus());
+        status.put("lastMessageId", job.getLastMessageId());
+        status.put("maxMessageId", job.getMaxMessageId());
+        status.put("processed", job.getProcessed());
+        status.put("embedded", job.getEmbedded());
+        status.put("skipped", job.getSkipped());
+        status.put("failed", job.getFailed());
+        status.put("remaining",
+                chatMessageRepository.countByIdGreaterThanAndIdLessThanEqual(job.getLastMessageId(), job.getMaxMessageId()));
+        status.put("startedAt", job.getStartedAt());
+        status.put("updatedAt", job.getUpdatedAt());
+        status.put("finishedAt", job.getFinishedAt());
+        status.put("lastError", job.getLastError());
+        Run run = current;
+        if (run != null && run.jobId == job.getId()) {
+            double seconds = Math.max(1e-3, (System.nanoTime() - run.startedNanos) / 1e9);
+            status.put("running", true);
+            status.put("messagesPerSecond", run.processed / seconds);
+            status.put("embeddingsPerSecond", run.embedded / seconds);
+        } else {
+            status.put("running", false);
+        }
+        return status;
+    }
+
+    private void ensureNotRunning() {
+        if (current != null) {
+            throw new IllegalStateException("埋め込みジョブは実行中です");
+        }
+        // 他のインスタンスで動いているジョブ（updated_at が進んでいるもの）があれば始めない
+        LocalDateTime staleBefore = LocalDateTime.now().minus(Duration.ofMillis(staleMillis));
+        jobRepository.findFirstByStatusInOrderByIdDesc(List.of(EmbeddingBackfillJobEntity.STATUS_RUNNING))
+                .filter(job -> job.getUpdatedAt().isAfter(staleBefore))
+                .ifPresent(job -> {
+                    throw new IllegalStateException("他のインスタンスで埋め込みジョブが実行中です: id=" + job.getId());
+                });
+    }
+
+    private void launch(EmbeddingBackfillJobEntity job) {
+        Run run = new Run(job.getId());
+        current = run;
+        executor.execute(() -> {
+            try {
+                execute(job, run);
+            } finally {
+                current = null;
+            }
+        });
+    }
+
+    private void execute(EmbeddingBackfillJobEntity job, Run run) {
+        logger.info("埋め込みジョブを開始します: id={}, mode={}, from={}, to={}", job.getId(), job.getMode(),
+                job.getLastMessageId(), job.getMaxMessageId());
+        RateLimiter rateLimiter = new RateLimiter(ratePerSecond);
+        boolean reembed = EmbeddingBackfillJobEntity.MODE_ALL.equals(job.getMode());
+        try {
+            // 自動採番IDの古いドキュメントはメッセージIDで引けないので、先に移しておく（移さないと missing では全件が
+            // 埋め込み直しの対象になり、all では古いドキュメントが残って同じメッセージが二重になる）
+            legacyMigration.migrate();
+            while (!run.stopRequested) {
+                List<ChatMessageEntity> chunk = chatMessageRepository.findByIdGreaterThanOrderByIdAsc(
+                        job.getLastMessageId(), PageRequest.of(0, Math.max(1, chunkSize)));
+                chunk.removeIf(message -> message.getId() > job.getMaxMessageId());
+                if (chunk.isEmpty()) {
+                    break;
+                }
+                processChunk(job, chunk, reembed, rateLimiter, run);
+            }
+            job.setStatus(run.stopRequested
+                    ? EmbeddingBackfillJobEntity.STATUS_PAUSED
+                    : EmbeddingBackfillJobEntity.STATUS_DONE);
+            if (!run.stopRequested) {
+                job.setFinishedAt(LocalDateTime.now());
+            }
+        } catch (Exception e) {
+            logger.error("埋め込みジョブが失敗しました: id={}, lastMessageId={}", job.getId(), job.getLastMessageId(), e);
+            job.setStatus(EmbeddingBackfillJobEntity.STATUS_FAILED);
+            job.setLastError(e.toString());
+        }
+        job.setUpdatedAt(LocalDateTime.now());
+        jobRepository.save(job);
+        logger.info("埋め込みジョブを終了しました: id={}, status={}, processed={}, embedded={}, skipped={}, failed={}",
+                job.getId(), job.getStatus(), job.getProcessed(), job.getEmbedded(), job.getSkipped(), job.getFailed());
+    }
+
+    private void processChunk(EmbeddingBackfillJobEntity job, List<ChatMessageEntity> chunk, boolean reembed,
+            RateLimiter rateLimiter, Run run) throws Exception {
+        List<ChatMessageEntity> targets = new ArrayList<>(chunk.size());
+        for (ChatMessageEntity message : chunk) {
+            if (message.getText() != null && !message.getText().isBlank()) {
+                targets.add(message);
+            }
+        }
+        // ドキュメントIDはメッセージID。missing では既にあるものは飛ばす
+        Set<String> existing = Set.of();
+        if (!targets.isEmpty()) {
+            List<String> docIds = new ArrayList<>(targets.size());
+            for (ChatMessageEntity message : targets) {
+                docIds.add(String.valueOf(message.getId()));
+            }
+            existing = vectorStore.fetch(docIds).keySet();
+        }
+        if (!reembed) {
+            Set<String> skip = existing;
+            targets.removeIf(message -> skip.contains(String.valueOf(message.getId())));
+        }
+        // 通常の索引付けと同じ判定で、相づちと重複は埋め込まない（重複として参照だけ保存済みのものも飛ばす）。
+        // all でも既にベクトルのあるものは判定し直さずに埋め込み直す（判定し直して重複になると、参照を保存しても
+        // 古いベクトルが残るうえ、そのメッセージを参照している他のメッセージの参照先がベクトルを失う）
+        List<ChatMessageEntity> unindexed = new ArrayList<>(targets.size());
+        for (ChatMessageEntity message : targets) {
+            if (!existing.contains(String.valueOf(message.getId()))) {
+                unindexed.add(message);
+            }
+        }
+        if (!unindexed.isEmpty()) {
+            List<Long> messageIds = new ArrayList<>(unindexed.size());
+            for (ChatMessageEntity message : unindexed) {
+                messageIds.add(message.getId());
+            }
+            Set<Long> referenced = admissionPolicy.referencedIds(messageIds);
+            Set<Long> rejected = new HashSet<>();
+            for (ChatMessageEntity message : unindexed) {
+                if (referenced.contains(message.getId()) || !admissionPolicy.evaluate(message).admitted()) {
+                    rejected.add(message.getId());
+                }
+            }
+            targets.removeIf(message -> rejected.contains(message.getId()));
+        }
+
+        rateLimiter.acquire(targets.size());
+        // chunk のテキストを max-concurrent-requests 本ずつ同時に送り、テキストごとの結果を待つ
+        List<String> texts = new ArrayList<>(targets.size());
+        for (ChatMessageEntity message : targets) {
+            texts.add(message.getText());
+        }
+        List<CompletableFuture<List<Double>>> futures = vertexAIService.generateEmbeddingsAsync(texts);
+        List<StoredVector> vectors = new ArrayList<>(targets.size());
+        List<ChatMessageEntity> embedded = new ArrayList<>(targets.size());
+        int failed = 0;
+        for (int i = 0; i < targets.size(); i++) {
+            ChatMessageEntity message = targets.get(i);
+            try {
+                vectors.add(StoredVector.of(message,
+                        futures.get(i).get(embeddingTimeoutMillis, TimeUnit.MILLISECONDS), VertexAIService.MODEL_ID));
+                embedded.add(message);
+            } catch (Exception e) {
+                // 通常の索引付けと同じく、バックオフしながら EmbeddingOutboxRelay に再試行させる
+                failed++;
+                job.setLastError("messageId=" + message.getId() + ": " + e);
+                outboxService.enqueue(message.getId());
+            }
+        }
+
+        // 保存に失敗したら例外のまま抜ける（チェックポイントは進めないので、再開するとこの chunk からやり直す）
+        vectorStore.upsertAll(vectors);
+        // 保存できたものだけ、以降の重複判定の参照先にする
+        embedded.forEach(admissionPolicy::recordIndexed);
+        Set<String> rooms = new HashSet<>();
+        for (StoredVector vector : vectors) {
+            roomVectorIndexManager.apply(vector, reembed);
+            rooms.add(vector.roomId());
+        }
+        rooms.forEach(answerCache::invalidateRoom);
+
+        int skipped = chunk.size() - targets.size();
+        job.setLastMessageId(chunk.get(chunk.size() - 1).getId());
+        job.setProcessed(job.getProcessed() + chunk.size());
+        job.setEmbedded(job.getEmbedded() + vectors.size());
+        job.setSkipped(job.getSkipped() + skipped);
+        job.setFailed(job.getFailed() + failed);
+        job.setUpdatedAt(LocalDateTime.now());
+        jobRepository.save(job);
+
+        run.processed += chunk.size();
+        run.embedded += vectors.size();
+        embeddedCounter.increment(vectors.size());
+        skippedCounter.increment(skipped);
+        failedCounter.increment(failed);
+    }
+
+    /**
+     * このインスタンスでの1回の実行。
+     */
+    private static final class Run {
+        final long jobId;
+        final long startedNanos = System.nanoTime();
+        volatile boolean stopRequested = false;
+        volatile long processed = 0;
+        volatile long embedded = 0;
+
+        Run(long jobId) {
+            this.jobId = jobId;
+        }
+    }
+
+    /**
+     * 1秒あたり permitsPerSecond 件に絞るトークンバケット（バケットの大きさは1秒分）。
+     */
+    private static final class RateLimiter {
+        private final double permitsPerSecond;
+        private double available;
+        private long lastRefill = System.nanoTime();
+
+        RateLimiter(double permitsPerSecond) {
+            this.permitsPerSecond = permitsPerSecond;
+            this.available = permitsPerSecond;
+        }
+
+        void acquire(int permits) throws InterruptedException {
+            if (permitsPerSecond <= 0 || permits <= 0) {
+                return;
+            }
+            refill();
+            available -= permits;
+            if (available < 0) {
+                // 足りない分が貯まるまで待つ（chunk が1秒分より大きくても、平均の速度は上限に収まる）
+                TimeUnit.NANOSECONDS.sleep((long) (-available / permitsPerSecond * 1e9));
+                refill();
+            }
+        }
+
+        private void refill() {
+            long now = System.nanoTime();
+            available = Math.min(permitsPerSecond, available + (now - lastRefill) / 1e9 * permitsPerSecond);
+            lastRefill = now;
+        }
+    }
+}
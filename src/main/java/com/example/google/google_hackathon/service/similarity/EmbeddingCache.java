@@ -0,0 +1,322 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * 埋め込みベクトルのキャッシュ。キーは「モデルID + 正規化したテキスト」の SHA-256。
+ * メモリ上はバイト数と件数の上限付き LRU、設定すればディスクにも保存して再起動後も使う。
+ * ディスク側もバイト数の上限付き LRU（最後に使った順は更新日時で持つので、再起動後も引き継ぐ）。
+ */
+@Component
+public class EmbeddingCache {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddingCache.class);
+
+    // 1エントリあたりの固定オーバーヘッド（キー文字列・配列ヘッダ・LinkedHashMap のノード）の概算
+    private static final long ENTRY_OVERHEAD_BYTES = 200;
+
+    private final long maxBytes;
+    private final int maxEntries;
+    private final Path diskDir;
+    private final long diskMaxBytes;
+
+    private final LinkedHashMap<String, float[]> entries = new LinkedHashMap<>(256, 0.75f, true);
+    private long weightBytes = 0;
+
+    // ディスク上のファイル（キー → バイト数）。最後に使った順に並べ、diskEntries で同期する
+    private final LinkedHashMap<String, Long> diskEntries = new LinkedHashMap<>(256, 0.75f, true);
+    private long diskBytes = 0;
+
+    private final Counter memoryHits;
+    private final Counter diskHits;
+    private final Counter misses;
+    private final Counter evictions;
+    private final Counter diskEvictions;
+
+    public EmbeddingCache(MeterRegistry meterRegistry,
+            @Value("${similarity.embedding-cache.max-bytes:67108864}") long maxBytes,
+            @Value("${similarity.embedding-cache.max-entries:20000}") int maxEntries,
+            @Value("${similarity.embedding-cache.disk-dir:}") String diskDir,
+            @Value("${similarity.embedding-cache.disk-max-bytes:1073741824}") long diskMaxBytes) {
+        this.maxBytes = maxBytes;
+        this.maxEntries = maxEntries;
+        this.diskDir = diskDir == null || diskDir.isBlank() ? null : Paths.get(diskDir);
+        this.diskMaxBytes = diskMaxBytes;
+
+        this.memoryHits = meterRegistry.counter("embedding.cache.requests", "result", "hit", "tier", "memory");
+        this.diskHits = meterRegistry.counter("embedding.cache.requests", "result", "hit", "tier", "disk");
+        this.misses = meterRegistry.counter("embedding.cache.requests", "result", "miss", "tier", "none");
+        this.evictions = meterRegistry.counter("embedding.cache.evictions");
+        this.diskEvictions = meterRegistry.counter("embedding.cache.disk.evictions");
+        Gauge.builder("embedding.cache.entries", this, EmbeddingCache::size).register(meterRegistry);
+        Gauge.builder("embedding.cache.weight", this, EmbeddingCache::weightBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        Gauge.builder("embedding.cache.disk.weight", this, EmbeddingCache::diskBytes)
+                .baseUnit("bytes")
+                .register(meterRegistry);
+        loadDiskIndex();
+    }
+
+    /**
+     * キャッシュ済みの埋め込みを返す。無ければ null。
+     */
+    public List<Double> get(String modelId, String text) {
+        String key = keyOf(modelId, text);
+        float[] vector;
+        synchronized (this) {
+            vector = entries.get(key);
+        }
+        if (vector != null) {
+            memoryHits.increment();
+            return toList(vector);
+        }
+        vector = readFromDisk(key);
+        if (vector != null) {
+            diskHits.increment();
+            putInMemory(key, vector);
+            return toList(vector);
+        }
+        misses.increment();
+        return null;
+    }
+
+    public void put(String modelId, String text, List<Double> embedding) {
+        if (embedding == null || embedding.isEmpty()) {
+            return;
+        }
+        String key = keyOf(modelId, text);
+        float[] vector = new float[embedding.size()];
+        for (int i = 0; i < vector.length; i++) {
+            vector[i] = embedding.get(i).floatValue();
+        }
+        putInMemory(key, vector);
+        writeToDisk(key, vector);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized long weightBytes() {
+        return weightBytes;
+    }
+
+    public long diskBytes() {
+        synchronized (diskEntries) {
+            return diskBytes;
+        }
+    }
+
+    private synchronized void putInMemory(String key, float[] vector) {
+        float[] previous = entries.put(key, vector);
+        if (previous != null) {
+            weightBytes -= weightOf(previous);
+        }
+        weightBytes += weightOf(vector);
+
+        Iterator<Map.Entry<String, float[]>> it = entries.entrySet().iterator();
+        while ((weightBytes > maxBytes || entries.size() > maxEntries) && it.hasNext()) {
+            Map.Entry<String, float[]> eldest = it.next();
+            weightBytes -= weightOf(eldest.getValue());
+            it.remove();
+            evictions.increment();
+        }
+    }
+
+    private float[] readFromDisk(String key) {
+        if (diskDir == null) {
+            return null;
+        }
+        synchronized (diskEntries) {
+            // アクセス順を更新する
+            if (diskEntries.get(key) == null) {
+                return null;
+            }
+        }
+        Path file = diskPath(key);
+        try {
+            // 再起動後も最後に使った順で消せるように、更新日時を使った時刻にする
+            Files.setLastModifiedTime(file, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException e) {
+            // 消されていれば下の読み込みで扱う
+        }
+        try (InputStream in = Files.newInputStream(file); DataInputStream data = new DataInputStream(in)) {
+            int dimension = data.readInt();
+            float[] vector = new float[dimension];
+            for (int i = 0; i < dimension; i++) {
+                vector[i] = data.readFloat();
+            }
+            return vector;
+        } catch (IOException e) {
+            logger.warn("埋め込みキャッシュの読み込みに失敗しました: {}", file, e);
+            forgetOnDisk(key);
+            return null;
+        }
+    }
+
+    private void writeToDisk(String key, float[] vector) {
+        if (diskDir == null) {
+            return;
+        }
+        Path file = diskPath(key);
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = Files.createTempFile(file.getParent(), key, ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp); DataOutputStream data = new DataOutputStream(out)) {
+                data.writeInt(vector.length);
+                for (float v : vector) {
+                    data.writeFloat(v);
+                }
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            logger.warn("埋め込みキャッシュの書き込みに失敗しました: {}", file, e);
+            return;
+        }
+        List<String> evicted = new ArrayList<>();
+        synchronized (diskEntries) {
+            Long previous = diskEntries.put(key, fileBytesOf(vector));
+            if (previous != null) {
+                diskBytes -= previous;
+            }
+            diskBytes += fileBytesOf(vector);
+            Iterator<Map.Entry<String, Long>> it = diskEntries.entrySet().iterator();
+            while (diskBytes > diskMaxBytes && it.hasNext()) {
+                Map.Entry<String, Long> eldest = it.next();
+                if (eldest.getKey().equals(key)) {
+                    continue;
+                }
+                diskBytes -= eldest.getValue();
+                it.remove();
+                evicted.add(eldest.getKey());
+            }
+        }
+        // ファイルの削除はロックの外で行う
+        for (String eldest : evicted) {
+            try {
+                Files.deleteIfExists(diskPath(eldest));
+                diskEvictions.increment();
+            } catch (IOException e) {
+                logger.warn("埋め込みキャッシュの削除に失敗しました: {}", diskPath(eldest), e);
+            }
+        }
+    }
+
+    private void forgetOnDisk(String key) {
+        synchronized (diskEntries) {
+            Long previous = diskEntries.remove(key);
+            if (previous != null) {
+                diskBytes -= previous;
+            }
+        }
+    }
+
+    // 起動時にディスク上のファイルを更新日時の古い順に読み込む（上限を超えていれば次の書き込みで古いものから消える）
+    private void loadDiskIndex() {
+        if (diskDir == null || !Files.isDirectory(diskDir)) {
+            return;
+        }
+        List<Path> files;
+        try (Stream<Path> walk = Files.walk(diskDir, 2)) {
+            files = walk.filter(f -> f.getFileName().toString().endsWith(".bin")).collect(Collectors.toList());
+        } catch (IOException e) {
+            logger.warn("埋め込みキャッシュのディレクトリを読めませんでした: {}", diskDir, e);
+            return;
+        }
+        Map<Path, Long> modified = new HashMap<>();
+        for (Path file : files) {
+            try {
+                modified.put(file, Files.getLastModifiedTime(file).toMillis());
+            } catch (IOException e) {
+                // 読み込み中に消えたファイルは数えない
+            }
+        }
+        List<Path> ordered = new ArrayList<>(modified.keySet());
+        ordered.sort(Comparator.comparingLong(modified::get));
+        synchronized (diskEntries) {
+            for (Path file : ordered) {
+                try {
+                    long bytes = Files.size(file);
+                    String name = file.getFileName().toString();
+                    diskEntries.put(name.substring(0, name.length() - ".bin".length()), bytes);
+                    diskBytes += bytes;
+                } catch (IOException e) {
+                    // 同上
+                }
+            }
+        }
+        logger.info("埋め込みキャッシュ（ディスク）: {} 件, {}KB", diskEntries.size(), diskBytes / 1024);
+    }
+
+    private Path diskPath(String key) {
+        return diskDir.resolve(key.substring(0, 2)).resolve(key + ".bin");
+    }
+
+    /**
+     * 全角/半角の揺れと前後・連続する空白を正規化してからハッシュする。
+     */
+    static String keyOf(String modelId, String text) {
+        String normalized = Normalizer.normalize(text == null ? "" : text, Normalizer.Form.NFKC)
+                .strip()
+                .replaceAll("\\s+", " ");
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            digest.update(modelId.getBytes(StandardCharsets.UTF_8));
+            digest.update((byte) 0);
+            digest.update(normalized.getBytes(StandardCharsets.UTF_8));
+            return HexFormat.of().formatHex(digest.digest());
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // ディスク上のファイルの大きさ（次元数の int と float の配列）
+    private static long fileBytesOf(float[] vector) {
+        return Integer.BYTES + (long) vector.length * Float.BYTES;
+    }
+
+    private static long weightOf(float[] vector) {
+        return ENTRY_OVERHEAD_BYTES + (long) vector.length * Float.BYTES;
+    }
+
+    private static List<Double> toList(float[] vector) {
+        List<Double> list = new ArrayList<>(vector.length);
+        for (float v : vector) {
+            list.add((double) v);
+        }
+        return list;
+    }
+}
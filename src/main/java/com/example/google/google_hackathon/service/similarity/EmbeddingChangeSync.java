@@ -0,0 +1,300 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.example.google.google_hackathon.service.FirestoreService;
+import com.example.google.google_hackathon.service.similarity.store.FirestoreVectorStore;
+import com.example.google.google_hackathon.service.similarity.store.StoredVector;
+import com.example.google.google_hackathon.service.similarity.store.VectorStore;
+import com.google.cloud.Timestamp;
+import com.google.cloud.firestore.DocumentChange;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.FirestoreException;
+import com.google.cloud.firestore.ListenerRegistration;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+import com.google.cloud.firestore.QuerySnapshot;
+
+import jakarta.annotation.PostConstruct;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * 他のインスタンスで保存・削除された chat_embeddings の変更を、このインスタンスの常駐インデックスへ反映する。
+ * ChatMessageListener は保存を処理したインスタンスでしか動かないので、複数台構成ではこれが無いと索引がずれていく。
+ *
+ * listener: updated_at がチェックポイント以降のドキュメントをリアルタイムリスナーで購読する（失敗したら polling に切り替え、
+ * resubscribe-interval-ms ごとに購読し直す）。polling: (updated_at, ドキュメントID) の順にチェックポイントの続きから取得する。
+ * polling では削除が見えないので、削除はそのルームを次に読み込み直すまで残る。
+ * チェックポイントはファイルに保存し、再起動後はその続きから追う。同じドキュメントIDは常駐インデックス側で重複しない。
+ */
+@Component
+public class EmbeddingChangeSync {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddingChangeSync.class);
+
+    // チェックポイントが無いときは起動時刻からこの分だけ遡って追う（サーバー時刻とのずれの吸収）
+    private static final long INITIAL_LOOKBACK_MILLIS = 60_000L;
+
+    private final Firestore db;
+    private final VectorStore vectorStore;
+    private final RoomVectorIndexManager roomVectorIndexManager;
+    private final LexicalIndexManager lexicalIndexManager;
+    private final SemanticAnswerCache answerCache;
+
+    @Value("${similarity.sync.enabled:false}")
+    private boolean enabled;
+
+    // listener: リアルタイムリスナー（使えなければ polling） / polling: 定期的に取得する
+    @Value("${similarity.sync.mode:listener}")
+    private String mode;
+
+    @Value("${similarity.sync.poll-interval-ms:5000}")
+    private long pollIntervalMillis;
+
+    @Value("${similarity.sync.batch-size:500}")
+    private int batchSize;
+
+    // リスナーが保持する結果が増え続けないよう、この間隔で最新のチェックポイントから購読し直す
+    @Value("${similarity.sync.resubscribe-interval-ms:600000}")
+    private long resubscribeIntervalMillis;
+
+    @Value("${similarity.sync.checkpoint-file:./data/embedding-sync.checkpoint}")
+    private String checkpointFile;
+
+    private ScheduledExecutorService scheduler;
+    private volatile ListenerRegistration registration;
+    // リスナーが使えない間（または polling モード）は true
+    private volatile boolean polling;
+
+    // 以下は this で同期する
+    private Checkpoint checkpoint;
+    private boolean checkpointDirty = false;
+
+    public EmbeddingChangeSync(Firestore db, VectorStore vectorStore, RoomVectorIndexManager roomVectorIndexManager,
+            LexicalIndexManager lexicalIndexManager, SemanticAnswerCache answerCache) {
+        this.db = db;
+        this.vectorStore = vectorStore;
+        this.roomVectorIndexManager = roomVectorIndexManager;
+        this.lexicalIndexManager = lexicalIndexManager;
+        this.answerCache = answerCache;
+    }
+
+    @PostConstruct
+    public void start() {
+        if (!enabled) {
+            return;
+        }
+        if (!"firestore".equals(vectorStore.name())) {
+            // memory / mmap はインスタンスごとの保存先なので、共有の chat_embeddings を追っても意味がない
+            logger.info("VectorStore が {} のため、chat_embeddings の同期は行いません", vectorStore.name());
+            return;
+        }
+        synchronized (this) {
+            checkpoint = loadCheckpoint();
+        }
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "embedding-change-sync");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::pollIfNeeded, pollIntervalMillis, pollIntervalMillis,
+                TimeUnit.MILLISECONDS);
+        if ("polling".equalsIgnoreCase(mode)) {
+            polling = true;
+        } else {
+            subscribe();
+            scheduler.scheduleWithFixedDelay(this::subscribe, resubscribeIntervalMillis, resubscribeIntervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+        logger.info("chat_embeddings の同期を開始しました: mode={}, checkpoint={}", mode, checkpoint);
+    }
+
+    @PreDestroy
+    public void stop() {
+        if (scheduler == null) {
+            return;
+        }
+        scheduler.shutdownNow();
+        ListenerRegistration current = registration;
+        if (current != null) {
+            current.remove();
+        }
+        saveCheckpoint();
+    }
+
+    /**
+     * チェックポイント以降を購読する。既存の購読は新しい購読を張ってから外す（重複はドキュメントIDで吸収される）。
+     */
+    private void subscribe() {
+        try {
+            Timestamp from;
+            synchronized (this) {
+                from = checkpoint.updatedAt();
+            }
+            ListenerRegistration previous = registration;
+            registration = db.collection(FirestoreVectorStore.COLLECTION)
+                    .whereGreaterThanOrEqualTo(FirestoreService.UPDATED_AT_FIELD, from)
+                    .addSnapshotListener(this::onSnapshot);
+            if (previous != null) {
+                previous.remove();
+            }
+        } catch (RuntimeException e) {
+            logger.warn("chat_embeddings の購読に失敗しました。polling で追います", e);
+            polling = true;
+        }
+    }
+
+    private void onSnapshot(QuerySnapshot snapshot, FirestoreException error) {
+        if (error != null) {
+            if (!polling) {
+                logger.warn("chat_embeddings のリスナーが停止しました。polling に切り替えます", error);
+            }
+            polling = true;
+            return;
+        }
+        polling = false;
+        synchronized (this) {
+            for (DocumentChange change : snapshot.getDocumentChanges()) {
+                QueryDocumentSnapshot doc = change.getDocument();
+                if (change.getType() == DocumentChange.Type.REMOVED) {
+                    // 条件は updated_at の下限だけなので、結果から外れるのは削除されたときだけ
+                    roomVectorIndexManager.remove(doc.getId(), doc.getString("room_id"));
+                    lexicalIndexManager.remove(doc.getId(), doc.getString("room_id"));
+                    answerCache.invalidateRoom(doc.getString("room_id"));
+                } else {
+                    applyUpsert(doc);
+                }
+            }
+        }
+    }
+
+    private void pollIfNeeded() {
+        if (polling) {
+            try {
+                poll();
+            } catch (Exception e) {
+                logger.warn("chat_embeddings の差分取得に失敗しました", e);
+            }
+        }
+        saveCheckpoint();
+    }
+
+    private void poll() throws Exception {
+        int fetched;
+        do {
+            Checkpoint from;
+            synchronized (this) {
+                from = checkpoint;
+            }
+            List<QueryDocumentSnapshot> docs = db.collection(FirestoreVectorStore.COLLECTION)
+                    .orderBy(FirestoreService.UPDATED_AT_FIELD)
+                    .orderBy(FieldPath.documentId())
+                    .startAfter(from.updatedAt(), from.docId())
+                    .limit(batchSize)
+                    .get().get().getDocuments();
+            synchronized (this) {
+                for (QueryDocumentSnapshot doc : docs) {
+                    applyUpsert(doc);
+                }
+            }
+            fetched = docs.size();
+        } while (fetched >= batchSize);
+    }
+
+    // this で同期した状態で呼ぶ
+    private void applyUpsert(DocumentSnapshot doc) {
+        StoredVector vector = FirestoreVectorStore.fromDocument(doc, true);
+        // 作成後に書き換えられたドキュメント（再索引付けなど）は置き換え、新規なら追記だけにする
+        Timestamp created = doc.getCreateTime();
+        Timestamp updated = doc.getUpdateTime();
+        boolean replace = created != null && updated != null && updated.compareTo(created) > 0;
+        roomVectorIndexManager.apply(vector, replace);
+        lexicalIndexManager.append(vector.docId(), vector.roomId(), vector.message(), vector.sender(),
+                vector.timestamp());
+        answerCache.invalidateRoom(vector.roomId());
+
+        Timestamp updatedAt = doc.getTimestamp(FirestoreService.UPDATED_AT_FIELD);
+        if (updatedAt != null && checkpoint.isBefore(updatedAt, doc.getId())) {
+            checkpoint = new Checkpoint(updatedAt, doc.getId());
+            checkpointDirty = true;
+        }
+    }
+
+    private Checkpoint loadCheckpoint() {
+        Path file = Path.of(checkpointFile);
+        if (Files.exists(file)) {
+            try (InputStream in = Files.newInputStream(file)) {
+                Properties props = new Properties();
+                props.load(in);
+                return new Checkpoint(Timestamp.ofTimeSecondsAndNanos(Long.parseLong(props.getProperty("seconds")),
+                        Integer.parseInt(props.getProperty("nanos"))), props.getProperty("docId", ""));
+            } catch (IOException | RuntimeException e) {
+                logger.warn("同期のチェックポイントを読めませんでした。現在時刻から追います: {}", file, e);
+            }
+        }
+        // 常駐インデックスは初回の検索で VectorStore から読み込むので、それ以前の分を追う必要はない
+        long from = System.currentTimeMillis() - INITIAL_LOOKBACK_MILLIS;
+        return new Checkpoint(Timestamp.ofTimeMicroseconds(from * 1000L), "");
+    }
+
+    private void saveCheckpoint() {
+        Checkpoint current;
+        synchronized (this) {
+            if (!checkpointDirty) {
+                return;
+            }
+            current = checkpoint;
+            checkpointDirty = false;
+        }
+        Path file = Path.of(checkpointFile).toAbsolutePath();
+        try {
+            Files.createDirectories(file.getParent());
+            Properties props = new Properties();
+            props.setProperty("seconds", String.valueOf(current.updatedAt().getSeconds()));
+            props.setProperty("nanos", String.valueOf(current.updatedAt().getNanos()));
+            props.setProperty("docId", current.docId());
+            Path tmp = Files.createTempFile(file.getParent(), "embedding-sync", ".tmp");
+            try (OutputStream out = Files.newOutputStream(tmp)) {
+                props.store(out, null);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            synchronized (this) {
+                checkpointDirty = true;
+            }
+            logger.warn("同期のチェックポイントを保存できませんでした: {}", file, e);
+        }
+    }
+
+    /**
+     * どこまで反映したか（updated_at と、同じ時刻の中でのドキュメントID）。
+     */
+    private record Checkpoint(Timestamp updatedAt, String docId) {
+
+        boolean isBefore(Timestamp otherUpdatedAt, String otherDocId) {
+            int c = updatedAt.compareTo(otherUpdatedAt);
+            return c < 0 || (c == 0 && docId.compareTo(otherDocId) < 0);
+        }
+
+        @Override
+        public String toString() {
+            return updatedAt.getSeconds() + "." + updatedAt.getNanos() + "/" + docId;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.example.google.google_hackathon.entity.ChatMessageEntity;
+import com.example.google.google_hackathon.repository.ChatMessageRepository;
+
+/**
+ * embedding_outbox に残っている行を定期的に取り出し、ChatIndexingPipeline に流し直す。
+ * 非同期処理の失敗やインスタンス停止で索引付けされなかったメッセージ、replay で積んだメッセージを拾う。
+ */
+@Component
+public class EmbeddingOutboxRelay {
+
+    private static final Logger logger = LoggerFactory.getLogger(EmbeddingOutboxRelay.class);
+
+    private final EmbeddingOutboxService outboxService;
+    private final ChatMessageRepository chatMessageRepository;
+    private final ChatIndexingPipeline chatIndexingPipeline;
+
+    @Value("${similarity.outbox.relay-enabled:true}")
+    private boolean enabled;
+
+    @Value("${similarity.outbox.batch-size:100}")
+    private int batchSize;
+
+    // パイプラインのキューがこれ以上溜まっているときは次の周期まで待つ
+    @Value("${similarity.outbox.max-queue-depth:500}")
+    private int maxQueueDepth;
+
+    public EmbeddingOutboxRelay(EmbeddingOutboxService outboxService, ChatMessageRepository chatMessageRepository,
+            ChatIndexingPipeline chatIndexingPipeline) {
+        this.outboxService = outboxService;
+        this.chatMessageRepository = chatMessageRepository;
+        this.chatIndexingPipeline = chatIndexingPipeline;
+    }
+
+    @Scheduled(fixedDelayString = "${similarity.outbox.poll-interval-ms:5000}")
+    public void drain() {
+        if (!enabled) {
+            return;
+        }
+        try {
+            int claimed;
+            do {
+                if (chatIndexingPipeline.queueDepth() >= maxQueueDepth) {
+                    return;
+                }
+                claimed = relayBatch();
+            } while (claimed >= batchSize);
+        } catch (Exception e) {
+            logger.error("embedding_outbox のリレーに失敗しました", e);
+        }
+    }
+
+    private int relayBatch() {
+        List<Long> messageIds = outboxService.claimDue(batchSize);
+        if (messageIds.isEmpty()) {
+            return 0;
+        }
+        Set<Long> missing = new HashSet<>(messageIds);
+        for (ChatMessageEntity message : chatMessageRepository.findAllById(messageIds)) {
+            missing.remove(message.getId());
+            chatIndexingPipeline.submit(message);
+        }
+        // 削除済みのメッセージは索引付けできないので完了扱いにする
+        missing.forEach(outboxService::markDone);
+        logger.info("embedding_outbox から {} 件を再投入しました", messageIds.size());
+        return messageIds.size();
+    }
+}
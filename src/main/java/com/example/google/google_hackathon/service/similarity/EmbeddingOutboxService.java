@@ -0,0 +1,114 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.stream.Collectors;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.example.google.google_hackathon.entity.EmbeddingOutboxEntity;
+import com.example.google.google_hackathon.repository.EmbeddingOutboxRepository;
+
+/**
+ * embedding_outbox テーブルの操作。
+ * チャット保存と同じトランザクションで行を書き、索引付けが終わったら DONE にする。
+ * 失敗した行は指数バックオフで再試行し、上限回数を超えたら FAILED にする。
+ */
+@Service
+public class EmbeddingOutboxService {
+
+    private final EmbeddingOutboxRepository outboxRepository;
+
+    // コミット直後の非同期処理（ChatIndexingPipeline）に任せる猶予。これを過ぎても DONE でなければリレーが拾う
+    @Value("${similarity.outbox.grace-ms:60000}")
+    private long graceMillis;
+
+    // リレーが取得した行を他のインスタンスが再取得しないようにする期間
+    @Value("${similarity.outbox.lease-ms:300000}")
+    private long leaseMillis;
+
+    @Value("${similarity.outbox.max-attempts:10}")
+    private int maxAttempts;
+
+    @Value("${similarity.outbox.backoff-base-ms:10000}")
+    private long backoffBaseMillis;
+
+    @Value("${similarity.outbox.backoff-max-ms:3600000}")
+    private long backoffMaxMillis;
+
+    public EmbeddingOutboxService(EmbeddingOutboxRepository outboxRepository) {
+        this.outboxRepository = outboxRepository;
+    }
+
+    /**
+     * 呼び出し元（チャット保存）のトランザクション内で outbox 行を追加する。
+     */
+    @Transactional
+    public void enqueue(Long chatMessageId) {
+        LocalDateTime now = LocalDateTime.now();
+        outboxRepository.save(new EmbeddingOutboxEntity(chatMessageId, now.plus(Duration.ofMillis(graceMillis)), now));
+    }
+
+    /**
+     * 処理時刻を過ぎた行を最大 limit 件取得し、リース期間だけ他から見えなくする。
+     *
+     * @return 対象のチャットメッセージID
+     */
+    @Transactional
+    public List<Long> claimDue(int limit) {
+        LocalDateTime now = LocalDateTime.now();
+        List<EmbeddingOutboxEntity> due = outboxRepository.lockDue(now, limit);
+        for (EmbeddingOutboxEntity row : due) {
+            row.setNextAttemptAt(now.plus(Duration.ofMillis(leaseMillis)));
+            row.setUpdatedAt(now);
+        }
+        return due.stream().map(EmbeddingOutboxEntity::getChatMessageId).distinct().collect(Collectors.toList());
+    }
+
+    @Transactional
+    public void markDone(Long chatMessageId) {
+        outboxRepository.markDone(chatMessageId, LocalDateTime.now());
+    }
+
+    @Transactional
+    public void recordFailure(Long chatMessageId, Exception error) {
+        LocalDateTime now = LocalDateTime.now();
+        for (EmbeddingOutboxEntity row : outboxRepository.findByChatMessageIdAndStatus(chatMessageId,
+                EmbeddingOutboxEntity.STATUS_PENDING)) {
+            int attempts = row.getAttempts() + 1;
+            row.setAttempts(attempts);
+            row.setLastError(String.valueOf(error.getMessage()));
+            row.setUpdatedAt(now);
+            if (attempts >= maxAttempts) {
+                row.setStatus(EmbeddingOutboxEntity.STATUS_FAILED);
+            } else {
+                row.setNextAttemptAt(now.plus(Duration.ofMillis(backoffMillis(attempts))));
+            }
+        }
+    }
+
+    /**
+     * 指定期間（from 以上 to 未満）のチャットメッセージを再索引付けの対象として outbox に積み直す。
+     *
+     * @return 追加した行数
+     */
+    @Transactional
+    public int replay(LocalDateTime from, LocalDateTime to) {
+        return outboxRepository.enqueueRange(from, to, LocalDateTime.now());
+    }
+
+    public long countByStatus(String status) {
+        return outboxRepository.countByStatus(status);
+    }
+
+    private long backoffMillis(int attempts) {
+        long backoff = backoffBaseMillis << Math.min(attempts - 1, 20);
+        backoff = Math.min(backoff, backoffMaxMillis);
+        // 同時に失敗した行が一斉に再試行しないように少しずらす
+        return backoff + ThreadLocalRandom.current().nextLong(backoffBaseMillis + 1);
+    }
+}
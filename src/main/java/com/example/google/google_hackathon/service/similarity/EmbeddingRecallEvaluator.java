@@ -0,0 +1,136 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.example.google.google_hackathon.service.similarity.store.VectorStore;
+
+/**
+ * 次元数を縮めた埋め込みで、検索結果がどれだけ変わるか（recall@K）を測る。
+ * gemini-embedding-001 は Matryoshka 表現なので、縮めた埋め込みは元のベクトルの先頭を切り出したものとほぼ同じになる。
+ * そこで保存済みのベクトルの先頭 d 次元で検索し、全次元での上位 K 件のうち何件が残るかを数える（埋め込み直しは不要）。
+ * 使うのは次元数ごとに先頭から max-vectors 件まで（大きなルームでも全件をヒープに載せない）。
+ */
+@Component
+public class EmbeddingRecallEvaluator {
+
+    @Autowired
+    private VectorStore vectorStore;
+
+    // 評価に使うベクトルの上限（次元数ごと）。行は float[] で持つので、3072 次元なら1件約 12KB
+    @Value("${similarity.recall.max-vectors:20000}")
+    private int maxVectors;
+
+    /**
+     * ルームの保存済みベクトルから samples 件を質問に見立てて評価する（質問にしたベクトル自身は結果から除く）。
+     *
+     * @return 次元数ごとの recall@K と1行あたりのバイト数（float32 / int8）
+     */
+    public Map<String, Object> evaluate(String roomId, List<Integer> dimensions, int topK, int samples)
+            throws Exception {
+        // 一番多い次元数（全次元で保存されたもの）だけを使う。件数は全件で数え、行は上限まで残す
+        Map<Integer, Integer> counts = new LinkedHashMap<>();
+        Map<Integer, List<Row>> rowsByDimension = new HashMap<>();
+        vectorStore.scan(roomId, false, vector -> {
+            counts.merge(vector.dimension(), 1, Integer::sum);
+            List<Row> rows = rowsByDimension.computeIfAbsent(vector.dimension(), k -> new ArrayList<>());
+            if (rows.size() < maxVectors) {
+                rows.add(new Row(vector.docId(), vector.values()));
+            }
+        });
+        int fullDimension = counts.entrySet().stream()
+                .max(Map.Entry.comparingByValue())
+                .map(Map.Entry::getKey)
+                .orElse(0);
+        List<Row> rows = rowsByDimension.getOrDefault(fullDimension, List.of());
+        rowsByDimension.clear();
+
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("roomId", roomId);
+        result.put("vectors", counts.getOrDefault(fullDimension, 0));
+        result.put("evaluatedVectors", rows.size());
+        result.put("fullDimension", fullDimension);
+        result.put("topK", topK);
+        if (rows.size() <= topK) {
+            result.put("error", "評価するにはベクトルが " + (topK + 1) + " 件以上必要です");
+            return result;
+        }
+
+        // 質問は全体から等間隔に選ぶ（毎回同じ結果になるように乱数は使わない）
+        int queryCount = Math.min(samples, rows.size());
+        List<Integer> queries = new ArrayList<>(queryCount);
+        for (int i = 0; i < queryCount; i++) {
+            queries.add((int) ((long) i * rows.size() / queryCount));
+        }
+
+        List<Set<String>> baseline = searchAll(rows, fullDimension, queries, topK);
+        List<Map<String, Object>> results = new ArrayList<>();
+        for (int dimension : dimensions) {
+            if (dimension <= 0 || dimension > fullDimension) {
+                continue;
+            }
+            List<Set<String>> truncated = searchAll(rows, dimension, queries, topK);
+            long found = 0;
+            long expected = 0;
+            for (int i = 0; i < queries.size(); i++) {
+                for (String docId : baseline.get(i)) {
+                    if (truncated.get(i).contains(docId)) {
+                        found++;
+                    }
+                }
+                expected += baseline.get(i).size();
+            }
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("dimension", dimension);
+            row.put("recall", expected > 0 ? (double) found / expected : 1.0);
+            row.put("bytesPerVectorFloat32", dimension * Float.BYTES);
+            row.put("bytesPerVectorInt8", dimension + Float.BYTES * 2);
+            results.add(row);
+        }
+        result.put("queries", queries.size());
+        result.put("results", results);
+        return result;
+    }
+
+    // 先頭 dimension 次元だけのインデックス（全件検索）で、各質問の上位 topK 件の docId を返す
+    private List<Set<String>> searchAll(List<Row> rows, int dimension, List<Integer> queries, int topK) {
+        RoomVectorIndex index = new RoomVectorIndex("recall-" + dimension, HnswSettings.disabled(),
+                RoomVectorIndex.Storage.FLOAT32, new ScalarKernel());
+        for (Row row : rows) {
+            index.add(row.docId(), null, null, null, null, Arrays.copyOf(row.values(), dimension));
+        }
+        List<Set<String>> results = new ArrayList<>(queries.size());
+        for (int query : queries) {
+            String self = rows.get(query).docId();
+            Set<String> docIds = new HashSet<>();
+            for (RoomVectorIndex.Hit hit : index.search(truncate(rows.get(query).values(), dimension), topK + 1)) {
+                if (!hit.docId().equals(self) && docIds.size() < topK) {
+                    docIds.add(hit.docId());
+                }
+            }
+            results.add(docIds);
+        }
+        return results;
+    }
+
+    private static List<Double> truncate(float[] values, int dimension) {
+        List<Double> truncated = new ArrayList<>(dimension);
+        for (int i = 0; i < dimension; i++) {
+            truncated.add((double) values[i]);
+        }
+        return truncated;
+    }
+
+    private record Row(String docId, float[] values) {
+    }
+}
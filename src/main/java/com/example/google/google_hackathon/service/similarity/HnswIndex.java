@@ -0,0 +1,233 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+/**
+ * HNSW (Hierarchical Navigable Small World) グラフによる近似最近傍探索。
+ * ベクトル自体は持たず、行番号同士・行と質問の類似度は呼び出し側（RoomVectorIndex）から受け取る。
+ * 行番号は 0 から順に insert する前提。スレッド安全ではないので、呼び出し側のロックの中で使うこと。
+ */
+public class HnswIndex {
+
+    /** 行番号 a, b の類似度（大きいほど近い） */
+    public interface PairScorer {
+        float score(int a, int b);
+    }
+
+    /** 検索対象（質問や追加中の行）と行番号 row の類似度 */
+    public interface TargetScorer {
+        float score(int row);
+    }
+
+    public record Neighbor(int row, float score) {
+    }
+
+    private static final int[] NO_LINKS = new int[0];
+    private static final Comparator<Neighbor> BY_SCORE = Comparator.comparingDouble(Neighbor::score);
+
+    private final int m;
+    private final int maxM0;
+    private final int efConstruction;
+    private final double levelMultiplier;
+    private final PairScorer pairScorer;
+    private final Random random = new Random(42);
+
+    // links[row][level] = その層での隣接行
+    private int[][][] links = new int[0][][];
+    private int size = 0;
+    private int entryPoint = -1;
+    private int maxLevel = -1;
+
+    public HnswIndex(int m, int efConstruction, PairScorer pairScorer) {
+        this.m = Math.max(2, m);
+        this.maxM0 = this.m * 2;
+        this.efConstruction = Math.max(this.m, efConstruction);
+        this.levelMultiplier = 1.0 / Math.log(this.m);
+        this.pairScorer = pairScorer;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * ヒープ上の概算バイト数。層0のリンクは上限の maxM0 本、それより上の層は多めに m 本あるとして数える。
+     */
+    public long estimatedBytes() {
+        return (long) size * (64L + (long) Integer.BYTES * (maxM0 + m));
+    }
+
+    /**
+     * 行 row をグラフに追加する。row は直前の追加の次の番号でなければならない。
+     */
+    public void insert(int row) {
+        if (row != size) {
+            throw new IllegalArgumentException("HNSW には行番号順に追加してください: expected=" + size + ", actual=" + row);
+        }
+        int level = randomLevel();
+        if (links.length <= row) {
+            links = Arrays.copyOf(links, Math.max(16, links.length * 2));
+        }
+        int[][] rowLinks = new int[level + 1][];
+        Arrays.fill(rowLinks, NO_LINKS);
+        links[row] = rowLinks;
+        size++;
+
+        if (entryPoint < 0) {
+            entryPoint = row;
+            maxLevel = level;
+            return;
+        }
+
+        TargetScorer target = other -> pairScorer.score(row, other);
+        Neighbor ep = new Neighbor(entryPoint, target.score(entryPoint));
+        for (int l = maxLevel; l > level; l--) {
+            ep = greedyClosest(target, ep, l);
+        }
+        for (int l = Math.min(level, maxLevel); l >= 0; l--) {
+            List<Neighbor> candidates = searchLayer(target, ep, efConstruction, l);
+            int[] selected = selectNeighbors(candidates, m);
+            links[row][l] = selected;
+            int maxConnections = l == 0 ? maxM0 : m;
+            for (int neighbor : selected) {
+                connect(neighbor, row, l, maxConnections);
+            }
+            ep = candidates.get(0);
+        }
+        if (level > maxLevel) {
+            maxLevel = level;
+            entryPoint = row;
+        }
+    }
+
+    /**
+     * 上位 k 件を類似度の降順で返す。ef が大きいほど精度が上がり遅くなる。
+     */
+    public List<Neighbor> search(TargetScorer query, int k, int ef) {
+        if (entryPoint < 0 || k <= 0) {
+            return new ArrayList<>();
+        }
+        Neighbor ep = new Neighbor(entryPoint, query.score(entryPoint));
+        for (int l = maxLevel; l > 0; l--) {
+            ep = greedyClosest(query, ep, l);
+        }
+        List<Neighbor> results = searchLayer(query, ep, Math.max(ef, k), 0);
+        return results.size() > k ? new ArrayList<>(results.subList(0, k)) : results;
+    }
+
+    private Neighbor greedyClosest(TargetScorer target, Neighbor ep, int level) {
+        boolean changed = true;
+        while (changed) {
+            changed = false;
+            for (int neighbor : linksAt(ep.row(), level)) {
+                float score = target.score(neighbor);
+                if (score > ep.score()) {
+                    ep = new Neighbor(neighbor, score);
+                    changed = true;
+                }
+            }
+        }
+        return ep;
+    }
+
+    /**
+     * 1つの層で ef 件の近傍を探索し、類似度の降順で返す。
+     */
+    private List<Neighbor> searchLayer(TargetScorer target, Neighbor ep, int ef, int level) {
+        BitSet visited = new BitSet(size);
+        visited.set(ep.row());
+        PriorityQueue<Neighbor> candidates = new PriorityQueue<>(BY_SCORE.reversed());
+        PriorityQueue<Neighbor> results = new PriorityQueue<>(BY_SCORE);
+        candidates.add(ep);
+        results.add(ep);
+
+        while (!candidates.isEmpty()) {
+            Neighbor current = candidates.poll();
+            if (results.size() >= ef && current.score() < results.peek().score()) {
+                break;
+            }
+            for (int neighbor : linksAt(current.row(), level)) {
+                if (visited.get(neighbor)) {
+                    continue;
+                }
+                visited.set(neighbor);
+                float score = target.score(neighbor);
+                if (results.size() < ef || score > results.peek().score()) {
+                    Neighbor next = new Neighbor(neighbor, score);
+                    candidates.add(next);
+                    results.add(next);
+                    if (results.size() > ef) {
+                        results.poll();
+                    }
+                }
+            }
+        }
+        List<Neighbor> sorted = new ArrayList<>(results);
+        sorted.sort(BY_SCORE.reversed());
+        return sorted;
+    }
+
+    /**
+     * 近傍選択のヒューリスティック。既に選んだ近傍の方が近い候補は間引き、
+     * 足りない分は間引いた候補で埋める。candidates は類似度の降順であること。
+     */
+    private int[] selectNeighbors(List<Neighbor> candidates, int max) {
+        int[] selected = new int[Math.min(max, candidates.size())];
+        int count = 0;
+        List<Neighbor> pruned = new ArrayList<>();
+        for (Neighbor candidate : candidates) {
+            if (count >= selected.length) {
+                break;
+            }
+            boolean keep = true;
+            for (int i = 0; i < count; i++) {
+                if (pairScorer.score(candidate.row(), selected[i]) > candidate.score()) {
+                    keep = false;
+                    break;
+                }
+            }
+            if (keep) {
+                selected[count++] = candidate.row();
+            } else {
+                pruned.add(candidate);
+            }
+        }
+        for (int i = 0; i < pruned.size() && count < selected.length; i++) {
+            selected[count++] = pruned.get(i).row();
+        }
+        return count == selected.length ? selected : Arrays.copyOf(selected, count);
+    }
+
+    private void connect(int from, int to, int level, int maxConnections) {
+        int[] current = links[from][level];
+        if (current.length < maxConnections) {
+            int[] grown = Arrays.copyOf(current, current.length + 1);
+            grown[current.length] = to;
+            links[from][level] = grown;
+            return;
+        }
+        List<Neighbor> candidates = new ArrayList<>(current.length + 1);
+        for (int neighbor : current) {
+            candidates.add(new Neighbor(neighbor, pairScorer.score(from, neighbor)));
+        }
+        candidates.add(new Neighbor(to, pairScorer.score(from, to)));
+        candidates.sort(BY_SCORE.reversed());
+        links[from][level] = selectNeighbors(candidates, maxConnections);
+    }
+
+    private int[] linksAt(int row, int level) {
+        int[][] rowLinks = links[row];
+        return level < rowLinks.length ? rowLinks[level] : NO_LINKS;
+    }
+
+    private int randomLevel() {
+        double r = 1.0 - random.nextDouble();
+        return (int) Math.floor(-Math.log(r) * levelMultiplier);
+    }
+}
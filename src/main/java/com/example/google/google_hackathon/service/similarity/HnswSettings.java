@@ -0,0 +1,21 @@
+package com.example.google.google_hackathon.service.similarity;
+
+/**
+ * HNSW 検索モードの設定。
+ *
+ * @param enabled        true なら similarity.search-mode=hnsw
+ * @param m              各ノードの近傍数（第0層はその2倍）
+ * @param efConstruction 追加時の探索幅
+ * @param efSearch       検索時の探索幅
+ * @param exactThreshold この件数未満のルームは全件検索にフォールバックする
+ */
+public record HnswSettings(boolean enabled, int m, int efConstruction, int efSearch, int exactThreshold) {
+
+    public static HnswSettings disabled() {
+        return new HnswSettings(false, 16, 200, 64, Integer.MAX_VALUE);
+    }
+
+    public boolean appliesTo(int rows) {
+        return enabled && rows >= exactThreshold;
+    }
+}
@@ -0,0 +1,40 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.text.Normalizer;
+import java.util.regex.Pattern;
+
+/**
+ * 質問が「キーワードで引くだけ」のもの（チケット番号・ID・人名など）かどうかを判定する。
+ * 該当すれば n-gram 検索だけで答え、埋め込み生成を省く。
+ */
+public final class KeywordQuery {
+
+    // ABC-123, #42, v1.2.3, 12345 のような識別子
+    private static final Pattern IDENTIFIER = Pattern.compile(
+            "(?:[a-z]+[-_#]?\\d+|#\\d+|\\d{3,}|v?\\d+(?:\\.\\d+){1,3})");
+
+    // 文章としての質問らしさ（これらを含むなら意味検索に回す）
+    private static final Pattern QUESTION = Pattern.compile(
+            "[?？]|とは|教えて|どう|なぜ|なに|何|ですか|ますか|でしょう|について|\\b(?:how|what|why|when|which)\\b");
+
+    private KeywordQuery() {
+    }
+
+    /**
+     * @param maxLength キーワードとみなす最大文字数（識別子を含む場合はその2倍まで）
+     */
+    public static boolean isKeywordLookup(String question, int maxLength) {
+        if (question == null) {
+            return false;
+        }
+        String normalized = Normalizer.normalize(question, Normalizer.Form.NFKC).toLowerCase().strip();
+        if (normalized.isEmpty() || QUESTION.matcher(normalized).find()) {
+            return false;
+        }
+        int length = normalized.codePointCount(0, normalized.length());
+        if (IDENTIFIER.matcher(normalized).find()) {
+            return length <= maxLength * 2;
+        }
+        return length <= maxLength;
+    }
+}
@@ -0,0 +1,133 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.List;
+import java.util.Objects;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.example.google.google_hackathon.entity.ChatMessageEntity;
+import com.example.google.google_hackathon.repository.ChatMessageRepository;
+import com.example.google.google_hackathon.service.FirestoreService;
+import com.example.google.google_hackathon.service.similarity.store.FirestoreVectorStore;
+import com.example.google.google_hackathon.service.similarity.store.StoredVector;
+import com.example.google.google_hackathon.service.similarity.store.VectorStore;
+import com.google.cloud.firestore.FieldPath;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+
+/**
+ * ドキュメントIDをメッセージIDにする前に保存された chat_embeddings（自動採番ID・message_id なし）を、メッセージIDのドキュメントへ移す。
+ * 同じ room_id・sender・timestamp（と本文）の chat_messages の行を元のメッセージとみなし、メッセージIDのドキュメントが既にあれば
+ * 古いドキュメントを消すだけ、無ければ同じベクトルをメッセージIDで保存してから消す。
+ * 元のメッセージが見つからない（Postgres 側で消えた）ドキュメントはそのまま残し、件数だけ返す。
+ * 何度実行しても結果は同じ。移したら常駐インデックスを破棄し、次の検索で読み込み直す。
+ */
+@Component
+public class LegacyEmbeddingMigration {
+
+    private static final Logger logger = LoggerFactory.getLogger(LegacyEmbeddingMigration.class);
+
+    private final Firestore db;
+    private final VectorStore vectorStore;
+    private final FirestoreService firestoreService;
+    private final ChatMessageRepository chatMessageRepository;
+    private final RoomVectorIndexManager roomVectorIndexManager;
+
+    // 1回に読むドキュメント数（ベクトルも読むので大きくしすぎない）
+    @Value("${similarity.legacy-migration.page-size:300}")
+    private int pageSize;
+
+    public LegacyEmbeddingMigration(Firestore db, VectorStore vectorStore, FirestoreService firestoreService,
+            ChatMessageRepository chatMessageRepository, RoomVectorIndexManager roomVectorIndexManager) {
+        this.db = db;
+        this.vectorStore = vectorStore;
+        this.firestoreService = firestoreService;
+        this.chatMessageRepository = chatMessageRepository;
+        this.roomVectorIndexManager = roomVectorIndexManager;
+    }
+
+    /**
+     * chat_embeddings をドキュメントID順にすべて読み、自動採番IDのドキュメントを移す。VectorStore が firestore 以外なら何もしない
+     * （memory / mmap は最初からメッセージIDで保存している）。
+     */
+    public synchronized Result migrate() throws Exception {
+        if (!"firestore".equals(vectorStore.name())) {
+            return new Result(0, 0, 0, 0);
+        }
+        long start = System.currentTimeMillis();
+        int scanned = 0;
+        int rekeyed = 0;
+        int removed = 0;
+        int unmatched = 0;
+        String lastDocId = null;
+        while (true) {
+            Query query = db.collection(FirestoreVectorStore.COLLECTION).orderBy(FieldPath.documentId())
+                    .limit(Math.max(1, pageSize));
+            if (lastDocId != null) {
+                query = query.startAfter(lastDocId);
+            }
+            List<QueryDocumentSnapshot> page = query.get().get().getDocuments();
+            for (QueryDocumentSnapshot doc : page) {
+                lastDocId = doc.getId();
+                scanned++;
+                StoredVector legacy = FirestoreVectorStore.fromDocument(doc, true);
+                if (legacy.messageId() != null) {
+                    continue;
+                }
+                Long messageId = resolveMessageId(legacy);
+                if (messageId == null) {
+                    unmatched++;
+                    continue;
+                }
+                String docId = String.valueOf(messageId);
+                if (db.collection(FirestoreVectorStore.COLLECTION).document(docId).get().get().exists()) {
+                    removed++;
+                } else {
+                    firestoreService.saveEmbedding(legacy.withDocId(docId));
+                    rekeyed++;
+                }
+                firestoreService.deleteEmbedding(legacy.docId());
+            }
+            if (page.size() < pageSize) {
+                break;
+            }
+        }
+        if (rekeyed + removed > 0) {
+            roomVectorIndexManager.invalidateAll();
+        }
+        logger.info("自動採番IDの chat_embeddings を移しました: 読んだ件数={}, 移した件数={}, 重複で削除={}, 元のメッセージなし={}, {}ms",
+                scanned, rekeyed, removed, unmatched, System.currentTimeMillis() - start);
+        return new Result(scanned, rekeyed, removed, unmatched);
+    }
+
+    // 元のメッセージのID。同じルーム・日時（Firestore 側はミリ秒に切り捨て）・送信者で、本文があれば本文も一致するもの
+    private Long resolveMessageId(StoredVector legacy) {
+        if (legacy.roomId() == null || legacy.timestamp() == null) {
+            return null;
+        }
+        LocalDateTime from = LocalDateTime.ofInstant(legacy.timestamp().toInstant(), ZoneOffset.UTC);
+        List<ChatMessageEntity> candidates = chatMessageRepository.findByRoomIdAndTimestampBetween(legacy.roomId(),
+                from, from.plusNanos(999_999));
+        for (ChatMessageEntity message : candidates) {
+            if (Objects.equals(message.getSender(), legacy.sender())
+                    && (legacy.message() == null || legacy.message().equals(message.getText()))) {
+                return message.getId();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param rekeyed   メッセージIDのドキュメントへ移した件数
+     * @param removed   メッセージIDのドキュメントが既にあったので消しただけの件数
+     * @param unmatched 元のメッセージが見つからず残した件数
+     */
+    public record Result(int scanned, int rekeyed, int removed, int unmatched) {
+    }
+}
@@ -0,0 +1,290 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * 1つのルーム（room_id のプレフィックス範囲）分のチャット本文の転置インデックス。
+ * 形態素解析なしで日本語も引けるように、文字の bi-gram / tri-gram を語として BM25 で採点する。
+ */
+public class LexicalIndex {
+
+    private static final float K1 = 1.2f;
+    private static final float B = 0.75f;
+
+    // estimatedBytes の概算に使う、参照1つ・HashMap のエントリ1つ・Postings 1つ（配列2つを含む）のバイト数
+    private static final long REFERENCE_BYTES = 8L;
+    private static final long MAP_ENTRY_BYTES = 64L;
+    private static final long POSTINGS_BYTES = 80L;
+
+    private final String roomKey;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private final List<String> docIds = new ArrayList<>();
+    private final List<String> roomIds = new ArrayList<>();
+    private final List<String> messages = new ArrayList<>();
+    private final List<String> senders = new ArrayList<>();
+    private final List<Long> timestamps = new ArrayList<>();
+    private int[] lengths = new int[64];
+    private long totalLength = 0;
+    private final Map<String, Integer> rowByDocId = new HashMap<>();
+    private final BitSet removedRows = new BitSet();
+    private final Map<String, Postings> postings = new HashMap<>();
+
+    private volatile boolean loaded = false;
+    private volatile long lastUsed = System.currentTimeMillis();
+    // 本文などの文字列と、語の出現（行番号・頻度）の概算バイト数（書き込みロックの中で更新する）
+    private long payloadBytes = 0L;
+    private long postingEntries = 0L;
+
+    public LexicalIndex(String roomKey) {
+        this.roomKey = roomKey;
+    }
+
+    public String getRoomKey() {
+        return roomKey;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    void markLoaded() {
+        this.loaded = true;
+    }
+
+    public long lastUsed() {
+        return lastUsed;
+    }
+
+    void markUsed() {
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * ヒープ上の概算バイト数。削除した行も本文と語の出現を残しているので含める。
+     */
+    public long estimatedBytes() {
+        lock.readLock().lock();
+        try {
+            // 行ごとのリスト5つの参照・Long のタイムスタンプ・語数
+            long bytes = docIds.size() * (5L * REFERENCE_BYTES + 24L + Integer.BYTES);
+            bytes += rowByDocId.size() * (MAP_ENTRY_BYTES + Integer.BYTES);
+            bytes += payloadBytes;
+            // 語（3文字までの文字列）ごとのエントリと、出現1つにつき行番号・頻度の int 2つ
+            bytes += postings.size() * (MAP_ENTRY_BYTES + stringBytes("abc") + POSTINGS_BYTES);
+            bytes += postingEntries * 2L * Integer.BYTES;
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return docIds.size() - removedRows.cardinality();
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 1件追加する。同じドキュメントIDが既にあれば何もしない。
+     */
+    public boolean add(String docId, String message, String sender, Date timestamp) {
+        return add(docId, null, message, sender, timestamp);
+    }
+
+    /**
+     * room_id を指定して1件追加する（SearchFilter のルーム指定で絞り込めるようになる）。
+     */
+    public boolean add(String docId, String roomId, String message, String sender, Date timestamp) {
+        if (message == null || message.isBlank()) {
+            return false;
+        }
+        List<String> grams = grams(message);
+        lock.writeLock().lock();
+        try {
+            if (docId != null && rowByDocId.containsKey(docId)) {
+                return false;
+            }
+            int row = docIds.size();
+            docIds.add(docId);
+            roomIds.add(roomId);
+            messages.add(message);
+            senders.add(sender);
+            timestamps.add(timestamp != null ? timestamp.getTime() : Long.MIN_VALUE);
+            if (row >= lengths.length) {
+                lengths = Arrays.copyOf(lengths, lengths.length * 2);
+            }
+            lengths[row] = grams.size();
+            totalLength += grams.size();
+            Map<String, Integer> termFrequencies = new HashMap<>();
+            for (String gram : grams) {
+                termFrequencies.merge(gram, 1, Integer::sum);
+            }
+            for (Map.Entry<String, Integer> e : termFrequencies.entrySet()) {
+                postings.computeIfAbsent(e.getKey(), k -> new Postings()).add(row, e.getValue());
+            }
+            postingEntries += termFrequencies.size();
+            payloadBytes += stringBytes(docId) + stringBytes(roomId) + stringBytes(message) + stringBytes(sender);
+            if (docId != null) {
+                rowByDocId.put(docId, row);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    public boolean remove(String docId) {
+        lock.writeLock().lock();
+        try {
+            Integer row = rowByDocId.remove(docId);
+            if (row == null) {
+                return false;
+            }
+            removedRows.set(row);
+            totalLength -= lengths[row];
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * BM25 の上位 topK 件を返す。
+     */
+    public Result search(String query, int topK) {
+        return search(query, topK, Long.MIN_VALUE);
+    }
+
+    /**
+     * BM25 の上位 topK 件を返す。minTimestamp（エポックミリ秒）より古い行と日時の無い行は除く（Long.MIN_VALUE なら除かない）。
+     */
+    public Result search(String query, int topK, long minTimestamp) {
+        return search(query, topK, minTimestamp, SearchFilter.none());
+    }
+
+    /**
+     * filter に合う行だけから BM25 の上位 topK 件を返す（n-gram が一致した行だけを filter で確認する）。
+     */
+    public Result search(String query, int topK, long minTimestamp, SearchFilter filter) {
+        Set<String> queryGrams = new LinkedHashSet<>(grams(query));
+        lock.readLock().lock();
+        try {
+            int rows = docIds.size();
+            int liveRows = rows - removedRows.cardinality();
+            if (queryGrams.isEmpty() || liveRows == 0) {
+                return new Result(new ArrayList<>(), false);
+            }
+            float averageLength = (float) totalLength / liveRows;
+            float[] scores = new float[rows];
+            int[] matched = new int[rows];
+            for (String gram : queryGrams) {
+                Postings p = postings.get(gram);
+                if (p == null) {
+                    continue;
+                }
+                int df = 0;
+                for (int i = 0; i < p.size; i++) {
+                    if (!removedRows.get(p.rows[i])) {
+                        df++;
+                    }
+                }
+                float idf = (float) Math.log(1 + (liveRows - df + 0.5) / (df + 0.5));
+                for (int i = 0; i < p.size; i++) {
+                    int row = p.rows[i];
+                    int tf = p.freqs[i];
+                    float norm = K1 * (1 - B + B * lengths[row] / averageLength);
+                    scores[row] += idf * tf * (K1 + 1) / (tf + norm);
+                    matched[row]++;
+                }
+            }
+
+            TopKCollector collector = new TopKCollector(topK);
+            for (int row = 0; row < rows; row++) {
+                if (scores[row] > 0 && !removedRows.get(row) && timestamps.get(row) >= minTimestamp
+                        && filter.matches(roomIds.get(row), senders.get(row), timestamps.get(row))) {
+                    collector.offer(row, scores[row]);
+                }
+            }
+            int[] topRows = new int[collector.size()];
+            float[] topScores = new float[topRows.length];
+            collector.drain(topRows, topScores);
+            List<RoomVectorIndex.Hit> hits = new ArrayList<>(topRows.length);
+            for (int i = 0; i < topRows.length; i++) {
+                int row = topRows[i];
+                long ts = timestamps.get(row);
+                hits.add(new RoomVectorIndex.Hit(docIds.get(row), messages.get(row), senders.get(row),
+                        ts == Long.MIN_VALUE ? null : new Date(ts), topScores[i]));
+            }
+            // 1位の本文が質問の n-gram をすべて含んでいれば「完全一致」とみなす
+            boolean fullMatch = topRows.length > 0 && matched[topRows[0]] == queryGrams.size();
+            return new Result(hits, fullMatch);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * NFKC 正規化・小文字化した文字列を、文字と数字の連続ごとに bi-gram と tri-gram に分ける（1文字だけの並びはその1文字）。
+     */
+    static List<String> grams(String text) {
+        List<String> grams = new ArrayList<>();
+        if (text == null) {
+            return grams;
+        }
+        String normalized = Normalizer.normalize(text, Normalizer.Form.NFKC).toLowerCase();
+        for (String token : normalized.split("[^\\p{L}\\p{N}]+")) {
+            int[] cps = token.codePoints().toArray();
+            if (cps.length == 1) {
+                grams.add(token);
+                continue;
+            }
+            for (int n = 2; n <= 3; n++) {
+                for (int i = 0; i + n <= cps.length; i++) {
+                    grams.add(new String(cps, i, n));
+                }
+            }
+        }
+        return grams;
+    }
+
+    /**
+     * 検索結果。similarity には BM25 のスコアが入る。
+     */
+    public record Result(List<RoomVectorIndex.Hit> hits, boolean fullMatch) {
+    }
+
+    private static long stringBytes(String s) {
+        // ヘッダと配列を合わせて約40バイト + UTF-16 で1文字2バイト（Latin-1 だけなら実際はこの半分）
+        return s == null ? 0L : 40L + 2L * s.length();
+    }
+
+    private static final class Postings {
+        int[] rows = new int[4];
+        int[] freqs = new int[4];
+        int size = 0;
+
+        void add(int row, int freq) {
+            if (size == rows.length) {
+                rows = Arrays.copyOf(rows, size * 2);
+                freqs = Arrays.copyOf(freqs, size * 2);
+            }
+            rows[size] = row;
+            freqs[size] = freq;
+            size++;
+        }
+    }
+}
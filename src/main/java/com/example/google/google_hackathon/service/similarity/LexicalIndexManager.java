@@ -0,0 +1,152 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.stereotype.Component;
+
+import com.example.google.google_hackathon.entity.ChatMessageEntity;
+import com.example.google.google_hackathon.repository.ChatMessageRepository;
+
+/**
+ * ルームごとの n-gram 転置インデックスを常駐させて管理する。
+ * 初回の検索時に chat_messages から読み込み、以降はチャット保存時の追記で更新する。
+ * メモリはベクトルの常駐インデックスと同じ予算（similarity.index.memory-budget-mb）で数え、
+ * 超えたら両方を合わせて最後に検索されたのが古いものから RoomVectorIndexManager が捨てる。
+ */
+@Component
+public class LexicalIndexManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(LexicalIndexManager.class);
+
+    // 読み込みで1回に取得する件数（主キーの続きから読むので、ルーム全体を1つのリストにしない）
+    private static final int LOAD_PAGE_SIZE = 1000;
+
+    @Autowired
+    private ChatMessageRepository chatMessageRepository;
+
+    // 予算の確認は RoomVectorIndexManager が行う（向こうがこちらに依存するので、使うときに取り出す）
+    @Autowired
+    private ObjectProvider<RoomVectorIndexManager> roomVectorIndexManager;
+
+    private final ConcurrentHashMap<String, LexicalIndex> indexes = new ConcurrentHashMap<>();
+
+    /**
+     * roomId（プレフィックス）に対応するインデックスを返す。未ロードならここで読み込む。
+     */
+    public LexicalIndex getIndex(String roomId) {
+        LexicalIndex index = indexes.computeIfAbsent(roomId, LexicalIndex::new);
+        index.markUsed();
+        if (index.isLoaded()) {
+            return index;
+        }
+        synchronized (index) {
+            if (!index.isLoaded()) {
+                try {
+                    load(index);
+                    index.markLoaded();
+                } catch (RuntimeException e) {
+                    indexes.remove(roomId, index);
+                    throw e;
+                }
+            }
+        }
+        RoomVectorIndexManager budget = roomVectorIndexManager.getIfAvailable();
+        if (budget != null) {
+            budget.enforceBudget(index);
+        }
+        return index;
+    }
+
+    /**
+     * 読み込み済みのインデックスの一覧（予算の計算用）。
+     */
+    List<LexicalIndex> residentIndexes() {
+        List<LexicalIndex> resident = new ArrayList<>();
+        for (LexicalIndex index : indexes.values()) {
+            if (index.isLoaded()) {
+                resident.add(index);
+            }
+        }
+        return resident;
+    }
+
+    /**
+     * インデックスを破棄する（次の検索で読み込み直す）。
+     */
+    boolean evict(LexicalIndex index) {
+        return indexes.remove(index.getRoomKey(), index);
+    }
+
+    /**
+     * 保存されたチャットメッセージを、該当する常駐インデックス（ロード中のものを含む）へ追記する。
+     */
+    public void append(ChatMessageEntity message) {
+        append(docId(message), message.getRoomId(), message.getText(), message.getSender(), timestamp(message));
+    }
+
+    /**
+     * ドキュメントIDと本文を直接指定して追記する（他のインスタンスで保存されたメッセージの反映用）。
+     */
+    public void append(String docId, String roomId, String message, String sender, Date timestamp) {
+        if (roomId == null) {
+            return;
+        }
+        for (LexicalIndex index : indexes.values()) {
+            if (roomId.startsWith(index.getRoomKey())) {
+                index.add(docId, roomId, message, sender, timestamp);
+            }
+        }
+    }
+
+    public void remove(ChatMessageEntity message) {
+        remove(docId(message), message.getRoomId());
+    }
+
+    public void remove(String docId, String roomId) {
+        if (roomId == null) {
+            return;
+        }
+        for (LexicalIndex index : indexes.values()) {
+            if (roomId.startsWith(index.getRoomKey())) {
+                index.remove(docId);
+            }
+        }
+    }
+
+    private void load(LexicalIndex index) {
+        long start = System.currentTimeMillis();
+        long lastId = 0L;
+        while (true) {
+            List<ChatMessageEntity> page = chatMessageRepository.findByRoomIdStartingWithAndIdGreaterThanOrderByIdAsc(
+                    index.getRoomKey(), lastId, PageRequest.of(0, LOAD_PAGE_SIZE));
+            for (ChatMessageEntity message : page) {
+                index.add(docId(message), message.getRoomId(), message.getText(), message.getSender(),
+                        timestamp(message));
+                lastId = message.getId();
+            }
+            if (page.size() < LOAD_PAGE_SIZE) {
+                break;
+            }
+        }
+        logger.info("n-gram インデックスを読み込みました: roomId={}, 件数={}, {}ms", index.getRoomKey(), index.size(),
+                System.currentTimeMillis() - start);
+    }
+
+    // ベクトル側（chat_embeddings）と同じく、チャットメッセージのIDをドキュメントIDにする
+    private static String docId(ChatMessageEntity message) {
+        return String.valueOf(message.getId());
+    }
+
+    private static Date timestamp(ChatMessageEntity message) {
+        return message.getTimestamp() != null ? Date.from(message.getTimestamp().toInstant(ZoneOffset.UTC)) : null;
+    }
+}
@@ -0,0 +1,87 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Maximal Marginal Relevance で検索結果を並べ直す。質問との類似度が高く、かつ既に選んだ結果と似ていないものから順に選ぶので、
+ * ほぼ同じ内容のメッセージが上位を占めるのを防げる（Gemini に渡す履歴が短くなる）。
+ *
+ * 選ぶ基準は lambda * 質問との類似度 - (1 - lambda) * 選んだ結果との類似度の最大値。
+ * lambda = 1 なら元の順位のまま、0 に近いほど多様さを優先する。
+ */
+public final class MaximalMarginalRelevance {
+
+    private MaximalMarginalRelevance() {
+    }
+
+    /**
+     * candidates（類似度の高い順）から k 件を選んで、選んだ順に返す。質問との類似度には hit.similarity() を使う。
+     *
+     * @param similarities candidates 同士の類似度（RoomVectorIndex#similarities）
+     */
+    public static List<RoomVectorIndex.Hit> rerank(List<RoomVectorIndex.Hit> candidates, float[][] similarities,
+            double lambda, int k) {
+        double[] relevance = new double[candidates.size()];
+        for (int i = 0; i < relevance.length; i++) {
+            relevance[i] = candidates.get(i).similarity();
+        }
+        return rerank(candidates, similarities, relevance, lambda, k);
+    }
+
+    /**
+     * candidates（relevance の高い順）から k 件を選んで、選んだ順に返す。
+     * ハイブリッド検索では relevance に RRF のスコア（1位で割った値）を渡し、まとめた順位を崩さないようにする。
+     *
+     * @param similarities candidates 同士の類似度（RoomVectorIndex#similarities）。常駐ベクトルの無い候補（n-gram 検索だけの結果）は
+     *                     行が NaN になる。重なりを測れないので、何か1件選んだ後は選んだ結果と同じ内容（類似度 1）とみなす
+     * @param relevance 質問との関連度（0〜1）
+     */
+    public static List<RoomVectorIndex.Hit> rerank(List<RoomVectorIndex.Hit> candidates, float[][] similarities,
+            double[] relevance, double lambda, int k) {
+        int n = candidates.size();
+        if (k <= 0) {
+            return new ArrayList<>();
+        }
+        if (n <= k) {
+            // 全件使うなら選び直す意味は無い
+            return candidates;
+        }
+        // 選んだ結果との類似度の最大値（まだ何も選んでいなければ 0）
+        double[] redundancy = new double[n];
+        boolean[] selected = new boolean[n];
+        List<RoomVectorIndex.Hit> result = new ArrayList<>(k);
+        while (result.size() < k) {
+            int best = -1;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int i = 0; i < n; i++) {
+                if (selected[i]) {
+                    continue;
+                }
+                double score = lambda * relevance[i] - (1.0 - lambda) * redundancy[i];
+                // 同点なら元の順位が上のものを選ぶ
+                if (score > bestScore) {
+                    bestScore = score;
+                    best = i;
+                }
+            }
+            selected[best] = true;
+            result.add(candidates.get(best));
+            for (int i = 0; i < n; i++) {
+                if (selected[i]) {
+                    continue;
+                }
+                float similarity = similarities[best][i];
+                if (Float.isNaN(similarity)) {
+                    // どちらかにベクトルが無い。相手（i）に無ければ最大の重なりとみなし、選んだ側に無いだけなら数えない
+                    if (Float.isNaN(similarities[i][i])) {
+                        redundancy[i] = 1.0;
+                    }
+                } else if (similarity > redundancy[i]) {
+                    redundancy[i] = similarity;
+                }
+            }
+        }
+        return result;
+    }
+}
@@ -0,0 +1,114 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.example.google.google_hackathon.entity.ChatMessageEntity;
+import com.example.google.google_hackathon.repository.ChatMessageRepository;
+import com.example.google.google_hackathon.service.similarity.store.StoredVector;
+import com.example.google.google_hackathon.service.similarity.store.VectorStore;
+
+/**
+ * 二段階検索の後半。常駐インデックスが ID とベクトルだけを持っている場合に、
+ * 上位 K 件の本文・送信者・日時をまとめて1回で取得して埋める。
+ */
+@Component
+public class MessageHydrator {
+
+    private static final Logger logger = LoggerFactory.getLogger(MessageHydrator.class);
+
+    @Autowired
+    private VectorStore vectorStore;
+
+    @Autowired
+    private ChatMessageRepository chatMessageRepository;
+
+    // store: VectorStore から取得（Firestore なら getAll 1回） / postgres: chat_messages を ID で取得（ドキュメントID = メッセージID のもの）
+    // VectorStore を入れる前の設定値 firestore は store と同じ扱い（postgres 以外はすべて store）
+    @Value("${similarity.retrieval.hydration-source:store}")
+    private String hydrationSource;
+
+    /**
+     * 本文が未取得（message が null）の結果だけを埋めて、同じ順序で返す。
+     */
+    public List<RoomVectorIndex.Hit> hydrate(List<RoomVectorIndex.Hit> hits) throws Exception {
+        List<String> pending = new ArrayList<>();
+        for (RoomVectorIndex.Hit hit : hits) {
+            if (hit.message() == null && hit.docId() != null) {
+                pending.add(hit.docId());
+            }
+        }
+        if (pending.isEmpty()) {
+            return hits;
+        }
+
+        Map<String, RoomVectorIndex.Hit> bodies = new HashMap<>();
+        if ("postgres".equalsIgnoreCase(hydrationSource)) {
+            fetchFromPostgres(pending, bodies);
+        }
+        List<String> remaining = new ArrayList<>();
+        for (String docId : pending) {
+            if (!bodies.containsKey(docId)) {
+                remaining.add(docId);
+            }
+        }
+        if (!remaining.isEmpty()) {
+            fetchFromStore(remaining, bodies);
+        }
+
+        List<RoomVectorIndex.Hit> hydrated = new ArrayList<>(hits.size());
+        for (RoomVectorIndex.Hit hit : hits) {
+            RoomVectorIndex.Hit body = hit.message() == null ? bodies.get(hit.docId()) : null;
+            if (body == null) {
+                hydrated.add(hit);
+            } else {
+                hydrated.add(new RoomVectorIndex.Hit(hit.docId(), body.message(), body.sender(), body.timestamp(),
+                        hit.similarity()));
+            }
+        }
+        return hydrated;
+    }
+
+    private void fetchFromStore(List<String> docIds, Map<String, RoomVectorIndex.Hit> bodies) throws Exception {
+        for (StoredVector vector : vectorStore.fetch(docIds).values()) {
+            bodies.put(vector.docId(), new RoomVectorIndex.Hit(vector.docId(), vector.message(), vector.sender(),
+                    vector.timestamp(), 0.0));
+        }
+    }
+
+    private void fetchFromPostgres(List<String> docIds, Map<String, RoomVectorIndex.Hit> bodies) {
+        Map<Long, String> docIdByMessageId = new HashMap<>();
+        for (String docId : docIds) {
+            try {
+                docIdByMessageId.put(Long.valueOf(docId), docId);
+            } catch (NumberFormatException e) {
+                // 自動採番IDの古いドキュメントは VectorStore から取得する
+            }
+        }
+        if (docIdByMessageId.isEmpty()) {
+            return;
+        }
+        try {
+            for (ChatMessageEntity message : chatMessageRepository.findAllById(docIdByMessageId.keySet())) {
+                String docId = docIdByMessageId.get(message.getId());
+                Date timestamp = message.getTimestamp() != null
+                        ? Date.from(message.getTimestamp().toInstant(ZoneOffset.UTC))
+                        : null;
+                bodies.put(docId, new RoomVectorIndex.Hit(docId, message.getText(), message.getSender(), timestamp,
+                        0.0));
+            }
+        } catch (Exception e) {
+            logger.warn("chat_messages からの取得に失敗したため VectorStore から取得します", e);
+        }
+    }
+}
@@ -0,0 +1,21 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * 全件採点を分割して並列に行うときの設定。
+ *
+ * @param pool      採点専用の ForkJoinPool（共通プールは使わない。並列度がそのまま全質問で使う CPU 数の上限になる）
+ * @param minRows   この件数以上の範囲だけ並列にする
+ * @param chunkRows 1タスクで採点する行数の目安
+ */
+public record ParallelScoring(ForkJoinPool pool, int minRows, int chunkRows) {
+
+    public static ParallelScoring disabled() {
+        return new ParallelScoring(null, Integer.MAX_VALUE, Integer.MAX_VALUE);
+    }
+
+    public boolean appliesTo(int rows) {
+        return pool != null && rows >= minRows;
+    }
+}
@@ -0,0 +1,90 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.nio.ByteBuffer;
+import java.util.List;
+
+/**
+ * 埋め込みの int8 量子化表現。要素ごとに 1 バイト、ベクトルごとに scale / offset を持つ。
+ * 値は v ≒ (code + 128) * scale + offset で復元する。
+ *
+ * Firestore には [scale(float)][offset(float)][code x 次元数] を1つのバイト列として保存する。
+ */
+public final class QuantizedVector {
+
+    private static final int HEADER_BYTES = Float.BYTES * 2;
+
+    private final byte[] codes;
+    private final float scale;
+    private final float offset;
+
+    public QuantizedVector(byte[] codes, float scale, float offset) {
+        this.codes = codes;
+        this.scale = scale;
+        this.offset = offset;
+    }
+
+    public static QuantizedVector quantize(List<Double> vector) {
+        float[] values = new float[vector.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = vector.get(i).floatValue();
+        }
+        return quantize(values);
+    }
+
+    public static QuantizedVector quantize(float[] vector) {
+        float min = Float.POSITIVE_INFINITY;
+        float max = Float.NEGATIVE_INFINITY;
+        for (float v : vector) {
+            min = Math.min(min, v);
+            max = Math.max(max, v);
+        }
+        float scale = max > min ? (max - min) / 255f : 1f;
+        byte[] codes = new byte[vector.length];
+        for (int i = 0; i < vector.length; i++) {
+            int level = Math.round((vector[i] - min) / scale);
+            codes[i] = (byte) (Math.max(0, Math.min(255, level)) - 128);
+        }
+        return new QuantizedVector(codes, scale, min);
+    }
+
+    public static QuantizedVector fromBytes(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.wrap(bytes);
+        float scale = buffer.getFloat();
+        float offset = buffer.getFloat();
+        byte[] codes = new byte[bytes.length - HEADER_BYTES];
+        buffer.get(codes);
+        return new QuantizedVector(codes, scale, offset);
+    }
+
+    public byte[] toBytes() {
+        return ByteBuffer.allocate(HEADER_BYTES + codes.length)
+                .putFloat(scale)
+                .putFloat(offset)
+                .put(codes)
+                .array();
+    }
+
+    public float[] dequantize() {
+        float[] values = new float[codes.length];
+        for (int i = 0; i < codes.length; i++) {
+            values[i] = (codes[i] + 128) * scale + offset;
+        }
+        return values;
+    }
+
+    public int dimension() {
+        return codes.length;
+    }
+
+    public byte[] codes() {
+        return codes;
+    }
+
+    public float scale() {
+        return scale;
+    }
+
+    public float offset() {
+        return offset;
+    }
+}
@@ -0,0 +1,119 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 複数の検索結果を Reciprocal Rank Fusion（順位 r に 1 / (k + r) を足し合わせる）でまとめる。
+ * スコアの尺度が違う結果（コサイン類似度と BM25）を、順位だけで公平に混ぜられる。
+ */
+public final class RankFusion {
+
+    private RankFusion() {
+    }
+
+    /**
+     * ベクトル検索と n-gram 検索の結果をまとめて上位 topK 件を返す。
+     * similarity はベクトル検索に含まれていればそのコサイン類似度、n-gram 検索だけなら BM25 を1位で割った値（0〜1）。
+     * 同じメッセージはメッセージID（n-gram 検索の docId）でまとめる。
+     */
+    public static List<RoomVectorIndex.Hit> fuse(List<RoomVectorIndex.Hit> vectorHits,
+            List<RoomVectorIndex.Hit> lexicalHits, int k, int topK) {
+        return fuseRanked(vectorHits, lexicalHits, k, topK).hits();
+    }
+
+    /**
+     * fuse と同じ結果に、まとめたスコア（1位のスコアで割った値、0〜1）を付けて返す。MMR の関連度に使う。
+     */
+    public static Fused fuseRanked(List<RoomVectorIndex.Hit> vectorHits, List<RoomVectorIndex.Hit> lexicalHits, int k,
+            int topK) {
+        Map<String, Double> fusedScores = new HashMap<>();
+        Map<String, RoomVectorIndex.Hit> hitsByDocId = new LinkedHashMap<>();
+        addRanks(toMessageIds(vectorHits, lexicalHits), k, fusedScores, hitsByDocId);
+
+        double topLexical = lexicalHits.isEmpty() ? 0.0 : lexicalHits.get(0).similarity();
+        List<RoomVectorIndex.Hit> scaledLexical = new ArrayList<>(lexicalHits.size());
+        for (RoomVectorIndex.Hit hit : lexicalHits) {
+            double scaled = topLexical > 0 ? hit.similarity() / topLexical : 0.0;
+            scaledLexical.add(new RoomVectorIndex.Hit(hit.docId(), hit.message(), hit.sender(), hit.timestamp(),
+                    scaled));
+        }
+        addRanks(scaledLexical, k, fusedScores, hitsByDocId);
+
+        List<RoomVectorIndex.Hit> fused = new ArrayList<>(hitsByDocId.values());
+        fused.sort((a, b) -> Double.compare(fusedScores.get(b.docId()), fusedScores.get(a.docId())));
+        if (fused.size() > topK) {
+            fused = new ArrayList<>(fused.subList(0, topK));
+        }
+        double[] relevance = new double[fused.size()];
+        double top = fused.isEmpty() ? 0.0 : fusedScores.get(fused.get(0).docId());
+        for (int i = 0; i < relevance.length; i++) {
+            relevance[i] = fusedScores.get(fused.get(i).docId()) / top;
+        }
+        return new Fused(fused, relevance);
+    }
+
+    /**
+     * まとめた結果。relevance[i] は hits[i] の RRF スコアを1位のスコアで割った値（null ならベクトル検索だけの結果で、
+     * hits[i].similarity() をそのまま関連度に使う）。
+     */
+    public record Fused(List<RoomVectorIndex.Hit> hits, double[] relevance) {
+    }
+
+    /**
+     * ベクトル側の docId を n-gram 側のメッセージIDに揃える。自動採番IDの古い埋め込み（移し替え前のもの）は
+     * docId が違うので、送信者と送信時刻（ミリ秒）が同じ n-gram 側の結果と同じメッセージとみなす。
+     */
+    static List<RoomVectorIndex.Hit> toMessageIds(List<RoomVectorIndex.Hit> vectorHits,
+            List<RoomVectorIndex.Hit> lexicalHits) {
+        Set<String> messageIds = new HashSet<>();
+        Map<String, String> messageIdsByKey = new HashMap<>();
+        for (RoomVectorIndex.Hit hit : lexicalHits) {
+            messageIds.add(hit.docId());
+            if (hit.timestamp() != null) {
+                messageIdsByKey.putIfAbsent(messageKey(hit), hit.docId());
+            }
+        }
+        List<RoomVectorIndex.Hit> mapped = new ArrayList<>(vectorHits.size());
+        Set<String> seen = new HashSet<>();
+        for (RoomVectorIndex.Hit hit : vectorHits) {
+            String messageId = hit.docId();
+            if (!messageIds.contains(messageId) && hit.timestamp() != null) {
+                messageId = messageIdsByKey.getOrDefault(messageKey(hit), messageId);
+            }
+            // 古い埋め込みと新しい埋め込みが両方残っていたら、順位の高い方だけ数える
+            if (!seen.add(messageId)) {
+                continue;
+            }
+            mapped.add(messageId.equals(hit.docId()) ? hit
+                    : new RoomVectorIndex.Hit(messageId, hit.message(), hit.sender(), hit.timestamp(),
+                            hit.similarity()));
+        }
+        return mapped;
+    }
+
+    private static String messageKey(RoomVectorIndex.Hit hit) {
+        return hit.sender() + "\u0000" + hit.timestamp().getTime();
+    }
+
+    private static void addRanks(List<RoomVectorIndex.Hit> hits, int k, Map<String, Double> fusedScores,
+            Map<String, RoomVectorIndex.Hit> hitsByDocId) {
+        for (int rank = 0; rank < hits.size(); rank++) {
+            RoomVectorIndex.Hit hit = hits.get(rank);
+            fusedScores.merge(hit.docId(), 1.0 / (k + rank + 1), Double::sum);
+            RoomVectorIndex.Hit known = hitsByDocId.get(hit.docId());
+            if (known == null) {
+                hitsByDocId.put(hit.docId(), hit);
+            } else if (known.message() == null && hit.message() != null) {
+                // 二段階検索で本文の無いベクトル側の結果は、n-gram 側の本文で埋める（類似度はベクトル側のまま）
+                hitsByDocId.put(hit.docId(), new RoomVectorIndex.Hit(known.docId(), hit.message(), hit.sender(),
+                        hit.timestamp(), known.similarity()));
+            }
+        }
+    }
+}
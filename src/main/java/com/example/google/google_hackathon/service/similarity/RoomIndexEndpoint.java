@@ -0,0 +1,40 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.springframework.boot.actuate.endpoint.annotation.Endpoint;
+import org.springframework.boot.actuate.endpoint.annotation.ReadOperation;
+import org.springframework.stereotype.Component;
+
+/**
+ * 常駐しているルームインデックス（ベクトル・n-gram）の一覧とメモリの使用量（GET /actuator/roomindexes）。
+ * 件数・バイト数・破棄回数は similarity.index.* のメトリクスとしても /actuator/metrics に出る。
+ */
+@Component
+@Endpoint(id = "roomindexes")
+public class RoomIndexEndpoint {
+
+    private final RoomVectorIndexManager roomVectorIndexManager;
+
+    public RoomIndexEndpoint(RoomVectorIndexManager roomVectorIndexManager) {
+        this.roomVectorIndexManager = roomVectorIndexManager;
+    }
+
+    @ReadOperation
+    public Map<String, Object> roomIndexes() {
+        List<RoomVectorIndexManager.ResidentRoom> rooms = roomVectorIndexManager.residentRooms();
+        long residentBytes = 0L;
+        for (RoomVectorIndexManager.ResidentRoom room : rooms) {
+            residentBytes += room.bytes();
+        }
+        Map<String, Object> result = new LinkedHashMap<>();
+        result.put("budgetBytes", roomVectorIndexManager.budgetBytes());
+        result.put("residentBytes", residentBytes);
+        result.put("residentRooms", rooms.size());
+        result.put("evictions", roomVectorIndexManager.evictionCount());
+        result.put("rooms", rooms);
+        return result;
+    }
+}
@@ -0,0 +1,873 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * 1つのルーム（room_id のプレフィックス範囲）分の埋め込みベクトルをメモリ上に保持するインデックス。
+ * ベクトルは行単位で連続領域に詰めて保持し（float[] または int8 の byte[]）、メタデータは行番号で引く。
+ * 行は追加時に長さ1へ正規化しておくので、採点は質問ベクトルとの内積だけで済む。
+ */
+public class RoomVectorIndex {
+
+    /** 常駐時のベクトルの持ち方 */
+    public enum Storage {
+        FLOAT32, INT8
+    }
+
+    private static final Logger logger = LoggerFactory.getLogger(RoomVectorIndex.class);
+
+    private static final int INITIAL_CAPACITY = 64;
+    // 日時の無い行の区分キー（最も古い扱い）
+    private static final int NO_TIMESTAMP = Integer.MIN_VALUE;
+    // 上界の計算誤差の余裕
+    private static final float BOUND_EPSILON = 1e-4f;
+
+    // estimatedBytes の概算に使う、参照1つと HashMap のエントリ1つ（キーの Integer を含む）のバイト数
+    private static final long REFERENCE_BYTES = 8L;
+    private static final long MAP_ENTRY_BYTES = 64L;
+
+    private final String roomKey;
+    private final HnswSettings hnswSettings;
+    private final Storage storage;
+    private final VectorKernel kernel;
+    private final ParallelScoring parallelScoring;
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+
+    private int dimension = -1;
+    private int size = 0;
+    private int capacity = 0;
+    // FLOAT32 のとき
+    private float[] vectors = new float[0];
+    // INT8 のとき（行ごとの scale / offset は QuantizedVector と同じ意味。正規化の係数も畳み込んである）
+    private byte[] codes = new byte[0];
+    private float[] scales = new float[0];
+    private float[] offsets = new float[0];
+
+    private String[] docIds = new String[0];
+    private String[] messages = new String[0];
+    private String[] senders = new String[0];
+    private long[] timestamps = new long[0];
+    private final Map<String, Integer> rowByDocId = new HashMap<>();
+    // 削除済みの行（行番号は詰めずに、採点の対象から外すだけ）
+    private final BitSet removedRows = new BitSet();
+    // 月ごとの区分（キーは UTC の 年*12+月-1）。recent 検索で新しい月から順に採点する
+    private final TreeMap<Integer, Partition> partitions = new TreeMap<>();
+    // 絞り込み用の、送信者ごと・room_id ごとの行番号（SearchFilter を採点前に評価する）
+    private final Map<String, RowBitmap> rowsBySender = new HashMap<>();
+    private final Map<String, RowBitmap> rowsByRoom = new HashMap<>();
+
+    // 件数が閾値を超えてから構築し、以降は add のたびに追加する
+    private HnswIndex graph;
+
+    private volatile boolean loaded = false;
+    // 最後に検索に使われた時刻（RoomVectorIndexManager がメモリの予算を超えたときに古いルームから捨てる）
+    private volatile long lastUsed = System.currentTimeMillis();
+    // 本文・送信者・ドキュメントIDの文字列の概算バイト数（書き込みロックの中で更新する）
+    private long payloadBytes = 0L;
+
+    public RoomVectorIndex(String roomKey) {
+        this(roomKey, HnswSettings.disabled(), Storage.FLOAT32, new ScalarKernel());
+    }
+
+    public RoomVectorIndex(String roomKey, HnswSettings hnswSettings, Storage storage, VectorKernel kernel) {
+        this(roomKey, hnswSettings, storage, kernel, -1);
+    }
+
+    /**
+     * @param dimension 受け付ける次元数。-1 なら最初に追加した行の次元数にする
+     */
+    public RoomVectorIndex(String roomKey, HnswSettings hnswSettings, Storage storage, VectorKernel kernel,
+            int dimension) {
+        this(roomKey, hnswSettings, storage, kernel, dimension, ParallelScoring.disabled());
+    }
+
+    public RoomVectorIndex(String roomKey, HnswSettings hnswSettings, Storage storage, VectorKernel kernel,
+            int dimension, ParallelScoring parallelScoring) {
+        this.roomKey = roomKey;
+        this.hnswSettings = hnswSettings;
+        this.storage = storage;
+        this.kernel = kernel;
+        this.dimension = dimension;
+        this.parallelScoring = parallelScoring;
+    }
+
+    public String getRoomKey() {
+        return roomKey;
+    }
+
+    public boolean isLoaded() {
+        return loaded;
+    }
+
+    void markLoaded() {
+        this.loaded = true;
+    }
+
+    public long lastUsed() {
+        return lastUsed;
+    }
+
+    void markUsed() {
+        this.lastUsed = System.currentTimeMillis();
+    }
+
+    /**
+     * ヒープ上の概算バイト数。ベクトルなどの配列は確保済みの行数（capacity）で数える（削除済みの行の分は compact するまで残る）。
+     * ドキュメントIDの表・本文は削除した時点で手放すので、削除済みの行の分は含めない。
+     */
+    public long estimatedBytes() {
+        lock.readLock().lock();
+        try {
+            long rowDimension = Math.max(0, dimension);
+            long vectorBytes = storage == Storage.INT8 ? rowDimension + 2L * Float.BYTES : rowDimension * Float.BYTES;
+            // ベクトル・タイムスタンプ・文字列の参照3つ（docId / message / sender）
+            long bytes = capacity * (vectorBytes + Long.BYTES + 3L * REFERENCE_BYTES);
+            // rowByDocId のエントリと、月ごとの区分の行番号
+            bytes += rowByDocId.size() * (MAP_ENTRY_BYTES + Integer.BYTES);
+            bytes += payloadBytes;
+            if (graph != null) {
+                bytes += graph.estimatedBytes();
+            }
+            for (RowBitmap rows : rowsBySender.values()) {
+                bytes += rows.estimatedBytes();
+            }
+            for (RowBitmap rows : rowsByRoom.values()) {
+                bytes += rows.estimatedBytes();
+            }
+            return bytes;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * ドキュメントの行が属するルームID（ルームをまたぐ検索の結果に、どのルームのメッセージかを付けるのに使う）。
+     * 無い・削除済みなら null。
+     */
+    public String roomOf(String docId) {
+        lock.readLock().lock();
+        try {
+            Integer row = rowByDocId.get(docId);
+            if (row == null || removedRows.get(row)) {
+                return null;
+            }
+            for (Map.Entry<String, RowBitmap> e : rowsByRoom.entrySet()) {
+                if (e.getValue().contains(row)) {
+                    return e.getKey();
+                }
+            }
+            return null;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 常駐しているベクトル同士のコサイン類似度の行列（MMR で結果の重なりを測るのに使う）。
+     * 常駐していない・削除済みのドキュメントが絡む要素は NaN。
+     */
+    public float[][] similarities(List<String> docIds) {
+        int n = docIds.size();
+        float[][] matrix = new float[n][n];
+        lock.readLock().lock();
+        try {
+            int[] rows = new int[n];
+            for (int i = 0; i < n; i++) {
+                Integer row = rowByDocId.get(docIds.get(i));
+                rows[i] = row == null || removedRows.get(row) ? -1 : row;
+            }
+            for (int i = 0; i < n; i++) {
+                for (int j = i; j < n; j++) {
+                    float similarity = rows[i] < 0 || rows[j] < 0 ? Float.NaN
+                            : i == j ? 1.0f : rowSimilarity(rows[i], rows[j]);
+                    matrix[i][j] = similarity;
+                    matrix[j][i] = similarity;
+                }
+            }
+            return matrix;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /** 行の次元数（まだ決まっていなければ -1） */
+    public int dimension() {
+        return dimension;
+    }
+
+    public int size() {
+        lock.readLock().lock();
+        try {
+            return size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 1行追加する。同じドキュメントIDが既にあれば何もしない（ロード中の追記と重複しても良いように）。
+     *
+     * @return 追加した場合 true
+     */
+    public boolean add(String docId, String message, String sender, Date timestamp, List<Double> embedding) {
+        return add(docId, null, message, sender, timestamp, embedding);
+    }
+
+    /**
+     * room_id を指定して1行追加する（SearchFilter のルーム指定で絞り込めるようになる）。
+     */
+    public boolean add(String docId, String roomId, String message, String sender, Date timestamp,
+            List<Double> embedding) {
+        if (embedding == null || embedding.isEmpty()) {
+            return false;
+        }
+        float[] values = new float[embedding.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = embedding.get(i).floatValue();
+        }
+        return addRow(docId, roomId, message, sender, timestamp, values, null);
+    }
+
+    /**
+     * float の配列で1行追加する（List<Double> に詰め替えずに済む）。配列は書き換えない。
+     */
+    public boolean add(String docId, String roomId, String message, String sender, Date timestamp,
+            float[] embedding) {
+        if (embedding == null || embedding.length == 0) {
+            return false;
+        }
+        return addRow(docId, roomId, message, sender, timestamp, embedding, null);
+    }
+
+    /**
+     * 量子化済みのベクトルで1行追加する。
+     */
+    public boolean add(String docId, String roomId, String message, String sender, Date timestamp,
+            QuantizedVector embedding) {
+        if (embedding == null || embedding.dimension() == 0) {
+            return false;
+        }
+        return addRow(docId, roomId, message, sender, timestamp, null, embedding);
+    }
+
+    private boolean addRow(String docId, String roomId, String message, String sender, Date timestamp,
+            float[] values, QuantizedVector quantized) {
+        int rowDimension = values != null ? values.length : quantized.dimension();
+        lock.writeLock().lock();
+        try {
+            if (docId != null && rowByDocId.containsKey(docId)) {
+                return false;
+            }
+            if (dimension < 0) {
+                dimension = rowDimension;
+            } else if (dimension != rowDimension) {
+                // 次元が異なるベクトルは比較できないので取り込まない
+                return false;
+            }
+            ensureCapacity(size + 1);
+            int row = size;
+            if (storage == Storage.INT8) {
+                QuantizedVector q = quantized != null ? quantized : QuantizedVector.quantize(normalize(values));
+                // 復元値のノルムで scale / offset を割っておけば、採点時は正規化済みとして扱える
+                float norm = quantized != null ? norm(q.dequantize()) : 1f;
+                System.arraycopy(q.codes(), 0, codes, row * dimension, dimension);
+                scales[row] = norm > 0f ? q.scale() / norm : 0f;
+                offsets[row] = norm > 0f ? q.offset() / norm : 0f;
+            } else {
+                float[] v = normalize(values != null ? values : quantized.dequantize());
+                System.arraycopy(v, 0, vectors, row * dimension, dimension);
+            }
+            docIds[row] = docId;
+            messages[row] = message;
+            senders[row] = sender;
+            timestamps[row] = timestamp != null ? timestamp.getTime() : Long.MIN_VALUE;
+            if (docId != null) {
+                rowByDocId.put(docId, row);
+            }
+            payloadBytes += stringBytes(docId) + stringBytes(message) + stringBytes(sender);
+            size++;
+            partitions.computeIfAbsent(monthKey(timestamps[row]), k -> new Partition()).add(row);
+            if (sender != null) {
+                rowsBySender.computeIfAbsent(sender, k -> new RowBitmap()).add(row);
+            }
+            if (roomId != null) {
+                rowsByRoom.computeIfAbsent(roomId, k -> new RowBitmap()).add(row);
+            }
+            if (graph != null) {
+                graph.insert(row);
+            }
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 行を削除済みにする。行そのものは compact するまで残り、検索結果に出なくなる（本文はこの時点で手放す）。
+     *
+     * @return 削除した場合 true
+     */
+    public boolean remove(String docId) {
+        lock.writeLock().lock();
+        try {
+            Integer row = rowByDocId.remove(docId);
+            if (row == null) {
+                return false;
+            }
+            removedRows.set(row);
+            payloadBytes -= stringBytes(messages[row]);
+            messages[row] = null;
+            return true;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /** 削除済みの行の割合（行が無ければ 0） */
+    public double removedRatio() {
+        lock.readLock().lock();
+        try {
+            return size == 0 ? 0.0 : (double) removedRows.cardinality() / size;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * 削除済みの行を詰めて、配列・区分・絞り込み用のビットマップを作り直す。HNSW のグラフは捨て、次の検索で作り直す
+     * （最初に件数が閾値を超えたときと同じ）。作り直す間は書き込みロックを取るので、検索は待たされる。
+     *
+     * @return 詰めた行数
+     */
+    public int compact() {
+        lock.writeLock().lock();
+        try {
+            int removed = removedRows.cardinality();
+            if (removed == 0) {
+                return 0;
+            }
+            // 行番号 → room_id（ビットマップからしか分からないので先に引いておく）
+            String[] roomIds = new String[size];
+            for (Map.Entry<String, RowBitmap> e : rowsByRoom.entrySet()) {
+                for (int row : e.getValue().toArray()) {
+                    roomIds[row] = e.getKey();
+                }
+            }
+            int liveRows = size - removed;
+            float[] oldVectors = vectors;
+            byte[] oldCodes = codes;
+            float[] oldScales = scales;
+            float[] oldOffsets = offsets;
+            String[] oldDocIds = docIds;
+            String[] oldMessages = messages;
+            String[] oldSenders = senders;
+            long[] oldTimestamps = timestamps;
+            int oldSize = size;
+            BitSet oldRemoved = (BitSet) removedRows.clone();
+
+            capacity = 0;
+            vectors = new float[0];
+            codes = new byte[0];
+            scales = new float[0];
+            offsets = new float[0];
+            docIds = new String[0];
+            messages = new String[0];
+            senders = new String[0];
+            timestamps = new long[0];
+            ensureCapacity(liveRows);
+            rowByDocId.clear();
+            partitions.clear();
+            rowsBySender.clear();
+            rowsByRoom.clear();
+            removedRows.clear();
+            graph = null;
+            payloadBytes = 0L;
+            size = 0;
+
+            for (int old = 0; old < oldSize; old++) {
+                if (oldRemoved.get(old)) {
+                    continue;
+                }
+                int row = size++;
+                if (storage == Storage.INT8) {
+                    System.arraycopy(oldCodes, old * dimension, codes, row * dimension, dimension);
+                    scales[row] = oldScales[old];
+                    offsets[row] = oldOffsets[old];
+                } else {
+                    System.arraycopy(oldVectors, old * dimension, vectors, row * dimension, dimension);
+                }
+                docIds[row] = oldDocIds[old];
+                messages[row] = oldMessages[old];
+                senders[row] = oldSenders[old];
+                timestamps[row] = oldTimestamps[old];
+                if (docIds[row] != null) {
+                    rowByDocId.put(docIds[row], row);
+                }
+                payloadBytes += stringBytes(docIds[row]) + stringBytes(messages[row]) + stringBytes(senders[row]);
+                partitions.computeIfAbsent(monthKey(timestamps[row]), k -> new Partition()).add(row);
+                if (senders[row] != null) {
+                    rowsBySender.computeIfAbsent(senders[row], k -> new RowBitmap()).add(row);
+                }
+                if (roomIds[old] != null) {
+                    rowsByRoom.computeIfAbsent(roomIds[old], k -> new RowBitmap()).add(row);
+                }
+            }
+            return removed;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * 類似度上位 topK 件を返す。HNSW モードで件数が閾値以上なら近似検索、それ以外は全行を採点する。
+     */
+    public List<Hit> search(List<Double> query, int topK) {
+        return search(query, topK, SearchWindow.full());
+    }
+
+    /**
+     * 類似度上位 topK 件を返す。window が recent なら月ごとの区分を新しい順に採点し、
+     * 残りの区分の類似度の上界が現在の topK 件目を超えられなくなった時点（または遡る月数に達した時点）で打ち切る。
+     */
+    public List<Hit> search(List<Double> query, int topK, SearchWindow window) {
+        return search(query, topK, window, SearchFilter.none());
+    }
+
+    /**
+     * filter で絞り込んだ上で、類似度上位 topK 件を返す。
+     * 絞り込みは送信者・ルームごとの行番号のビットマップと月ごとの区分で先に行い、残った行だけを全件採点する
+     * （条件が厳しいほど採点する行が減る。HNSW は絞り込みと相性が悪いので使わない）。
+     */
+    public List<Hit> search(List<Double> query, int topK, SearchWindow window, SearchFilter filter) {
+        if (filter.isEmpty() && !window.recentFirst() && hnswSettings.appliesTo(size()) && graph == null) {
+            buildGraph();
+        }
+        lock.readLock().lock();
+        try {
+            List<Hit> hits = new ArrayList<>();
+            if (query == null) {
+                return hits;
+            }
+            if (dimension >= 0 && query.size() != dimension) {
+                // 次元数の違うベクトル同士は比較できない（モデルや outputDimensionality の設定が変わった）
+                throw new IllegalArgumentException("質問ベクトルの次元数 " + query.size() + " がインデックス（" + roomKey
+                        + "）の次元数 " + dimension + " と異なります");
+            }
+            if (size == 0) {
+                return hits;
+            }
+            float[] q = new float[dimension];
+            for (int i = 0; i < dimension; i++) {
+                q[i] = query.get(i).floatValue();
+            }
+            QueryVector queryVector = new QueryVector(normalize(q));
+
+            if (!filter.isEmpty()) {
+                int[] rows = filterRows(filter, window.minTimestamp(System.currentTimeMillis())).toArray();
+                return toHits(score(queryVector, rows, 0, rows.length, topK));
+            }
+            if (window.recentFirst()) {
+                return searchRecent(queryVector, topK, window);
+            }
+            if (graph != null && hnswSettings.appliesTo(size)) {
+                // 削除済みの行はグラフに残っているので、その分だけ多めに取ってから除く
+                int removed = removedRows.cardinality();
+                for (HnswIndex.Neighbor n : graph.search(row -> cosineSimilarity(queryVector, row), topK + removed,
+                        hnswSettings.efSearch())) {
+                    if (!removedRows.get(n.row()) && hits.size() < topK) {
+                        hits.add(hitAt(n.row(), n.score()));
+                    }
+                }
+                return hits;
+            }
+
+            // 全行を採点し、結果オブジェクトは上位 topK 件分だけ作る
+            return toHits(score(queryVector, null, 0, size, topK));
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // 読み取りロックを取った状態で呼ぶ
+    private List<Hit> searchRecent(QueryVector queryVector, int topK, SearchWindow window) {
+        long minTimestamp = window.minTimestamp(System.currentTimeMillis());
+        // 遡る月数の指定があるときは、日時の無い行（NO_TIMESTAMP）も範囲外になる
+        int oldestKey = minTimestamp == Long.MIN_VALUE ? NO_TIMESTAMP : monthKey(minTimestamp);
+        List<Partition> ordered = new ArrayList<>(partitions.tailMap(oldestKey, true).descendingMap().values());
+
+        // 各区分の上界と、その区分より古い区分の上界の最大値
+        float[] bounds = new float[ordered.size()];
+        float[] remainingMax = new float[ordered.size() + 1];
+        remainingMax[ordered.size()] = Float.NEGATIVE_INFINITY;
+        for (int i = ordered.size() - 1; i >= 0; i--) {
+            bounds[i] = ordered.get(i).upperBound(queryVector);
+            remainingMax[i] = Math.max(bounds[i], remainingMax[i + 1]);
+        }
+
+        TopKCollector collector = new TopKCollector(topK);
+        int scanned = 0;
+        for (int i = 0; i < ordered.size(); i++) {
+            if (collector.size() == topK) {
+                if (collector.threshold() >= remainingMax[i]) {
+                    break;
+                }
+                if (collector.threshold() >= bounds[i]) {
+                    continue;
+                }
+            }
+            Partition partition = ordered.get(i);
+            if (parallelScoring.appliesTo(partition.count)) {
+                collector.merge(score(queryVector, partition.rows, 0, partition.count, topK));
+            } else {
+                scoreRange(queryVector, partition.rows, 0, partition.count, collector);
+            }
+            scanned++;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("期間区分を新しい順に検索しました: roomId={}, 採点した区分={}/{}", roomKey, scanned,
+                    ordered.size());
+        }
+        return toHits(collector);
+    }
+
+    /**
+     * rowIds が null なら行番号 from 〜 to-1 を、そうでなければ rowIds[from] 〜 rowIds[to-1] の行を採点する。
+     * 件数が多ければ採点専用のプールで分割して並列に採点し、分割ごとの上位 topK 件をまとめる。読み取りロックを取った状態で呼ぶ。
+     */
+    private TopKCollector score(QueryVector query, int[] rowIds, int from, int to, int topK) {
+        if (parallelScoring.appliesTo(to - from)) {
+            // 呼び出し元が読み取りロックを持っているので、採点中に行が書き換わることはない
+            return parallelScoring.pool().invoke(new ScoreTask(query, rowIds, from, to, topK));
+        }
+        TopKCollector collector = new TopKCollector(topK);
+        scoreRange(query, rowIds, from, to, collector);
+        return collector;
+    }
+
+    private void scoreRange(QueryVector query, int[] rowIds, int from, int to, TopKCollector collector) {
+        for (int i = from; i < to; i++) {
+            int row = rowIds == null ? i : rowIds[i];
+            if (!removedRows.get(row)) {
+                collector.offer(row, cosineSimilarity(query, row));
+            }
+        }
+    }
+
+    /** 範囲を半分ずつに分けて採点し、分割ごとの上位を前半・後半の順にまとめる（同点時の順位は逐次採点と同じ） */
+    private final class ScoreTask extends RecursiveTask<TopKCollector> {
+        private final QueryVector query;
+        private final int[] rowIds;
+        private final int from;
+        private final int to;
+        private final int topK;
+
+        ScoreTask(QueryVector query, int[] rowIds, int from, int to, int topK) {
+            this.query = query;
+            this.rowIds = rowIds;
+            this.from = from;
+            this.to = to;
+            this.topK = topK;
+        }
+
+        @Override
+        protected TopKCollector compute() {
+            if (to - from <= parallelScoring.chunkRows()) {
+                TopKCollector collector = new TopKCollector(topK);
+                scoreRange(query, rowIds, from, to, collector);
+                return collector;
+            }
+            int mid = (from + to) >>> 1;
+            ScoreTask left = new ScoreTask(query, rowIds, from, mid, topK);
+            left.fork();
+            TopKCollector right = new ScoreTask(query, rowIds, mid, to, topK).compute();
+            TopKCollector merged = left.join();
+            merged.merge(right);
+            return merged;
+        }
+    }
+
+    // 読み取りロックを取った状態で呼ぶ。送信者・ルームのビットマップを組み合わせてから期間で絞る
+    private RowBitmap filterRows(SearchFilter filter, long windowMinTimestamp) {
+        RowBitmap result = null;
+        if (!filter.senders().isEmpty()) {
+            result = new RowBitmap();
+            for (String sender : filter.senders()) {
+                RowBitmap rows = rowsBySender.get(sender);
+                if (rows != null) {
+                    result = RowBitmap.or(result, rows);
+                }
+            }
+        }
+        if (filter.roomSubtree() != null && (result == null || !result.isEmpty())) {
+            RowBitmap rooms = new RowBitmap();
+            for (Map.Entry<String, RowBitmap> e : rowsByRoom.entrySet()) {
+                if (filter.matchesRoom(e.getKey())) {
+                    rooms = RowBitmap.or(rooms, e.getValue());
+                }
+            }
+            result = result == null ? rooms : RowBitmap.and(result, rooms);
+        }
+
+        long from = filter.fromMillis() != null ? Math.max(filter.fromMillis(), windowMinTimestamp) : windowMinTimestamp;
+        long to = filter.toMillis() != null ? filter.toMillis() : Long.MAX_VALUE;
+        if (from == Long.MIN_VALUE && to == Long.MAX_VALUE) {
+            return result != null ? result : allRows();
+        }
+        SearchFilter range = new SearchFilter(null, from == Long.MIN_VALUE ? null : from,
+                to == Long.MAX_VALUE ? null : to, null);
+        RowBitmap inRange = new RowBitmap();
+        if (result != null) {
+            // 送信者・ルームで絞った後なら、残った行の日時を直接見る
+            for (int row : result.toArray()) {
+                if (range.matchesTime(timestamps[row])) {
+                    inRange.add(row);
+                }
+            }
+            return inRange;
+        }
+        // 期間だけなら月ごとの区分から集める（範囲の途中の月は全行、端の月だけ日時を見る）
+        int fromKey = from == Long.MIN_VALUE ? NO_TIMESTAMP + 1 : monthKey(from);
+        int toKey = to == Long.MAX_VALUE ? Integer.MAX_VALUE : monthKey(to);
+        for (Map.Entry<Integer, Partition> e : partitions.subMap(fromKey, true, toKey, true).entrySet()) {
+            Partition partition = e.getValue();
+            boolean inner = e.getKey() > fromKey && e.getKey() < toKey;
+            for (int i = 0; i < partition.count; i++) {
+                int row = partition.rows[i];
+                if (inner || range.matchesTime(timestamps[row])) {
+                    inRange.add(row);
+                }
+            }
+        }
+        return inRange;
+    }
+
+    private RowBitmap allRows() {
+        RowBitmap rows = new RowBitmap();
+        for (int row = 0; row < size; row++) {
+            rows.add(row);
+        }
+        return rows;
+    }
+
+    private List<Hit> toHits(TopKCollector collector) {
+        int[] rows = new int[collector.size()];
+        float[] scores = new float[rows.length];
+        collector.drain(rows, scores);
+        List<Hit> hits = new ArrayList<>(rows.length);
+        for (int i = 0; i < rows.length; i++) {
+            hits.add(hitAt(rows[i], scores[i]));
+        }
+        return hits;
+    }
+
+    /** エポックミリ秒を UTC の 年*12+月-1 に変換する（日時が無い行は NO_TIMESTAMP） */
+    private static int monthKey(long epochMillis) {
+        if (epochMillis == Long.MIN_VALUE) {
+            return NO_TIMESTAMP;
+        }
+        LocalDate date = Instant.ofEpochMilli(epochMillis).atZone(ZoneOffset.UTC).toLocalDate();
+        return date.getYear() * 12 + date.getMonthValue() - 1;
+    }
+
+    /** 行の復元値（正規化済み）を out に書き出す */
+    private void rowValues(int row, float[] out) {
+        int base = row * dimension;
+        if (storage == Storage.INT8) {
+            for (int i = 0; i < dimension; i++) {
+                out[i] = (codes[base + i] + 128) * scales[row] + offsets[row];
+            }
+        } else {
+            System.arraycopy(vectors, base, out, 0, dimension);
+        }
+    }
+
+    private void buildGraph() {
+        lock.writeLock().lock();
+        try {
+            if (graph != null) {
+                return;
+            }
+            HnswIndex built = new HnswIndex(hnswSettings.m(), hnswSettings.efConstruction(), this::rowSimilarity);
+            for (int row = 0; row < size; row++) {
+                built.insert(row);
+            }
+            graph = built;
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    private float cosineSimilarity(QueryVector query, int row) {
+        if (storage == Storage.INT8) {
+            // Σ q_i * ((c_i + 128) * scale + offset) = scale * Σ q_i * (c_i + 128) + offset * Σ q_i
+            return scales[row] * kernel.dotCodes(query.values, codes, row * dimension, dimension)
+                    + offsets[row] * query.sum;
+        }
+        return kernel.dot(query.values, 0, vectors, row * dimension, dimension);
+    }
+
+    private float rowSimilarity(int a, int b) {
+        if (storage == Storage.INT8) {
+            int offsetA = a * dimension;
+            int offsetB = b * dimension;
+            float dot = 0.0f;
+            for (int i = 0; i < dimension; i++) {
+                float va = (codes[offsetA + i] + 128) * scales[a] + offsets[a];
+                float vb = (codes[offsetB + i] + 128) * scales[b] + offsets[b];
+                dot += va * vb;
+            }
+            return dot;
+        }
+        return kernel.dot(vectors, a * dimension, vectors, b * dimension, dimension);
+    }
+
+    private Hit hitAt(int row, double similarity) {
+        Date ts = timestamps[row] == Long.MIN_VALUE ? null : new Date(timestamps[row]);
+        return new Hit(docIds[row], messages[row], senders[row], ts, similarity);
+    }
+
+    private void ensureCapacity(int rows) {
+        if (capacity >= rows) {
+            return;
+        }
+        int newRows = Math.max(INITIAL_CAPACITY, capacity * 2);
+        while (newRows < rows) {
+            newRows *= 2;
+        }
+        if (storage == Storage.INT8) {
+            codes = Arrays.copyOf(codes, newRows * dimension);
+            scales = Arrays.copyOf(scales, newRows);
+            offsets = Arrays.copyOf(offsets, newRows);
+        } else {
+            vectors = Arrays.copyOf(vectors, newRows * dimension);
+        }
+        docIds = Arrays.copyOf(docIds, newRows);
+        messages = Arrays.copyOf(messages, newRows);
+        senders = Arrays.copyOf(senders, newRows);
+        timestamps = Arrays.copyOf(timestamps, newRows);
+        capacity = newRows;
+    }
+
+    private static long stringBytes(String s) {
+        // ヘッダと配列を合わせて約40バイト + UTF-16 で1文字2バイト（Latin-1 だけなら実際はこの半分）
+        return s == null ? 0L : 40L + 2L * s.length();
+    }
+
+    private static float norm(float[] v) {
+        double sum = 0.0;
+        for (float x : v) {
+            sum += x * x;
+        }
+        return (float) Math.sqrt(sum);
+    }
+
+    /** 長さ1に正規化したコピーを返す（ゼロベクトルはそのまま） */
+    static float[] normalize(float[] v) {
+        float norm = norm(v);
+        float[] normalized = new float[v.length];
+        if (norm == 0f) {
+            return normalized;
+        }
+        for (int i = 0; i < v.length; i++) {
+            normalized[i] = v[i] / norm;
+        }
+        return normalized;
+    }
+
+    /**
+     * 1か月分の行。基準点 anchor と、各行の anchor からの距離の最大値 radius を持ち、
+     * 質問ベクトル q（長さ1）に対して q・v <= q・anchor + radius で区分内の類似度の上界を出す。
+     * anchor は区分の重心で、行数が前回計算時の2倍になったら取り直す（それまでは radius だけ更新する）。
+     * 書き込みロックの中で更新し、読み取りロックの中で参照する。
+     */
+    private final class Partition {
+        int[] rows = new int[16];
+        int count = 0;
+        float[] anchor;
+        float radius;
+        int anchoredCount = 0;
+
+        void add(int row) {
+            if (count == rows.length) {
+                rows = Arrays.copyOf(rows, count * 2);
+            }
+            rows[count++] = row;
+            if (anchor == null || count >= anchoredCount * 2) {
+                reanchor();
+            } else {
+                float[] v = new float[dimension];
+                rowValues(row, v);
+                radius = Math.max(radius, distance(v, anchor));
+            }
+        }
+
+        private void reanchor() {
+            float[] v = new float[dimension];
+            float[] centroid = new float[dimension];
+            for (int j = 0; j < count; j++) {
+                rowValues(rows[j], v);
+                for (int i = 0; i < dimension; i++) {
+                    centroid[i] += v[i];
+                }
+            }
+            for (int i = 0; i < dimension; i++) {
+                centroid[i] /= count;
+            }
+            float r = 0f;
+            for (int j = 0; j < count; j++) {
+                rowValues(rows[j], v);
+                r = Math.max(r, distance(v, centroid));
+            }
+            anchor = centroid;
+            radius = r;
+            anchoredCount = count;
+        }
+
+        float upperBound(QueryVector query) {
+            return kernel.dot(query.values, 0, anchor, 0, dimension) + radius + BOUND_EPSILON;
+        }
+
+        private float distance(float[] a, float[] b) {
+            double sum = 0.0;
+            for (int i = 0; i < a.length; i++) {
+                double d = a[i] - b[i];
+                sum += d * d;
+            }
+            return (float) Math.sqrt(sum);
+        }
+    }
+
+    /** 正規化済みの質問ベクトルと、int8 の採点で使う要素の総和 */
+    private static final class QueryVector {
+        final float[] values;
+        final float sum;
+
+        QueryVector(float[] values) {
+            this.values = values;
+            float s = 0f;
+            for (float v : values) {
+                s += v;
+            }
+            this.sum = s;
+        }
+    }
+
+    /** 検索結果の1件 */
+    public record Hit(String docId, String message, String sender, Date timestamp, double similarity) {
+    }
+}
@@ -0,0 +1,382 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import com.example.google.google_hackathon.service.VertexAIService;
+import com.example.google.google_hackathon.service.similarity.store.StoredVector;
+import com.example.google.google_hackathon.service.similarity.store.VectorStore;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * ルームごとのベクトルインデックスを常駐させて管理する。
+ * 初回の検索時に VectorStore（既定は Firestore の chat_embeddings）から読み込み、以降はチャット保存時の追記で更新する。
+ * 常駐インデックスの概算バイト数の合計が memory-budget-mb を超えたら、最後に検索されたのが古いルームから捨てる
+ * （捨てたルームは次の検索で読み込み直す）。予算には LexicalIndexManager の n-gram インデックスも含め、両方を合わせた古い順に捨てる。同じルームの読み込みが重なったときは、インデックスのロックで1回にまとめる。
+ */
+@Component
+public class RoomVectorIndexManager {
+
+    private static final Logger logger = LoggerFactory.getLogger(RoomVectorIndexManager.class);
+
+    @Autowired
+    private VectorStore vectorStore;
+
+    @Autowired
+    private VertexAIService vertexAIService;
+
+    @Autowired
+    private LexicalIndexManager lexicalIndexManager;
+
+    // exact: 全件検索 / hnsw: 近似最近傍探索（件数が少ないルームは全件検索）
+    @Value("${similarity.search-mode:exact}")
+    private String searchMode;
+
+    @Value("${similarity.hnsw.m:16}")
+    private int hnswM;
+
+    @Value("${similarity.hnsw.ef-construction:200}")
+    private int hnswEfConstruction;
+
+    @Value("${similarity.hnsw.ef-search:64}")
+    private int hnswEfSearch;
+
+    @Value("${similarity.hnsw.exact-threshold:2000}")
+    private int hnswExactThreshold;
+
+    // float32: float のまま常駐 / int8: 量子化して常駐（約 1/4 のヒープ）
+    @Value("${similarity.index.storage:float32}")
+    private String indexStorage;
+
+    // full: 本文も含めて常駐させる / two-phase: ID とベクトル（と絞り込み用の送信者・日時）だけを常駐させ、上位 K 件の本文は後から取得する
+    @Value("${similarity.retrieval.mode:full}")
+    private String retrievalMode;
+
+    // 常駐インデックス全体の上限（MB）。0 ならヒープの最大サイズの 40%
+    @Value("${similarity.index.memory-budget-mb:0}")
+    private long memoryBudgetMb;
+
+    // 削除済みの行（削除・置き換えで残った行）がこの割合を超えたら詰める
+    @Value("${similarity.index.compaction-ratio:0.2}")
+    private double compactionRatio;
+
+    private final VectorKernel kernel;
+    private final ParallelScoring parallelScoring;
+    private final Counter evictions;
+    private final Counter loads;
+
+    // 削除済みの行がこれより少なければ、割合を超えていても詰めない（小さいルームで何度も作り直さないように）
+    private static final int COMPACTION_MIN_REMOVED = 64;
+
+    // ルーム1つだけ（子孫・同じ文字で始まる別のルームを含まない）のインデックスのキーに付ける印
+    private static final String EXACT_ROOM_KEY = "=";
+
+    // ResidentRoom.kind の値
+    private static final String VECTOR = "vector";
+    private static final String LEXICAL = "lexical";
+
+    private final ConcurrentHashMap<String, RoomVectorIndex> indexes = new ConcurrentHashMap<>();
+
+    // auto / vector: Vector API が使えれば SIMD 版 / scalar: 常にスカラー版（比較用）
+    // parallel.*: 行数の多いルームの全件採点を、採点専用の ForkJoinPool で分割して並列に行う
+    //   （parallelism はプール全体のスレッド数で、同時に来た質問もこの中で分け合う。0 ならコア数の半分）
+    public RoomVectorIndexManager(@Value("${similarity.kernel:auto}") String kernelMode,
+            @Value("${similarity.parallel.enabled:true}") boolean parallelEnabled,
+            @Value("${similarity.parallel.min-rows:20000}") int parallelMinRows,
+            @Value("${similarity.parallel.chunk-rows:4096}") int parallelChunkRows,
+            @Value("${similarity.parallel.parallelism:0}") int parallelism, MeterRegistry meterRegistry) {
+        this.kernel = VectorKernel.select(kernelMode);
+        logger.info("類似度計算のカーネル: {} (similarity.kernel={})", kernel.name(), kernelMode);
+        if (parallelEnabled) {
+            int threads = parallelism > 0 ? parallelism
+                    : Math.max(1, Runtime.getRuntime().availableProcessors() / 2);
+            ForkJoinPool pool = new ForkJoinPool(threads, p -> {
+                ForkJoinWorkerThread t = ForkJoinPool.defaultForkJoinWorkerThreadFactory.newThread(p);
+                t.setName("similarity-scoring-" + t.getPoolIndex());
+                t.setDaemon(true);
+                return t;
+            }, null, false);
+            this.parallelScoring = new ParallelScoring(pool, parallelMinRows, Math.max(1, parallelChunkRows));
+            logger.info("並列採点: {} スレッド, {} 行以上で有効", threads, parallelMinRows);
+        } else {
+            this.parallelScoring = ParallelScoring.disabled();
+        }
+        this.evictions = meterRegistry.counter("similarity.index.evictions");
+        this.loads = meterRegistry.counter("similarity.index.loads");
+        Gauge.builder("similarity.index.resident.rooms", this, m -> m.residentRooms().size()).register(meterRegistry);
+        Gauge.builder("similarity.index.resident.bytes", this, RoomVectorIndexManager::residentBytes)
+                .register(meterRegistry);
+        Gauge.builder("similarity.index.budget.bytes", this, RoomVectorIndexManager::budgetBytes)
+                .register(meterRegistry);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        if (parallelScoring.pool() != null) {
+            parallelScoring.pool().shutdown();
+        }
+    }
+
+    /**
+     * roomId（プレフィックス）に対応するインデックスを返す。未ロードならここで読み込む。
+     */
+    public RoomVectorIndex getIndex(String roomId) throws Exception {
+        RoomVectorIndex index = indexes.computeIfAbsent(roomId, this::newIndex);
+        index.markUsed();
+        if (index.isLoaded()) {
+            return index;
+        }
+        // 同時に来た検索は、最初の1つが読み込み終わるのを待つ
+        synchronized (index) {
+            if (!index.isLoaded()) {
+                try {
+                    load(index);
+                    index.markLoaded();
+                    loads.increment();
+                } catch (Exception e) {
+                    // 次回の検索で読み直せるように破棄する
+                    indexes.remove(roomId, index);
+                    throw e;
+                }
+            }
+        }
+        enforceBudget(index);
+        return index;
+    }
+
+    /**
+     * roomIndex のルームのメッセージだけを持つインデックスを返す（getIndex と違い "1" で "10" や "1-2" は読み込まない）。
+     * ルームをまたぐ検索で、シャード同士が重ならないように使う。
+     */
+    public RoomVectorIndex getRoomIndex(String roomIndex) throws Exception {
+        return getIndex(EXACT_ROOM_KEY + roomIndex);
+    }
+
+    /**
+     * キーのインデックスに roomId のメッセージが入るか。ふつうのキーは Firestore 側の範囲検索（roomId 〜 roomId + \uf8ff）と
+     * 同じくプレフィックスで、getRoomIndex のキーは完全一致で判定する。
+     */
+    static boolean covers(String roomKey, String roomId) {
+        return roomKey.startsWith(EXACT_ROOM_KEY) ? roomId.equals(roomKey.substring(EXACT_ROOM_KEY.length()))
+                : roomId.startsWith(roomKey);
+    }
+
+    /**
+     * 追記で増えた分も含めて、定期的に予算を確認する。
+     */
+    @Scheduled(fixedDelayString = "${similarity.index.budget-check-ms:60000}")
+    public void checkBudget() {
+        enforceBudget(null);
+    }
+
+    /**
+     * 常駐しているインデックスの一覧（ベクトルと n-gram。最後に検索された順）。
+     */
+    public List<ResidentRoom> residentRooms() {
+        List<ResidentRoom> rooms = new ArrayList<>();
+        for (RoomVectorIndex index : indexes.values()) {
+            if (index.isLoaded()) {
+                rooms.add(new ResidentRoom(index.getRoomKey(), VECTOR, index.size(), index.estimatedBytes(),
+                        index.lastUsed()));
+            }
+        }
+        for (LexicalIndex index : lexicalIndexManager.residentIndexes()) {
+            rooms.add(new ResidentRoom(index.getRoomKey(), LEXICAL, index.size(), index.estimatedBytes(),
+                    index.lastUsed()));
+        }
+        rooms.sort(Comparator.comparingLong(ResidentRoom::lastUsed).reversed());
+        return rooms;
+    }
+
+    public long residentBytes() {
+        long total = 0L;
+        for (ResidentRoom room : residentRooms()) {
+            total += room.bytes();
+        }
+        return total;
+    }
+
+    public long budgetBytes() {
+        return memoryBudgetMb > 0 ? memoryBudgetMb * 1024L * 1024L : (long) (Runtime.getRuntime().maxMemory() * 0.4);
+    }
+
+    public long evictionCount() {
+        return (long) evictions.count();
+    }
+
+    // 予算を超えていれば、最後に検索されたのが古いルームから捨てる（keep は今使おうとしているので捨てない）
+    synchronized void enforceBudget(Object keep) {
+        long budget = budgetBytes();
+        List<ResidentRoom> rooms = residentRooms();
+        long total = 0L;
+        for (ResidentRoom room : rooms) {
+            total += room.bytes();
+        }
+        for (int i = rooms.size() - 1; i >= 0 && total > budget; i--) {
+            ResidentRoom room = rooms.get(i);
+            if (evict(room, keep)) {
+                total -= room.bytes();
+                evictions.increment();
+                logger.info("メモリの予算を超えたためルームインデックスを破棄しました: roomId={}, 種類={}, 件数={}, {}KB",
+                        room.roomKey(), room.kind(), room.rows(), room.bytes() / 1024);
+            }
+        }
+        if (total > budget) {
+            logger.warn("常駐インデックスがメモリの予算を超えています: {}MB > {}MB（使用中のルームは破棄しません）",
+                    total / (1024 * 1024), budget / (1024 * 1024));
+        }
+    }
+
+    private boolean evict(ResidentRoom room, Object keep) {
+        if (LEXICAL.equals(room.kind())) {
+            LexicalIndex index = lexicalIndexManager.residentIndexes().stream()
+                    .filter(lexical -> lexical.getRoomKey().equals(room.roomKey())).findFirst().orElse(null);
+            return index != null && index != keep && lexicalIndexManager.evict(index);
+        }
+        RoomVectorIndex index = indexes.get(room.roomKey());
+        return index != null && index != keep && indexes.remove(room.roomKey(), index);
+    }
+
+    /**
+     * 新しく保存された埋め込みを、該当する常駐インデックス（ロード中のものを含む）へ追記する。
+     */
+    public void append(String docId, String roomId, String message, String sender, Date timestamp,
+            List<Double> embedding) {
+        if (roomId == null) {
+            return;
+        }
+        boolean twoPhase = isTwoPhase();
+        for (RoomVectorIndex index : indexes.values()) {
+            if (covers(index.getRoomKey(), roomId)) {
+                // two-phase でも送信者と日時は絞り込みに使うので残す
+                index.add(docId, roomId, twoPhase ? null : message, sender, timestamp, embedding);
+            }
+        }
+    }
+
+    /**
+     * VectorStore 側の変更（他のインスタンスでの保存など）を、該当する常駐インデックスへ反映する。
+     *
+     * @param replace true なら同じドキュメントIDの行を置き換える（false なら既にある行はそのまま）
+     */
+    public void apply(StoredVector vector, boolean replace) {
+        if (vector.roomId() == null || !isCurrentEmbedding(vector)) {
+            return;
+        }
+        StoredVector row = isTwoPhase() ? vector.withoutPayload() : vector;
+        for (RoomVectorIndex index : indexes.values()) {
+            if (covers(index.getRoomKey(), vector.roomId())) {
+                if (replace && index.remove(vector.docId())) {
+                    compactIfNeeded(index);
+                }
+                row.addTo(index);
+            }
+        }
+    }
+
+    /**
+     * 削除されたメッセージを、該当する常駐インデックスから外す。
+     */
+    public void remove(String docId, String roomId) {
+        if (roomId == null) {
+            return;
+        }
+        for (RoomVectorIndex index : indexes.values()) {
+            if (covers(index.getRoomKey(), roomId) && index.remove(docId)) {
+                compactIfNeeded(index);
+            }
+        }
+    }
+
+    // 削除済みの行の割合が compaction-ratio を超えたら、行・区分・ビットマップ・HNSW のノードを作り直して手放す
+    private void compactIfNeeded(RoomVectorIndex index) {
+        if (index.removedRatio() <= compactionRatio
+                || index.removedRatio() * index.size() < COMPACTION_MIN_REMOVED) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        long before = index.estimatedBytes();
+        int removed = index.compact();
+        if (removed > 0) {
+            logger.info("ルームインデックスの削除済みの行を詰めました: roomId={}, {} 行, {}KB → {}KB, {}ms",
+                    index.getRoomKey(), removed, before / 1024, index.estimatedBytes() / 1024,
+                    System.currentTimeMillis() - start);
+        }
+    }
+
+    /**
+     * 常駐インデックスをすべて破棄する（VectorStore を作り直したとき用）。次の検索で読み込み直す。
+     */
+    public void invalidateAll() {
+        indexes.clear();
+    }
+
+    private RoomVectorIndex newIndex(String roomId) {
+        HnswSettings hnswSettings = new HnswSettings("hnsw".equalsIgnoreCase(searchMode), hnswM,
+                hnswEfConstruction, hnswEfSearch, hnswExactThreshold);
+        RoomVectorIndex.Storage storage = "int8".equalsIgnoreCase(indexStorage)
+                ? RoomVectorIndex.Storage.INT8
+                : RoomVectorIndex.Storage.FLOAT32;
+        // 次元数は今の設定で固定し、違う次元数のベクトル（設定変更前のもの）は混ぜない
+        return new RoomVectorIndex(roomId, hnswSettings, storage, kernel, vertexAIService.outputDimension(),
+                parallelScoring);
+    }
+
+    /**
+     * 今の設定（モデルと outputDimensionality）で作った埋め込みか。モデルの記録が無い古いデータは次元数だけで判定する。
+     */
+    public boolean isCurrentEmbedding(StoredVector vector) {
+        return vector.dimension() == vertexAIService.outputDimension()
+                && (vector.model() == null || VertexAIService.MODEL_ID.equals(vector.model()));
+    }
+
+    /**
+     * 常駐しているインデックス1つ分の状態。kind は vector / lexical、lastUsed は最後に検索された時刻（エポックミリ秒）。
+     */
+    public record ResidentRoom(String roomKey, String kind, int rows, long bytes, long lastUsed) {
+    }
+
+    private boolean isTwoPhase() {
+        return "two-phase".equalsIgnoreCase(retrievalMode);
+    }
+
+    private void load(RoomVectorIndex index) throws Exception {
+        String roomId = index.getRoomKey();
+        long start = System.currentTimeMillis();
+        // two-phase のときは本文などは MessageHydrator が上位 K 件分だけ取得するので、ここではベクトルだけ読む
+        int[] skipped = { 0 };
+        String prefix = roomId.startsWith(EXACT_ROOM_KEY) ? roomId.substring(EXACT_ROOM_KEY.length()) : roomId;
+        vectorStore.scan(prefix, !isTwoPhase(), vector -> {
+            if (vector.roomId() == null || !covers(roomId, vector.roomId())) {
+                return;
+            }
+            if (isCurrentEmbedding(vector)) {
+                vector.addTo(index);
+            } else {
+                skipped[0]++;
+            }
+        });
+        logger.info("ルームインデックスを読み込みました: roomId={}, 件数={}, {}ms", roomId, index.size(),
+                System.currentTimeMillis() - start);
+        if (skipped[0] > 0) {
+            logger.warn("モデルまたは次元数が今の設定と異なる埋め込み {} 件を除外しました。"
+                    + "/api/admin/embeddings/reembed で埋め込み直してください: roomId={}", skipped[0], roomId);
+        }
+    }
+}
@@ -0,0 +1,305 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.util.Arrays;
+
+/**
+ * 行番号の集合。Roaring ビットマップと同じく上位16ビットごとのコンテナに分け、
+ * 4096 件以下のコンテナは下位16ビットのソート済み配列、それより多いコンテナは 65536 ビットのビットマップで持つ。
+ * 常駐インデックスの絞り込み（送信者・ルーム・期間）を、採点の前に AND / OR で組み合わせるのに使う。
+ *
+ * スレッドセーフではない（RoomVectorIndex のロックの中で使う）。and / or の結果は入力とコンテナを共有することがあるので、
+ * 結果に add しないこと。
+ */
+public final class RowBitmap {
+
+    private static final int ARRAY_MAX = 4096;
+    private static final int BITMAP_WORDS = 1 << 10;
+
+    private char[] keys = new char[4];
+    private Container[] containers = new Container[4];
+    private int size = 0;
+
+    public void add(int row) {
+        char high = (char) (row >>> 16);
+        int i;
+        // 行は追加順に番号が増えるので、たいてい最後のコンテナに入る
+        if (size > 0 && keys[size - 1] == high) {
+            i = size - 1;
+        } else {
+            i = Arrays.binarySearch(keys, 0, size, high);
+            if (i < 0) {
+                i = -i - 1;
+                insertContainer(i, high, new Container());
+            }
+        }
+        containers[i].add((char) row);
+    }
+
+    public boolean contains(int row) {
+        int i = Arrays.binarySearch(keys, 0, size, (char) (row >>> 16));
+        return i >= 0 && containers[i].contains((char) row);
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public int cardinality() {
+        int cardinality = 0;
+        for (int i = 0; i < size; i++) {
+            cardinality += containers[i].cardinality;
+        }
+        return cardinality;
+    }
+
+    /**
+     * 昇順の行番号の配列にする。
+     */
+    public int[] toArray() {
+        int[] rows = new int[cardinality()];
+        int n = 0;
+        for (int i = 0; i < size; i++) {
+            n = containers[i].copyTo(rows, n, keys[i] << 16);
+        }
+        return rows;
+    }
+
+    public long estimatedBytes() {
+        long bytes = 32L + keys.length * 2L + containers.length * 8L;
+        for (int i = 0; i < size; i++) {
+            bytes += containers[i].estimatedBytes();
+        }
+        return bytes;
+    }
+
+    public static RowBitmap and(RowBitmap a, RowBitmap b) {
+        RowBitmap result = new RowBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.size && j < b.size) {
+            if (a.keys[i] < b.keys[j]) {
+                i++;
+            } else if (a.keys[i] > b.keys[j]) {
+                j++;
+            } else {
+                Container c = a.containers[i].and(b.containers[j]);
+                if (c.cardinality > 0) {
+                    result.insertContainer(result.size, a.keys[i], c);
+                }
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    public static RowBitmap or(RowBitmap a, RowBitmap b) {
+        RowBitmap result = new RowBitmap();
+        int i = 0;
+        int j = 0;
+        while (i < a.size || j < b.size) {
+            if (j >= b.size || (i < a.size && a.keys[i] < b.keys[j])) {
+                result.insertContainer(result.size, a.keys[i], a.containers[i]);
+                i++;
+            } else if (i >= a.size || a.keys[i] > b.keys[j]) {
+                result.insertContainer(result.size, b.keys[j], b.containers[j]);
+                j++;
+            } else {
+                result.insertContainer(result.size, a.keys[i], a.containers[i].or(b.containers[j]));
+                i++;
+                j++;
+            }
+        }
+        return result;
+    }
+
+    private void insertContainer(int i, char key, Container container) {
+        if (size == keys.length) {
+            keys = Arrays.copyOf(keys, size * 2);
+            containers = Arrays.copyOf(containers, size * 2);
+        }
+        System.arraycopy(keys, i, keys, i + 1, size - i);
+        System.arraycopy(containers, i, containers, i + 1, size - i);
+        keys[i] = key;
+        containers[i] = container;
+        size++;
+    }
+
+    /**
+     * 上位16ビットが同じ行の集合。values（ソート済み配列）か bits（ビットマップ）のどちらか一方を持つ。
+     */
+    private static final class Container {
+        char[] values = new char[4];
+        long[] bits;
+        int cardinality = 0;
+
+        void add(char low) {
+            if (bits != null) {
+                long mask = 1L << low;
+                if ((bits[low >>> 6] & mask) == 0) {
+                    bits[low >>> 6] |= mask;
+                    cardinality++;
+                }
+                return;
+            }
+            int i;
+            if (cardinality == 0 || values[cardinality - 1] < low) {
+                i = cardinality;
+            } else {
+                i = Arrays.binarySearch(values, 0, cardinality, low);
+                if (i >= 0) {
+                    return;
+                }
+                i = -i - 1;
+            }
+            if (cardinality == ARRAY_MAX) {
+                toBitmap();
+                add(low);
+                return;
+            }
+            if (cardinality == values.length) {
+                values = Arrays.copyOf(values, Math.min(ARRAY_MAX, cardinality * 2));
+            }
+            System.arraycopy(values, i, values, i + 1, cardinality - i);
+            values[i] = low;
+            cardinality++;
+        }
+
+        boolean contains(char low) {
+            if (bits != null) {
+                return (bits[low >>> 6] & (1L << low)) != 0;
+            }
+            return Arrays.binarySearch(values, 0, cardinality, low) >= 0;
+        }
+
+        Container and(Container other) {
+            if (bits != null && other.bits != null) {
+                long[] words = new long[BITMAP_WORDS];
+                int count = 0;
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    words[w] = bits[w] & other.bits[w];
+                    count += Long.bitCount(words[w]);
+                }
+                return fromBits(words, count);
+            }
+            if (bits != null) {
+                return other.and(this);
+            }
+            // 配列側を1つずつ確認する（相手が配列なら突き合わせ）
+            Container result = new Container();
+            result.values = new char[Math.max(1, cardinality)];
+            if (other.bits != null) {
+                for (int i = 0; i < cardinality; i++) {
+                    if (other.contains(values[i])) {
+                        result.values[result.cardinality++] = values[i];
+                    }
+                }
+                return result;
+            }
+            int i = 0;
+            int j = 0;
+            while (i < cardinality && j < other.cardinality) {
+                if (values[i] < other.values[j]) {
+                    i++;
+                } else if (values[i] > other.values[j]) {
+                    j++;
+                } else {
+                    result.values[result.cardinality++] = values[i];
+                    i++;
+                    j++;
+                }
+            }
+            return result;
+        }
+
+        Container or(Container other) {
+            if (bits != null || other.bits != null || cardinality + other.cardinality > ARRAY_MAX) {
+                long[] words = new long[BITMAP_WORDS];
+                setAll(words);
+                other.setAll(words);
+                int count = 0;
+                for (long word : words) {
+                    count += Long.bitCount(word);
+                }
+                return fromBits(words, count);
+            }
+            Container result = new Container();
+            result.values = new char[Math.max(1, cardinality + other.cardinality)];
+            int i = 0;
+            int j = 0;
+            while (i < cardinality || j < other.cardinality) {
+                char next;
+                if (j >= other.cardinality || (i < cardinality && values[i] < other.values[j])) {
+                    next = values[i++];
+                } else if (i >= cardinality || values[i] > other.values[j]) {
+                    next = other.values[j++];
+                } else {
+                    next = values[i++];
+                    j++;
+                }
+                result.values[result.cardinality++] = next;
+            }
+            return result;
+        }
+
+        int copyTo(int[] rows, int n, int base) {
+            if (bits != null) {
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    long word = bits[w];
+                    while (word != 0) {
+                        rows[n++] = base | (w << 6) | Long.numberOfTrailingZeros(word);
+                        word &= word - 1;
+                    }
+                }
+                return n;
+            }
+            for (int i = 0; i < cardinality; i++) {
+                rows[n++] = base | values[i];
+            }
+            return n;
+        }
+
+        long estimatedBytes() {
+            return 24L + (bits != null ? BITMAP_WORDS * 8L : values.length * 2L);
+        }
+
+        private void setAll(long[] words) {
+            if (bits != null) {
+                for (int w = 0; w < BITMAP_WORDS; w++) {
+                    words[w] |= bits[w];
+                }
+                return;
+            }
+            for (int i = 0; i < cardinality; i++) {
+                words[values[i] >>> 6] |= 1L << values[i];
+            }
+        }
+
+        private void toBitmap() {
+            long[] words = new long[BITMAP_WORDS];
+            setAll(words);
+            bits = words;
+            values = null;
+        }
+
+        // 件数が少なければ配列に戻す
+        private static Container fromBits(long[] words, int count) {
+            Container result = new Container();
+            if (count > ARRAY_MAX) {
+                result.bits = words;
+                result.values = null;
+                result.cardinality = count;
+                return result;
+            }
+            result.values = new char[Math.max(1, count)];
+            for (int w = 0; w < BITMAP_WORDS; w++) {
+                long word = words[w];
+                while (word != 0) {
+                    result.values[result.cardinality++] = (char) ((w << 6) | Long.numberOfTrailingZeros(word));
+                    word &= word - 1;
+                }
+            }
+            return result;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+package com.example.google.google_hackathon.service.similarity;
+
+/**
+ * 4要素ずつ展開したスカラー版の内積。アキュムレータを分けて依存関係を切り、JIT の自動ベクトル化も効きやすくする。
+ */
+public final class ScalarKernel implements VectorKernel {
+
+    @Override
+    public float dot(float[] a, int aOffset, float[] b, int bOffset, int length) {
+        float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+        int i = 0;
+        int upper = length & ~3;
+        for (; i < upper; i += 4) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+            s1 += a[aOffset + i + 1] * b[bOffset + i + 1];
+            s2 += a[aOffset + i + 2] * b[bOffset + i + 2];
+            s3 += a[aOffset + i + 3] * b[bOffset + i + 3];
+        }
+        for (; i < length; i++) {
+            s0 += a[aOffset + i] * b[bOffset + i];
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public float dotCodes(float[] query, byte[] codes, int codesOffset, int length) {
+        float s0 = 0f, s1 = 0f, s2 = 0f, s3 = 0f;
+        int i = 0;
+        int upper = length & ~3;
+        for (; i < upper; i += 4) {
+            s0 += query[i] * (codes[codesOffset + i] + 128);
+            s1 += query[i + 1] * (codes[codesOffset + i + 1] + 128);
+            s2 += query[i + 2] * (codes[codesOffset + i + 2] + 128);
+            s3 += query[i + 3] * (codes[codesOffset + i + 3] + 128);
+        }
+        for (; i < length; i++) {
+            s0 += query[i] * (codes[codesOffset + i] + 128);
+        }
+        return (s0 + s1) + (s2 + s3);
+    }
+
+    @Override
+    public String name() {
+        return "scalar";
+    }
+}
@@ -0,0 +1,52 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.util.Set;
+
+/**
+ * 類似検索の絞り込み条件。常駐インデックスでは採点の前に行番号のビットマップで絞る。
+ *
+ * @param senders     送信者（いずれかに一致）。空なら絞らない
+ * @param fromMillis  この日時以降（エポックミリ秒、含む）。null なら絞らない
+ * @param toMillis    この日時より前（エポックミリ秒、含まない）。null なら絞らない
+ * @param roomSubtree Room.index（例: "2-1"）。そのルームと子孫のルーム（"2-1-1" など）に絞る。null なら絞らない
+ */
+public record SearchFilter(Set<String> senders, Long fromMillis, Long toMillis, String roomSubtree) {
+
+    public SearchFilter {
+        senders = senders != null ? Set.copyOf(senders) : Set.of();
+    }
+
+    public static SearchFilter none() {
+        return new SearchFilter(Set.of(), null, null, null);
+    }
+
+    public boolean isEmpty() {
+        return senders.isEmpty() && fromMillis == null && toMillis == null && roomSubtree == null;
+    }
+
+    public boolean hasTimeRange() {
+        return fromMillis != null || toMillis != null;
+    }
+
+    public boolean matchesRoom(String roomId) {
+        return roomSubtree == null
+                || (roomId != null && (roomId.equals(roomSubtree) || roomId.startsWith(roomSubtree + "-")));
+    }
+
+    /**
+     * 日時（エポックミリ秒、日時の無い行は Long.MIN_VALUE）が範囲内か。
+     */
+    public boolean matchesTime(long timestamp) {
+        if (!hasTimeRange()) {
+            return true;
+        }
+        return timestamp != Long.MIN_VALUE
+                && (fromMillis == null || timestamp >= fromMillis)
+                && (toMillis == null || timestamp < toMillis);
+    }
+
+    public boolean matches(String roomId, String sender, long timestamp) {
+        return (senders.isEmpty() || (sender != null && senders.contains(sender))) && matchesRoom(roomId)
+                && matchesTime(timestamp);
+    }
+}
@@ -0,0 +1,43 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * 1回の質問の段階ごとの所要時間（ミリ秒）。並行に走る段階もあるので、合計は total と一致しない。
+ * 複数のスレッドから記録されるので this で同期する。
+ */
+public final class SearchTimings {
+
+    private final long startNanos = System.nanoTime();
+    private final Map<String, Double> stages = new LinkedHashMap<>();
+
+    /**
+     * task を実行し、その所要時間を stage として記録する。
+     */
+    public <T> T time(String stage, Callable<T> task) throws Exception {
+        long start = System.nanoTime();
+        try {
+            return task.call();
+        } finally {
+            record(stage, start);
+        }
+    }
+
+    /**
+     * startNanos（System.nanoTime()）から今までを stage として記録する。
+     */
+    public void record(String stage, long startNanos) {
+        double millis = (System.nanoTime() - startNanos) / 1_000_000.0;
+        synchronized (this) {
+            stages.merge(stage, millis, Double::sum);
+        }
+    }
+
+    public synchronized Map<String, Double> toMap() {
+        Map<String, Double> result = new LinkedHashMap<>(stages);
+        result.put("total", (System.nanoTime() - startNanos) / 1_000_000.0);
+        return result;
+    }
+}
@@ -0,0 +1,41 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.time.Instant;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+
+/**
+ * 類似検索の対象期間の指定。
+ * full: 全期間を採点する / recent: 新しい月から順に採点し、古い月がもう上位に入り得なくなった時点で打ち切る。
+ *
+ * @param lookbackMonths recent のとき遡る月数（今月を含む）。0 以下なら制限なし
+ */
+public record SearchWindow(boolean recentFirst, int lookbackMonths) {
+
+    public static SearchWindow full() {
+        return new SearchWindow(false, 0);
+    }
+
+    public static SearchWindow recent(int lookbackMonths) {
+        return new SearchWindow(true, lookbackMonths);
+    }
+
+    /**
+     * "full" / "recent" から作る。それ以外は full。
+     */
+    public static SearchWindow of(String mode, int lookbackMonths) {
+        return "recent".equalsIgnoreCase(mode) ? recent(lookbackMonths) : full();
+    }
+
+    /**
+     * 対象にする最も古い日時（エポックミリ秒）。制限なしなら Long.MIN_VALUE。
+     */
+    public long minTimestamp(long nowMillis) {
+        if (!recentFirst || lookbackMonths <= 0) {
+            return Long.MIN_VALUE;
+        }
+        YearMonth oldest = YearMonth.from(Instant.ofEpochMilli(nowMillis).atZone(ZoneOffset.UTC))
+                .minusMonths(lookbackMonths - 1);
+        return oldest.atDay(1).atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+    }
+}
@@ -0,0 +1,231 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import com.example.google.google_hackathon.dto.SimilarMessageDTO;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+
+/**
+ * /api/gemini/ask の回答をルームごとに覚えておくキャッシュ。キーは質問の埋め込みで、
+ * コサイン類似度が threshold 以上の質問が同じ検索期間で来たら、検索も Gemini の呼び出しもせずに前回の回答を返す。
+ *
+ * ルームにメッセージが追加・削除されるとそのルームのバージョンが上がり、エントリは捨てる。
+ * 回答を作っている間にバージョンが変わった場合も、その回答は保存しない。
+ */
+@Component
+public class SemanticAnswerCache {
+
+    @Value("${similarity.answer-cache.enabled:true}")
+    private boolean enabled;
+
+    @Value("${similarity.answer-cache.threshold:0.95}")
+    private double threshold;
+
+    @Value("${similarity.answer-cache.max-entries-per-room:50}")
+    private int maxEntriesPerRoom;
+
+    @Value("${similarity.answer-cache.ttl-ms:600000}")
+    private long ttlMillis;
+
+    @Value("${similarity.answer-cache.max-rooms:1000}")
+    private int maxRooms;
+
+    // バージョンは全ルーム共通の連番から振る（ルームのエントリを捨てて作り直しても、古いバージョンと重ならない）
+    private final AtomicLong versionSequence = new AtomicLong();
+    private final ConcurrentHashMap<String, RoomEntries> rooms = new ConcurrentHashMap<>();
+
+    private final Counter hits;
+    private final Counter misses;
+    private final Counter invalidations;
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong lookupCount = new AtomicLong();
+
+    public SemanticAnswerCache(MeterRegistry meterRegistry) {
+        this.hits = meterRegistry.counter("similarity.answer-cache.requests", "result", "hit");
+        this.misses = meterRegistry.counter("similarity.answer-cache.requests", "result", "miss");
+        this.invalidations = meterRegistry.counter("similarity.answer-cache.invalidations");
+        Gauge.builder("similarity.answer-cache.hit-rate", this, SemanticAnswerCache::hitRate).register(meterRegistry);
+        Gauge.builder("similarity.answer-cache.entries", this, SemanticAnswerCache::size).register(meterRegistry);
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * ルームの今のバージョン。回答を作り始める前に取っておき、put に渡す。
+     */
+    public long roomVersion(String roomKey) {
+        return room(roomKey).version;
+    }
+
+    /**
+     * 似た質問の回答があれば返す。無ければ null。
+     */
+    public CachedAnswer lookup(String roomKey, SearchWindow window, List<Double> questionEmbedding) {
+        lookupCount.incrementAndGet();
+        RoomEntries room = rooms.get(roomKey);
+        CachedAnswer best = null;
+        if (room != null) {
+            float[] query = RoomVectorIndex.normalize(toArray(questionEmbedding));
+            long now = System.currentTimeMillis();
+            double bestSimilarity = threshold;
+            synchronized (room) {
+                Iterator<Entry> it = room.entries.iterator();
+                while (it.hasNext()) {
+                    Entry entry = it.next();
+                    if (now - entry.createdAt > ttlMillis) {
+                        it.remove();
+                        continue;
+                    }
+                    if (!entry.window.equals(window) || entry.embedding.length != query.length) {
+                        continue;
+                    }
+                    double similarity = dot(query, entry.embedding);
+                    if (similarity >= bestSimilarity) {
+                        bestSimilarity = similarity;
+                        best = new CachedAnswer(entry.answer, entry.similarMessages, similarity);
+                    }
+                }
+                if (best != null) {
+                    room.lastUsed = now;
+                }
+            }
+        }
+        if (best != null) {
+            hitCount.incrementAndGet();
+            hits.increment();
+        } else {
+            misses.increment();
+        }
+        return best;
+    }
+
+    /**
+     * 回答を保存する。version が今のルームのバージョンと違えば（作っている間にメッセージが増えたら）保存しない。
+     */
+    public void put(String roomKey, long version, SearchWindow window, List<Double> questionEmbedding, String answer,
+            List<SimilarMessageDTO> similarMessages) {
+        RoomEntries room = room(roomKey);
+        synchronized (room) {
+            if (room.version != version) {
+                return;
+            }
+            room.entries.addLast(new Entry(RoomVectorIndex.normalize(toArray(questionEmbedding)), window, answer,
+                    List.copyOf(similarMessages), System.currentTimeMillis()));
+            while (room.entries.size() > maxEntriesPerRoom) {
+                room.entries.removeFirst();
+            }
+            room.lastUsed = System.currentTimeMillis();
+        }
+        if (rooms.size() > maxRooms) {
+            evictOldestRoom();
+        }
+    }
+
+    /**
+     * roomId のメッセージが変わったので、そのルーム（を含むプレフィックスのルーム）のバージョンを上げてエントリを捨てる。
+     */
+    public void invalidateRoom(String roomId) {
+        if (roomId == null) {
+            return;
+        }
+        // 該当するルームが無くても連番は進める（回答を作っている間にルームが追い出されて作り直されても、古い回答を入れない）
+        long version = versionSequence.incrementAndGet();
+        for (Map.Entry<String, RoomEntries> e : rooms.entrySet()) {
+            // 常駐インデックスと同じく、質問の roomId はプレフィックスとして扱う
+            if (roomId.startsWith(e.getKey())) {
+                RoomEntries room = e.getValue();
+                synchronized (room) {
+                    room.version = version;
+                    room.entries.clear();
+                }
+                invalidations.increment();
+            }
+        }
+    }
+
+    public void clear() {
+        rooms.clear();
+    }
+
+    private RoomEntries room(String roomKey) {
+        return rooms.computeIfAbsent(roomKey, k -> new RoomEntries(versionSequence.get()));
+    }
+
+    private void evictOldestRoom() {
+        String oldest = null;
+        long oldestUsed = Long.MAX_VALUE;
+        for (Map.Entry<String, RoomEntries> e : rooms.entrySet()) {
+            if (e.getValue().lastUsed < oldestUsed) {
+                oldestUsed = e.getValue().lastUsed;
+                oldest = e.getKey();
+            }
+        }
+        if (oldest != null) {
+            rooms.remove(oldest);
+        }
+    }
+
+    private double hitRate() {
+        long lookups = lookupCount.get();
+        return lookups > 0 ? (double) hitCount.get() / lookups : 0.0;
+    }
+
+    private double size() {
+        long total = 0;
+        for (RoomEntries room : rooms.values()) {
+            synchronized (room) {
+                total += room.entries.size();
+            }
+        }
+        return total;
+    }
+
+    private static float[] toArray(List<Double> values) {
+        float[] array = new float[values.size()];
+        for (int i = 0; i < array.length; i++) {
+            array[i] = values.get(i).floatValue();
+        }
+        return array;
+    }
+
+    private static double dot(float[] a, float[] b) {
+        double sum = 0.0;
+        for (int i = 0; i < a.length; i++) {
+            sum += a[i] * b[i];
+        }
+        return sum;
+    }
+
+    /**
+     * キャッシュから返す回答。similarity は今回の質問とキャッシュした質問のコサイン類似度。
+     */
+    public record CachedAnswer(String answer, List<SimilarMessageDTO> similarMessages, double similarity) {
+    }
+
+    private static final class RoomEntries {
+        long version;
+        long lastUsed = System.currentTimeMillis();
+        final ArrayDeque<Entry> entries = new ArrayDeque<>();
+
+        RoomEntries(long version) {
+            this.version = version;
+        }
+    }
+
+    private record Entry(float[] embedding, SearchWindow window, String answer,
+            List<SimilarMessageDTO> similarMessages, long createdAt) {
+    }
+}
@@ -0,0 +1,135 @@
+package com.example.google.google_hackathon.service.similarity;
+
+/**
+ * スコア上位 K 件だけを残す固定長の最小ヒープ。行番号とスコアをプリミティブ配列で持つので、
+ * 採点中は候補ごとのオブジェクトを作らない（結果オブジェクトは最後に K 件分だけ作る）。
+ * スレッドセーフではない（1回の検索、または1つの分割範囲ごとに1つ使う）。
+ */
+public final class TopKCollector {
+
+    private final int k;
+    private final float[] scores;
+    private final int[] rows;
+    private int size = 0;
+
+    public TopKCollector(int k) {
+        this.k = Math.max(0, k);
+        this.scores = new float[this.k];
+        this.rows = new int[this.k];
+    }
+
+    /**
+     * 候補を1件渡す。上位 K 件に入らなければ捨てる。
+     */
+    public void offer(int row, float score) {
+        if (k == 0 || Float.isNaN(score)) {
+            return;
+        }
+        if (size < k) {
+            scores[size] = score;
+            rows[size] = row;
+            siftUp(size++);
+        } else if (score > scores[0]) {
+            scores[0] = score;
+            rows[0] = row;
+            siftDown(0);
+        }
+    }
+
+    /**
+     * 今の最下位のスコア。まだ K 件たまっていなければ負の無限大。
+     */
+    public float threshold() {
+        return size < k ? Float.NEGATIVE_INFINITY : scores[0];
+    }
+
+    public int size() {
+        return size;
+    }
+
+    /**
+     * 別の collector の内容を取り込む（分割して採点した結果をまとめるとき用）。
+     */
+    public void merge(TopKCollector other) {
+        for (int i = 0; i < other.size; i++) {
+            offer(other.rows[i], other.scores[i]);
+        }
+    }
+
+    /**
+     * スコアの高い順に並べた行番号を返す。呼び出し後はヒープが空になる。
+     */
+    public int[] drainRows() {
+        int[] sortedRows = new int[size];
+        float[] sortedScores = new float[size];
+        drain(sortedRows, sortedScores);
+        return sortedRows;
+    }
+
+    /**
+     * スコアの高い順に行番号とスコアを書き出す。配列は size() 以上の長さが必要。呼び出し後はヒープが空になる。
+     *
+     * @return 書き出した件数
+     */
+    public int drain(int[] outRows, float[] outScores) {
+        int n = size;
+        for (int i = n - 1; i >= 0; i--) {
+            outRows[i] = rows[0];
+            outScores[i] = scores[0];
+            size--;
+            if (size > 0) {
+                rows[0] = rows[size];
+                scores[0] = scores[size];
+                siftDown(0);
+            }
+        }
+        return n;
+    }
+
+    private void siftUp(int i) {
+        while (i > 0) {
+            int parent = (i - 1) >>> 1;
+            if (!lower(i, parent)) {
+                break;
+            }
+            swap(i, parent);
+            i = parent;
+        }
+    }
+
+    private void siftDown(int i) {
+        while (true) {
+            int left = 2 * i + 1;
+            if (left >= size) {
+                return;
+            }
+            int smallest = left;
+            int right = left + 1;
+            if (right < size && lower(right, left)) {
+                smallest = right;
+            }
+            if (!lower(smallest, i)) {
+                return;
+            }
+            swap(i, smallest);
+            i = smallest;
+        }
+    }
+
+    // 同点のときは後から追加された行（行番号が大きい＝新しいメッセージ）を下位にする
+    private boolean lower(int a, int b) {
+        if (scores[a] != scores[b]) {
+            return scores[a] < scores[b];
+        }
+        return rows[a] > rows[b];
+    }
+
+    private void swap(int a, int b) {
+        float s = scores[a];
+        scores[a] = scores[b];
+        scores[b] = s;
+        int r = rows[a];
+        rows[a] = rows[b];
+        rows[b] = r;
+    }
+}
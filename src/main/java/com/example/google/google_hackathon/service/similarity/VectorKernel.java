@@ -0,0 +1,38 @@
+package com.example.google.google_hackathon.service.similarity;
+
+/**
+ * 類似度計算の内側ループ（内積）。正規化済みのベクトル同士なら内積がそのままコサイン類似度になる。
+ * JDK の Vector API（jdk.incubator.vector）が使えるときは SIMD 版、使えないときはスカラー版を使う。
+ */
+public interface VectorKernel {
+
+    /** a[aOffset..] と b[bOffset..] の length 要素分の内積 */
+    float dot(float[] a, int aOffset, float[] b, int bOffset, int length);
+
+    /** Σ query[i] * (codes[codesOffset + i] + 128)。int8 行の非対称スコア用 */
+    float dotCodes(float[] query, byte[] codes, int codesOffset, int length);
+
+    String name();
+
+    /**
+     * similarity.kernel の値からカーネルを選ぶ。
+     * auto / vector は Vector API が使えれば SIMD 版、使えなければスカラー版にフォールバックする。
+     */
+    static VectorKernel select(String mode) {
+        if (!"scalar".equalsIgnoreCase(mode) && vectorApiAvailable()) {
+            try {
+                return (VectorKernel) Class
+                        .forName("com.example.google.google_hackathon.service.similarity.VectorApiKernel")
+                        .getDeclaredConstructor()
+                        .newInstance();
+            } catch (ReflectiveOperationException | LinkageError e) {
+                // 起動オプションやJDKの都合で読み込めない場合はスカラー版を使う
+            }
+        }
+        return new ScalarKernel();
+    }
+
+    private static boolean vectorApiAvailable() {
+        return ModuleLayer.boot().findModule("jdk.incubator.vector").isPresent();
+    }
+}
@@ -0,0 +1,158 @@
+package com.example.google.google_hackathon.service.similarity.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.google.google_hackathon.service.FirestoreService;
+import com.example.google.google_hackathon.service.similarity.QuantizedVector;
+import com.google.cloud.firestore.Blob;
+import com.google.cloud.firestore.DocumentReference;
+import com.google.cloud.firestore.DocumentSnapshot;
+import com.google.cloud.firestore.FieldMask;
+import com.google.cloud.firestore.Firestore;
+import com.google.cloud.firestore.Query;
+import com.google.cloud.firestore.QueryDocumentSnapshot;
+
+/**
+ * 従来の Firestore の chat_embeddings をそのまま使う VectorStore。
+ * 書き込みは FirestoreService、読み込みは Firestore の範囲検索で行う。
+ */
+public class FirestoreVectorStore implements VectorStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(FirestoreVectorStore.class);
+
+    public static final String COLLECTION = "chat_embeddings";
+
+    private final Firestore db;
+    private final FirestoreService firestoreService;
+
+    public FirestoreVectorStore(Firestore db, FirestoreService firestoreService) {
+        this.db = db;
+        this.firestoreService = firestoreService;
+    }
+
+    @Override
+    public String upsert(StoredVector vector) throws Exception {
+        return firestoreService.saveEmbedding(vector);
+    }
+
+    @Override
+    public void upsertAll(List<StoredVector> vectors) throws Exception {
+        firestoreService.saveEmbeddings(vectors);
+    }
+
+    @Override
+    public void delete(String docId) throws Exception {
+        firestoreService.deleteEmbedding(docId);
+    }
+
+    @Override
+    public void scan(String roomPrefix, boolean withPayload, Consumer<StoredVector> consumer) throws Exception {
+        Query query = db.collection(COLLECTION)
+                .whereGreaterThanOrEqualTo("room_id", roomPrefix)
+                .whereLessThanOrEqualTo("room_id", roomPrefix + "\uf8ff");
+        if (!withPayload) {
+            // 本文は読まずにベクトルと絞り込みに使う項目だけ取得する
+            query = query.select("room_id", "sender", "timestamp", "embedding",
+                    FirestoreService.QUANTIZED_EMBEDDING_FIELD, FirestoreService.EMBEDDING_MODEL_FIELD);
+        }
+        List<QueryDocumentSnapshot> documents = query.get().get().getDocuments();
+        List<StoredVector> vectors = new ArrayList<>(documents.size());
+        for (QueryDocumentSnapshot doc : documents) {
+            vectors.add(fromDocument(doc, withPayload));
+        }
+        // LegacyEmbeddingMigration で移し替える前は、同じメッセージが自動採番IDとメッセージIDの両方にあることがある
+        Set<String> keyed = new HashSet<>();
+        for (StoredVector vector : vectors) {
+            if (vector.messageId() != null) {
+                keyed.add(legacyKey(vector));
+            }
+        }
+        int skipped = 0;
+        for (StoredVector vector : vectors) {
+            if (vector.messageId() == null && keyed.contains(legacyKey(vector))) {
+                skipped++;
+                continue;
+            }
+            consumer.accept(vector);
+        }
+        if (skipped > 0) {
+            logger.warn("メッセージIDのドキュメントと重複する自動採番IDのドキュメント {} 件を読み飛ばしました。"
+                    + "/api/admin/embeddings/migrate-legacy で移し替えてください: roomId={}", skipped, roomPrefix);
+        }
+    }
+
+    /**
+     * 自動採番IDの古いドキュメント（message_id を持たない）とメッセージIDのドキュメントを突き合わせるキー。
+     * 古いドキュメントはメッセージの room_id・sender・timestamp をそのまま保存しているので、この3つで同じメッセージとみなす。
+     */
+    static String legacyKey(StoredVector vector) {
+        return vector.roomId() + "\u0000" + vector.sender() + "\u0000"
+                + (vector.timestamp() != null ? vector.timestamp().getTime() : "");
+    }
+
+    @Override
+    public Map<String, StoredVector> fetch(Collection<String> docIds) throws Exception {
+        Map<String, StoredVector> found = new HashMap<>();
+        if (docIds.isEmpty()) {
+            return found;
+        }
+        DocumentReference[] refs = docIds.stream()
+                .map(docId -> db.collection(COLLECTION).document(docId))
+                .toArray(DocumentReference[]::new);
+        for (DocumentSnapshot doc : db.getAll(refs, FieldMask.of("room_id", "message", "sender", "timestamp")).get()) {
+            if (doc.exists()) {
+                found.put(doc.getId(), new StoredVector(doc.getId(), doc.getString("room_id"),
+                        doc.getString("message"), doc.getString("sender"), doc.getDate("timestamp"), null, null,
+                        null));
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public void clear() {
+        // 本番のデータなので、ここからは消さない（呼び出し元は supportsClear で確かめてから呼ぶ）
+        throw new UnsupportedOperationException("Firestore の chat_embeddings は消去できません");
+    }
+
+    @Override
+    public boolean supportsClear() {
+        return false;
+    }
+
+    @Override
+    public String name() {
+        return "firestore";
+    }
+
+    /**
+     * chat_embeddings のドキュメントから作る。withPayload が false なら本文は読まない。
+     */
+    public static StoredVector fromDocument(DocumentSnapshot doc, boolean withPayload) {
+        String message = withPayload ? doc.getString("message") : null;
+        String sender = doc.getString("sender");
+        Date timestamp = doc.getDate("timestamp");
+        String model = doc.getString(FirestoreService.EMBEDDING_MODEL_FIELD);
+        // 量子化形式（embedding_q8）と従来の double 配列（embedding）のどちらも読める
+        Blob quantized = doc.getBlob(FirestoreService.QUANTIZED_EMBEDDING_FIELD);
+        if (quantized != null) {
+            return new StoredVector(doc.getId(), doc.getString("room_id"), message, sender, timestamp, null,
+                    QuantizedVector.fromBytes(quantized.toBytes()), model);
+        }
+        @SuppressWarnings("unchecked")
+        List<Double> embedding = (List<Double>) doc.get("embedding");
+        return new StoredVector(doc.getId(), doc.getString("room_id"), message, sender, timestamp, embedding, null,
+                model);
+    }
+}
@@ -0,0 +1,66 @@
+package com.example.google.google_hackathon.service.similarity.store;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+/**
+ * プロセス内だけに保持する VectorStore。再起動すると消えるので、ローカルでの検証や1台構成向け。
+ */
+public class InMemoryVectorStore implements VectorStore {
+
+    // 追加順に並べて、scan の順序を保存順にそろえる
+    private final Map<String, StoredVector> vectors = new LinkedHashMap<>();
+
+    @Override
+    public synchronized String upsert(StoredVector vector) {
+        vectors.remove(vector.docId());
+        vectors.put(vector.docId(), vector);
+        return vector.docId();
+    }
+
+    @Override
+    public synchronized void delete(String docId) {
+        vectors.remove(docId);
+    }
+
+    @Override
+    public void scan(String roomPrefix, boolean withPayload, Consumer<StoredVector> consumer) {
+        List<StoredVector> matched = new ArrayList<>();
+        synchronized (this) {
+            for (StoredVector vector : vectors.values()) {
+                if (vector.roomId() != null && vector.roomId().startsWith(roomPrefix)) {
+                    matched.add(withPayload ? vector : vector.withoutPayload());
+                }
+            }
+        }
+        // consumer の処理中はロックを持たない
+        matched.forEach(consumer);
+    }
+
+    @Override
+    public synchronized Map<String, StoredVector> fetch(Collection<String> docIds) {
+        Map<String, StoredVector> found = new HashMap<>();
+        for (String docId : docIds) {
+            StoredVector vector = vectors.get(docId);
+            if (vector != null) {
+                found.put(docId, vector);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public synchronized void clear() {
+        vectors.clear();
+    }
+
+    @Override
+    public String name() {
+        return "memory";
+    }
+}
@@ -0,0 +1,495 @@
+package com.example.google.google_hackathon.service.similarity.store;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * ローカルディスクのセグメントファイルに保存する VectorStore。
+ * 書き込みはまず tail（メモリ上の表 + 追記ログ）に入れ、一定間隔または一定件数でセグメントに書き出す。
+ * セグメントは書き込み後に変更せず、読み取り専用でメモリマップするので、再起動直後でもページキャッシュから読める。
+ * セグメントが増えたらバックグラウンドでまとめ（compaction）、上書き・削除された行を落とす。
+ * まとめるのは次元数・形式・モデルが同じで、live な行の量が近いセグメントどうし（size-tiered）。
+ * 小さなセグメントから順に段を上がっていくので、大きな土台のセグメントは同じ大きさの段がそろうまで書き直さない。
+ * 組ごとにまとめるので、/reembed や形式の変更の途中でもまとめられる。
+ * 中身は chat_messages から作り直せる（POST /api/admin/embeddings/store/rebuild で clear してから埋め込みジョブを流す）。
+ *
+ * 追記ログを fsync する時期は syncOnWrite で選ぶ。true なら upsert / delete のたびに fsync してから返すので、
+ * 返った書き込みはプロセスや OS が落ちても失われない。false なら flushIntervalMillis ごとにまとめて fsync する
+ * （group commit）ので、OS ごと落ちると直近 flushIntervalMillis 以内に返した書き込みを失うことがある
+ * （プロセスだけが落ちた場合はページキャッシュに残るので失われない）。
+ */
+public class MappedFileVectorStore implements VectorStore {
+
+    private static final Logger logger = LoggerFactory.getLogger(MappedFileVectorStore.class);
+
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String TAIL_FILE = "tail.log";
+    // 1回の compaction でまとめるセグメントの上限
+    private static final int MAX_MERGE_SEGMENTS = 32;
+
+    private final Path dir;
+    private final boolean int8;
+    private final int tailMaxRows;
+    private final int compactionSegments;
+    private final double compactionSizeRatio;
+    private final boolean syncOnWrite;
+    private final TailLog tailLog;
+
+    // 古い順。同じ docId は新しいセグメント・tail の方が優先
+    private final List<VectorSegment> segments = new ArrayList<>();
+    // セグメント上の最新の行（tail にあるもの・削除済みのものは含まない）
+    private final Map<String, Location> live = new HashMap<>();
+    // セグメントごとの live な行数（0 のセグメントは削除記録しか意味を持たない）
+    private final Map<VectorSegment, Integer> liveRows = new HashMap<>();
+    private final LinkedHashMap<String, StoredVector> tail = new LinkedHashMap<>();
+    // まだ書き出していない削除（セグメントに書き出すと、それより古いセグメントの行を打ち消す）
+    private final Set<String> tailDeletes = new LinkedHashSet<>();
+    private long nextSeq = 1;
+    // clear のたびに増やす（実行中の compaction の結果を捨てるため）
+    private long generation = 0;
+
+    private final ScheduledExecutorService maintenance;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+
+    /**
+     * @param int8 セグメントの行を int8 で保存するか（false なら float32）
+     * @param flushIntervalMillis tail をセグメントに書き出す間隔
+     * @param tailMaxRows tail がこの件数に達したら間隔を待たずに書き出す
+     * @param compactionSegments 同じ段（live な行の量が近い）のセグメントがこの数以上そろったらまとめる
+     * @param compactionSizeRatio 段の平均からこの倍率の範囲に入るセグメントを同じ段とみなす
+     * @param syncOnWrite 書き込みのたびに追記ログを fsync するか（false なら flushIntervalMillis ごと）
+     */
+    public MappedFileVectorStore(Path dir, boolean int8, long flushIntervalMillis, int tailMaxRows,
+            int compactionSegments, double compactionSizeRatio, boolean syncOnWrite) throws IOException {
+        this.dir = dir;
+        this.int8 = int8;
+        this.tailMaxRows = Math.max(1, tailMaxRows);
+        this.compactionSegments = Math.max(2, compactionSegments);
+        this.compactionSizeRatio = Math.max(1.0, compactionSizeRatio);
+        this.syncOnWrite = syncOnWrite;
+        long start = System.currentTimeMillis();
+        Files.createDirectories(dir);
+        openSegments();
+        this.tailLog = new TailLog(dir.resolve(TAIL_FILE));
+        for (TailLog.Entry entry : tailLog.recover()) {
+            if (entry.delete()) {
+                applyDelete(entry.vector().docId());
+            } else {
+                applyUpsert(entry.vector());
+            }
+        }
+        logger.info("ベクトルストアを開きました: {} (セグメント {} 個, {} 件, tail {} 件, {}ms)", dir, segments.size(),
+                live.size() + tail.size(), tail.size(), System.currentTimeMillis() - start);
+
+        this.maintenance = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "vector-store-maintenance");
+            t.setDaemon(true);
+            return t;
+        });
+        maintenance.scheduleWithFixedDelay(this::maintain, flushIntervalMillis, flushIntervalMillis,
+                TimeUnit.MILLISECONDS);
+    }
+
+    @Override
+    public String upsert(StoredVector vector) throws IOException {
+        boolean full;
+        synchronized (this) {
+            tailLog.appendUpsert(vector);
+            applyUpsert(vector);
+            full = tail.size() >= tailMaxRows;
+        }
+        if (syncOnWrite) {
+            // 自分の追記より後に fsync すれば自分の分も含まれるので、ロックの外で待つ（同時の書き込みはまとめて済む）
+            tailLog.sync();
+        }
+        if (full && flushRequested.compareAndSet(false, true)) {
+            maintenance.execute(this::maintain);
+        }
+        return vector.docId();
+    }
+
+    @Override
+    public void delete(String docId) throws IOException {
+        synchronized (this) {
+            if (!tail.containsKey(docId) && !live.containsKey(docId)) {
+                return;
+            }
+            tailLog.appendDelete(docId);
+            applyDelete(docId);
+        }
+        if (syncOnWrite) {
+            tailLog.sync();
+        }
+    }
+
+    @Override
+    public void scan(String roomPrefix, boolean withPayload, Consumer<StoredVector> consumer) {
+        List<StoredVector> matched = new ArrayList<>();
+        synchronized (this) {
+            for (VectorSegment segment : segments) {
+                for (int[] range : segment.roomRanges(roomPrefix)) {
+                    for (int row = range[0]; row < range[0] + range[1]; row++) {
+                        Location location = live.get(segment.docId(row));
+                        if (location != null && location.segment() == segment && location.row() == row) {
+                            matched.add(segment.read(row, withPayload));
+                        }
+                    }
+                }
+            }
+            for (StoredVector vector : tail.values()) {
+                if (vector.roomId() != null && vector.roomId().startsWith(roomPrefix)) {
+                    matched.add(withPayload ? vector : vector.withoutPayload());
+                }
+            }
+        }
+        // consumer の処理中はロックを持たない
+        matched.forEach(consumer);
+    }
+
+    @Override
+    public synchronized Map<String, StoredVector> fetch(Collection<String> docIds) {
+        Map<String, StoredVector> found = new HashMap<>();
+        for (String docId : docIds) {
+            StoredVector vector = tail.get(docId);
+            if (vector == null) {
+                Location location = live.get(docId);
+                vector = location != null ? location.segment().read(location.row(), true) : null;
+            }
+            if (vector != null) {
+                found.put(docId, vector);
+            }
+        }
+        return found;
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+        for (VectorSegment segment : segments) {
+            Files.deleteIfExists(segment.path());
+        }
+        segments.clear();
+        live.clear();
+        liveRows.clear();
+        tail.clear();
+        tailDeletes.clear();
+        tailLog.reset();
+        generation++;
+        logger.info("ベクトルストアを空にしました: {}", dir);
+    }
+
+    @Override
+    public String name() {
+        return "mmap";
+    }
+
+    public void close() throws IOException, InterruptedException {
+        maintenance.shutdown();
+        maintenance.awaitTermination(30, TimeUnit.SECONDS);
+        flush();
+        tailLog.close();
+    }
+
+    /**
+     * tail をセグメントに書き出す。書き出したら tail のログは空にする。
+     */
+    public synchronized void flush() throws IOException {
+        if (tail.isEmpty() && tailDeletes.isEmpty()) {
+            return;
+        }
+        long start = System.currentTimeMillis();
+        // 1つのセグメントは固定長の行で、モデルもヘッダに1つだけ持つので、モデルと次元数の組ごとに分ける
+        // （削除記録は最初のセグメントに入れる）
+        Map<String, List<StoredVector>> byModel = new LinkedHashMap<>();
+        for (StoredVector vector : tail.values()) {
+            byModel.computeIfAbsent(vector.model() + "@" + vector.dimension(), k -> new ArrayList<>()).add(vector);
+        }
+        if (byModel.isEmpty()) {
+            byModel.put("", new ArrayList<>());
+        }
+        Collection<String> tombstones = new ArrayList<>(tailDeletes);
+        for (List<StoredVector> group : byModel.values()) {
+            long seq = nextSeq++;
+            int dimension = group.isEmpty() ? 0 : group.get(0).dimension();
+            String model = group.isEmpty() ? null : group.get(0).model();
+            VectorSegment segment = VectorSegment.writeVectors(segmentPath(seq), seq, int8, dimension, model,
+                    group, tombstones);
+            tombstones = List.of();
+            segments.add(segment);
+            for (int row = 0; row < segment.rows(); row++) {
+                putLive(segment.docId(row), new Location(segment, row));
+            }
+        }
+        int flushed = tail.size();
+        tail.clear();
+        tailDeletes.clear();
+        tailLog.reset();
+        logger.info("tail をセグメントに書き出しました: {} 件, セグメント {} 個, {}ms", flushed, segments.size(),
+                System.currentTimeMillis() - start);
+    }
+
+    /**
+     * 次元数・形式・モデルが同じで live な行の量が近いセグメントが compactionSegments 個以上そろっていれば、
+     * 一番小さい段を1つにまとめる。live な行の無いセグメントはどの組と一緒にまとめてもよいので加える
+     * （削除記録しか残っていなければファイルごと消える）。live な行の無いセグメントだけが
+     * compactionSegments 個以上たまったときは、それらと小さなセグメントの段をまとめる。
+     * 読み書きは止めずに行い、最後の差し替えだけロックを取る。
+     */
+    public void compact() throws IOException {
+        if (!compacting.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            List<VectorSegment> selected;
+            long snapshotGeneration;
+            List<VectorSegment.SegmentRow> rows = new ArrayList<>();
+            Set<String> tombstones = new LinkedHashSet<>();
+            int dimension = 0;
+            boolean rowsInt8 = int8;
+            String model = null;
+            synchronized (this) {
+                Map<String, List<VectorSegment>> groups = new LinkedHashMap<>();
+                List<VectorSegment> dead = new ArrayList<>();
+                for (VectorSegment segment : segments) {
+                    if (liveRows(segment) == 0) {
+                        dead.add(segment);
+                    } else {
+                        groups.computeIfAbsent(segment.dimension() + "/" + segment.isInt8() + "/" + segment.model(),
+                                k -> new ArrayList<>()).add(segment);
+                    }
+                }
+                List<VectorSegment> group = List.of();
+                List<VectorSegment> smallest = List.of();
+                for (List<VectorSegment> candidates : groups.values()) {
+                    List<List<VectorSegment>> tiers = tiers(candidates);
+                    for (List<VectorSegment> tier : tiers) {
+                        if (tier.size() >= compactionSegments) {
+                            if (group.isEmpty() || liveBytes(tier.get(0)) < liveBytes(group.get(0))) {
+                                group = tier;
+                            }
+                            break;
+                        }
+                    }
+                    List<VectorSegment> bottom = tiers.get(0);
+                    if (bottom.stream().allMatch(segment -> liveRows(segment) <= tailMaxRows)
+                            && (smallest.isEmpty() || liveBytes(bottom.get(0)) < liveBytes(smallest.get(0)))) {
+                        smallest = bottom;
+                    }
+                }
+                if (group.isEmpty()) {
+                    if (dead.size() < compactionSegments) {
+                        return;
+                    }
+                    // live な行の無いセグメントをまとめるついでに、tail 数回分の小さなセグメントがあれば一緒にまとめる
+                    group = smallest;
+                }
+                selected = new ArrayList<>(group);
+                selected.addAll(dead);
+                selected.sort(Comparator.comparingLong(VectorSegment::seq));
+                snapshotGeneration = generation;
+                if (!group.isEmpty()) {
+                    dimension = group.get(0).dimension();
+                    rowsInt8 = group.get(0).isInt8();
+                    model = group.get(0).model();
+                }
+                // 今の時点で最新の行だけを写す。この後で上書き・削除されたものは、より新しいセグメントや tail が優先される
+                for (VectorSegment segment : selected) {
+                    tombstones.addAll(segment.tombstones());
+                    for (int row = 0; row < segment.rows(); row++) {
+                        Location location = live.get(segment.docId(row));
+                        if (location != null && location.segment() == segment && location.row() == row) {
+                            rows.add(segment.copyOf(row));
+                        }
+                    }
+                }
+                // live な docId の削除記録は外す（まとめた行と、間に挟まる別の組のセグメントの行を消さないため。
+                // どちらも削除記録より新しい行なので、古いセグメントの行が残っていても打ち消せる）。
+                // それ以外は、古いセグメントが消し損ねて残っても復活しないよう残す
+                tombstones.removeIf(live::containsKey);
+            }
+
+            long start = System.currentTimeMillis();
+            VectorSegment newest = selected.get(selected.size() - 1);
+            Path mergedPath = dir.resolve(SEGMENT_PREFIX + String.format("%012d", newest.seq()) + ".compact");
+            boolean empty = rows.isEmpty() && tombstones.isEmpty();
+            if (!empty) {
+                VectorSegment.write(mergedPath, newest.seq(), rowsInt8, dimension, model, rows, tombstones);
+            }
+
+            VectorSegment merged = null;
+            synchronized (this) {
+                if (generation != snapshotGeneration) {
+                    Files.deleteIfExists(mergedPath);
+                    return;
+                }
+                if (!empty) {
+                    // 一番新しいファイルを置き換えてから古いファイルを消す（途中で止まっても新しい方が優先される）
+                    Files.move(mergedPath, newest.path(), StandardCopyOption.REPLACE_EXISTING,
+                            StandardCopyOption.ATOMIC_MOVE);
+                    merged = VectorSegment.open(newest.path(), newest.seq());
+                }
+                for (VectorSegment segment : selected) {
+                    if (merged == null || segment != newest) {
+                        Files.deleteIfExists(segment.path());
+                    }
+                }
+                segments.removeAll(selected);
+                if (merged != null) {
+                    int index = 0;
+                    while (index < segments.size() && segments.get(index).seq() < merged.seq()) {
+                        index++;
+                    }
+                    segments.add(index, merged);
+                    for (int row = 0; row < merged.rows(); row++) {
+                        String docId = merged.docId(row);
+                        Location source = live.get(docId);
+                        if (source != null && selected.contains(source.segment())) {
+                            putLive(docId, new Location(merged, row));
+                        }
+                    }
+                }
+                liveRows.keySet().removeAll(selected);
+            }
+            logger.info("セグメントをまとめました: {} 個 → {} 個, {} 件, {}ms", selected.size(), merged != null ? 1 : 0,
+                    merged != null ? merged.rows() : 0, System.currentTimeMillis() - start);
+        } finally {
+            compacting.set(false);
+        }
+    }
+
+    private void maintain() {
+        flushRequested.set(false);
+        try {
+            // syncOnWrite でなければここで前回からの追記をまとめて fsync する（書き出しに失敗してもログは残る）
+            tailLog.sync();
+            flush();
+            compact();
+        } catch (Exception e) {
+            logger.error("ベクトルストアの書き出しに失敗しました: {}", dir, e);
+        }
+    }
+
+    private void applyUpsert(StoredVector vector) {
+        removeLive(vector.docId());
+        tailDeletes.remove(vector.docId());
+        tail.remove(vector.docId());
+        tail.put(vector.docId(), vector);
+    }
+
+    private void applyDelete(String docId) {
+        // tail にしか無くても、古いセグメントに上書き前の行が残っていることがあるので必ず削除記録を残す
+        tail.remove(docId);
+        removeLive(docId);
+        tailDeletes.add(docId);
+    }
+
+    /**
+     * live な行の量が小さい順に段に分ける。段の平均の compactionSizeRatio 倍までを同じ段とみなす。
+     * tail 1回分（tailMaxRows 行）以下のセグメントは大きさがばらつくので、まとめて一番下の段とみなす。
+     * 1つの段は MAX_MERGE_SEGMENTS 個まで（1回にまとめる上限）。
+     */
+    private List<List<VectorSegment>> tiers(List<VectorSegment> group) {
+        List<VectorSegment> sorted = new ArrayList<>(group);
+        sorted.sort(Comparator.comparingLong(this::liveBytes));
+        List<List<VectorSegment>> tiers = new ArrayList<>();
+        List<VectorSegment> tier = new ArrayList<>();
+        double tierBytes = 0.0;
+        for (VectorSegment segment : sorted) {
+            long bytes = liveBytes(segment);
+            boolean sameTier = !tier.isEmpty() && tier.size() < MAX_MERGE_SEGMENTS
+                    && (liveRows(segment) <= tailMaxRows || bytes <= tierBytes / tier.size() * compactionSizeRatio);
+            if (!sameTier && !tier.isEmpty()) {
+                tiers.add(tier);
+                tier = new ArrayList<>();
+                tierBytes = 0.0;
+            }
+            tier.add(segment);
+            tierBytes += bytes;
+        }
+        tiers.add(tier);
+        return tiers;
+    }
+
+    /** セグメントの live な行のおおよそのバイト数（ファイルの大きさを live な行の割合で按分） */
+    private long liveBytes(VectorSegment segment) {
+        return segment.rows() == 0 ? 0 : segment.bytes() * liveRows(segment) / segment.rows();
+    }
+
+    private void putLive(String docId, Location location) {
+        Location previous = live.put(docId, location);
+        if (previous != null) {
+            liveRows.merge(previous.segment(), -1, Integer::sum);
+        }
+        liveRows.merge(location.segment(), 1, Integer::sum);
+    }
+
+    private void removeLive(String docId) {
+        Location previous = live.remove(docId);
+        if (previous != null) {
+            liveRows.merge(previous.segment(), -1, Integer::sum);
+        }
+    }
+
+    private int liveRows(VectorSegment segment) {
+        return liveRows.getOrDefault(segment, 0);
+    }
+
+    /**
+     * 起動時にセグメントを古い順に開き、各 docId の最新の行を求める。
+     */
+    private void openSegments() throws IOException {
+        List<Long> seqs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.endsWith(".tmp") || name.endsWith(".compact")) {
+                    // 書き込み途中で止まったもの
+                    Files.deleteIfExists(file);
+                } else if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+                    seqs.add(Long.parseLong(name.substring(SEGMENT_PREFIX.length(),
+                            name.length() - SEGMENT_SUFFIX.length())));
+                }
+            }
+        }
+        seqs.sort(null);
+        for (long seq : seqs) {
+            VectorSegment segment = VectorSegment.open(segmentPath(seq), seq);
+            for (String docId : segment.tombstones()) {
+                removeLive(docId);
+            }
+            for (int row = 0; row < segment.rows(); row++) {
+                putLive(segment.docId(row), new Location(segment, row));
+            }
+            segments.add(segment);
+            nextSeq = Math.max(nextSeq, seq + 1);
+        }
+    }
+
+    private Path segmentPath(long seq) {
+        return dir.resolve(SEGMENT_PREFIX + String.format("%012d", seq) + SEGMENT_SUFFIX);
+    }
+
+    private record Location(VectorSegment segment, int row) {
+    }
+}
@@ -0,0 +1,134 @@
+package com.example.google.google_hackathon.service.similarity.store;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * ファイル全体を読み取り専用でメモリマップし、long の位置で読む。
+ * MappedByteBuffer 1つは 2GB までしか扱えないので、chunkBytes ごとに分けてマップし、
+ * 境界をまたぐ値は1バイトずつ組み立てる（ビッグエンディアン。DataOutputStream で書いたものと同じ）。
+ */
+final class MappedRegion {
+
+    // 1つの MappedByteBuffer の大きさ（2GB 未満）
+    static final int DEFAULT_CHUNK_BYTES = 1 << 30;
+
+    private final MappedByteBuffer[] chunks;
+    private final int chunkBytes;
+    private final long size;
+
+    MappedRegion(FileChannel channel) throws IOException {
+        this(channel, DEFAULT_CHUNK_BYTES);
+    }
+
+    MappedRegion(FileChannel channel, int chunkBytes) throws IOException {
+        this.size = channel.size();
+        this.chunkBytes = chunkBytes;
+        int count = (int) ((size + chunkBytes - 1) / chunkBytes);
+        this.chunks = new MappedByteBuffer[count];
+        for (int i = 0; i < count; i++) {
+            long start = (long) i * chunkBytes;
+            chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(chunkBytes, size - start));
+        }
+    }
+
+    long size() {
+        return size;
+    }
+
+    byte get(long position) {
+        return chunks[(int) (position / chunkBytes)].get((int) (position % chunkBytes));
+    }
+
+    void get(long position, byte[] dst) {
+        int done = 0;
+        while (done < dst.length) {
+            long at = position + done;
+            MappedByteBuffer chunk = chunks[(int) (at / chunkBytes)];
+            int offset = (int) (at % chunkBytes);
+            int length = Math.min(dst.length - done, chunkBytes - offset);
+            chunk.get(offset, dst, done, length);
+            done += length;
+        }
+    }
+
+    int getInt(long position) {
+        int offset = (int) (position % chunkBytes);
+        if (offset + Integer.BYTES <= chunkBytes) {
+            return chunks[(int) (position / chunkBytes)].getInt(offset);
+        }
+        int value = 0;
+        for (int i = 0; i < Integer.BYTES; i++) {
+            value = (value << 8) | (get(position + i) & 0xff);
+        }
+        return value;
+    }
+
+    long getLong(long position) {
+        int offset = (int) (position % chunkBytes);
+        if (offset + Long.BYTES <= chunkBytes) {
+            return chunks[(int) (position / chunkBytes)].getLong(offset);
+        }
+        return ((long) getInt(position) << 32) | (getInt(position + Integer.BYTES) & 0xffffffffL);
+    }
+
+    float getFloat(long position) {
+        return Float.intBitsToFloat(getInt(position));
+    }
+
+    /**
+     * position から順に読む。
+     */
+    Reader reader(long position) {
+        return new Reader(position);
+    }
+
+    /** 読んだ分だけ位置を進める読み手（スレッドごとに作る） */
+    final class Reader {
+        private long position;
+
+        private Reader(long position) {
+            this.position = position;
+        }
+
+        long position() {
+            return position;
+        }
+
+        int getInt() {
+            int value = MappedRegion.this.getInt(position);
+            position += Integer.BYTES;
+            return value;
+        }
+
+        long getLong() {
+            long value = MappedRegion.this.getLong(position);
+            position += Long.BYTES;
+            return value;
+        }
+
+        float getFloat() {
+            float value = MappedRegion.this.getFloat(position);
+            position += Float.BYTES;
+            return value;
+        }
+
+        void get(byte[] dst) {
+            MappedRegion.this.get(position, dst);
+            position += dst.length;
+        }
+
+        /** [バイト数 int（null は -1）][UTF-8] */
+        String readString() {
+            int length = getInt();
+            if (length < 0) {
+                return null;
+            }
+            byte[] b = new byte[length];
+            get(b);
+            return new String(b, StandardCharsets.UTF_8);
+        }
+    }
+}
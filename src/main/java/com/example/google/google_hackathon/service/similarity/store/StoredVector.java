@@ -0,0 +1,85 @@
+package com.example.google.google_hackathon.service.similarity.store;
+
+import java.time.ZoneOffset;
+import java.util.Date;
+import java.util.List;
+
+import com.example.google.google_hackathon.entity.ChatMessageEntity;
+import com.example.google.google_hackathon.service.similarity.QuantizedVector;
+import com.example.google.google_hackathon.service.similarity.RoomVectorIndex;
+
+/**
+ * VectorStore に保存する1件分。ベクトルは double 配列（embedding）か量子化済み（quantized）のどちらか一方を持つ。
+ * 本文なしで読み込んだ場合（二段階検索）は message / sender / timestamp が null になる。
+ * model は埋め込みを作ったモデル（記録の無い古いデータは null）。次元数はベクトルの長さ。
+ */
+public record StoredVector(String docId, String roomId, String message, String sender, Date timestamp,
+        List<Double> embedding, QuantizedVector quantized, String model) {
+
+    /**
+     * チャットメッセージから作る。ドキュメントIDはチャットメッセージのID。
+     */
+    public static StoredVector of(ChatMessageEntity message, List<Double> embedding, String model) {
+        Date timestamp = message.getTimestamp() != null
+                ? Date.from(message.getTimestamp().toInstant(ZoneOffset.UTC))
+                : null;
+        return new StoredVector(String.valueOf(message.getId()), message.getRoomId(), message.getText(),
+                message.getSender(), timestamp, embedding, null, model);
+    }
+
+    /**
+     * ドキュメントIDがチャットメッセージのIDなら、その値。自動採番IDの古いドキュメントは null。
+     */
+    public Long messageId() {
+        try {
+            return docId != null ? Long.valueOf(docId) : null;
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    public int dimension() {
+        if (quantized != null) {
+            return quantized.dimension();
+        }
+        return embedding != null ? embedding.size() : 0;
+    }
+
+    /**
+     * 保存形式に関係なく float で取り出す。
+     */
+    public float[] values() {
+        if (quantized != null) {
+            return quantized.dequantize();
+        }
+        float[] values = new float[embedding.size()];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = embedding.get(i).floatValue();
+        }
+        return values;
+    }
+
+    /**
+     * 本文を除いたもの（送信者と日時は絞り込み・期間指定に使うので残す）。
+     */
+    public StoredVector withoutPayload() {
+        return new StoredVector(docId, roomId, null, sender, timestamp, embedding, quantized, model);
+    }
+
+    /**
+     * ドキュメントIDだけを替えたもの（自動採番IDの古いドキュメントをメッセージIDのドキュメントへ移すとき用）。
+     */
+    public StoredVector withDocId(String newDocId) {
+        return new StoredVector(newDocId, roomId, message, sender, timestamp, embedding, quantized, model);
+    }
+
+    /**
+     * 常駐インデックスに1行追加する。量子化済みならそのまま渡す（復元して量子化し直さない）。
+     */
+    public boolean addTo(RoomVectorIndex index) {
+        if (quantized != null) {
+            return index.add(docId, roomId, message, sender, timestamp, quantized);
+        }
+        return index.add(docId, roomId, message, sender, timestamp, embedding);
+    }
+}
@@ -0,0 +1,195 @@
+package com.example.google.google_hackathon.service.similarity.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.example.google.google_hackathon.service.similarity.QuantizedVector;
+
+/**
+ * まだセグメントにしていない更新（末尾のセグメント）を記録する追記専用のログ。
+ * セグメントへ書き出したら空に戻す。起動時はこれを読み直して未書き出しの更新を復元する。
+ *
+ * レコード: [長さ int][種別 byte][docId][roomId][timestamp long][sender][message][形式 byte][次元数 int][ベクトル][model]
+ * 文字列は [バイト数 int（null は -1）][UTF-8]、ベクトルは float 列または [scale][offset][int8 列]。削除は docId まで。
+ * model の無い（以前の形式の）レコードも読める。
+ */
+final class TailLog {
+
+    private static final Logger logger = LoggerFactory.getLogger(TailLog.class);
+
+    private static final byte OP_UPSERT = 1;
+    private static final byte OP_DELETE = 2;
+    private static final byte FORMAT_FLOAT = 0;
+    private static final byte FORMAT_INT8 = 1;
+
+    private final Path file;
+    private final FileChannel channel;
+    private long writePosition;
+
+    TailLog(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+    }
+
+    /**
+     * ログを先頭から読む。途中で切れたレコード（書き込み中の停止）以降は捨てる。
+     *
+     * @return 記録順の更新（削除は vector の docId だけが入る）
+     */
+    List<Entry> recover() throws IOException {
+        long size = channel.size();
+        List<Entry> entries = new ArrayList<>();
+        ByteBuffer view = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        long position = 0;
+        while (position + Integer.BYTES <= size) {
+            int length = view.getInt((int) position);
+            if (length <= 0 || position + Integer.BYTES + length > size) {
+                break;
+            }
+            ByteBuffer record = view.duplicate();
+            record.position((int) position + Integer.BYTES);
+            record.limit((int) (position + Integer.BYTES + length));
+            entries.add(decode(record));
+            position += Integer.BYTES + length;
+        }
+        if (position < size) {
+            logger.warn("tail ログの末尾の不完全なレコードを切り詰めます: {} ({} → {} bytes)", file, size, position);
+            channel.truncate(position);
+        }
+        writePosition = position;
+        return entries;
+    }
+
+    void appendUpsert(StoredVector vector) throws IOException {
+        append(encode(OP_UPSERT, vector));
+    }
+
+    void appendDelete(String docId) throws IOException {
+        append(encode(OP_DELETE, new StoredVector(docId, null, null, null, null, null, null, null)));
+    }
+
+    void sync() throws IOException {
+        channel.force(false);
+    }
+
+    /**
+     * セグメントへ書き出し終わった内容を捨てる。
+     */
+    void reset() throws IOException {
+        channel.truncate(0);
+        channel.force(true);
+        writePosition = 0;
+    }
+
+    void close() throws IOException {
+        channel.force(true);
+        channel.close();
+    }
+
+    private void append(ByteBuffer record) throws IOException {
+        while (record.hasRemaining()) {
+            writePosition += channel.write(record, writePosition);
+        }
+    }
+
+    private static ByteBuffer encode(byte op, StoredVector vector) {
+        byte[] docId = bytes(vector.docId());
+        if (op == OP_DELETE) {
+            ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + 1 + stringBytes(docId));
+            buffer.putInt(buffer.capacity() - Integer.BYTES).put(op);
+            putString(buffer, docId);
+            return buffer.flip();
+        }
+        byte[] roomId = bytes(vector.roomId());
+        byte[] sender = bytes(vector.sender());
+        byte[] message = bytes(vector.message());
+        byte[] model = bytes(vector.model());
+        int dimension = vector.dimension();
+        int vectorBytes = vector.quantized() != null
+                ? Float.BYTES * 2 + dimension
+                : Float.BYTES * dimension;
+        int length = 1 + stringBytes(docId) + stringBytes(roomId) + Long.BYTES + stringBytes(sender)
+                + stringBytes(message) + 1 + Integer.BYTES + vectorBytes + stringBytes(model);
+        ByteBuffer buffer = ByteBuffer.allocate(Integer.BYTES + length);
+        buffer.putInt(length).put(op);
+        putString(buffer, docId);
+        putString(buffer, roomId);
+        buffer.putLong(vector.timestamp() != null ? vector.timestamp().getTime() : Long.MIN_VALUE);
+        putString(buffer, sender);
+        putString(buffer, message);
+        if (vector.quantized() != null) {
+            QuantizedVector q = vector.quantized();
+            buffer.put(FORMAT_INT8).putInt(dimension).putFloat(q.scale()).putFloat(q.offset()).put(q.codes());
+        } else {
+            buffer.put(FORMAT_FLOAT).putInt(dimension);
+            for (Double v : vector.embedding()) {
+                buffer.putFloat(v.floatValue());
+            }
+        }
+        putString(buffer, model);
+        return buffer.flip();
+    }
+
+    private static Entry decode(ByteBuffer record) {
+        byte op = record.get();
+        String docId = VectorSegment.readString(record);
+        if (op == OP_DELETE) {
+            return new Entry(true, new StoredVector(docId, null, null, null, null, null, null, null));
+        }
+        String roomId = VectorSegment.readString(record);
+        long time = record.getLong();
+        String sender = VectorSegment.readString(record);
+        String message = VectorSegment.readString(record);
+        byte format = record.get();
+        int dimension = record.getInt();
+        Date timestamp = time == Long.MIN_VALUE ? null : new Date(time);
+        if (format == FORMAT_INT8) {
+            float scale = record.getFloat();
+            float offset = record.getFloat();
+            byte[] codes = new byte[dimension];
+            record.get(codes);
+            return new Entry(false, new StoredVector(docId, roomId, message, sender, timestamp, null,
+                    new QuantizedVector(codes, scale, offset), readModel(record)));
+        }
+        List<Double> embedding = new ArrayList<>(dimension);
+        for (int i = 0; i < dimension; i++) {
+            embedding.add((double) record.getFloat());
+        }
+        return new Entry(false, new StoredVector(docId, roomId, message, sender, timestamp, embedding, null,
+                readModel(record)));
+    }
+
+    private static String readModel(ByteBuffer record) {
+        return record.hasRemaining() ? VectorSegment.readString(record) : null;
+    }
+
+    private static byte[] bytes(String s) {
+        return s != null ? s.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static int stringBytes(byte[] b) {
+        return Integer.BYTES + (b != null ? b.length : 0);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] b) {
+        if (b == null) {
+            buffer.putInt(-1);
+        } else {
+            buffer.putInt(b.length).put(b);
+        }
+    }
+
+    record Entry(boolean delete, StoredVector vector) {
+    }
+}
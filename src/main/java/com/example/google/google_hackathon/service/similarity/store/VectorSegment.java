@@ -0,0 +1,454 @@
+package com.example.google.google_hackathon.service.similarity.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import com.example.google.google_hackathon.service.similarity.QuantizedVector;
+
+/**
+ * 書き込み後は変更しないベクトルのセグメントファイル。読み込みは読み取り専用のメモリマップで行う
+ * （2GB を超えるファイルも読めるように、MappedRegion で分けてマップし long の位置で読む）。
+ * 行はルームごとにまとめて並べ、ルームの表（roomId → 先頭行と件数）で範囲を引く。
+ *
+ * 1つのファイルに次の区画を持つ（置き換えをファイル1つのリネームで済ませるため）。
+ * <pre>
+ * [ヘッダ] magic, version, 形式, 次元数, 行数, 削除記録数, 各区画の開始位置, 埋め込みのモデル（version 2 から）
+ * [ベクトル] 固定長の行（float32: 次元数 x 4 バイト / int8: scale, offset + 次元数バイト）
+ * [行の付帯情報] 行ごとに [timestamp long][文字列の位置 long]、続けて docId, roomId, sender, message
+ * [ルームの表] [件数 int] + [roomId][先頭行 int][件数 int]（roomId 順）
+ * [削除記録] [件数 int] + docId（このセグメントより古いものに対する削除）
+ * </pre>
+ */
+final class VectorSegment {
+
+    private static final int MAGIC = 0x56534547; // "VSEG"
+    private static final int VERSION = 2;
+    private static final int HEADER_BYTES = Integer.BYTES * 6 + Long.BYTES * 4;
+    private static final int META_ROW_BYTES = Long.BYTES * 2;
+
+    private final Path path;
+    private final long seq;
+    private final boolean int8;
+    private final int dimension;
+    private final String model;
+    private final int rows;
+    private final int rowBytes;
+    private final long vectorsOffset;
+    private final long metaOffset;
+    private final MappedRegion mapped;
+    private final String[] roomIds;
+    private final int[] roomStarts;
+    private final int[] roomCounts;
+    private final List<String> tombstones;
+
+    private VectorSegment(Path path, long seq) throws IOException {
+        this(path, seq, MappedRegion.DEFAULT_CHUNK_BYTES);
+    }
+
+    private VectorSegment(Path path, long seq, int chunkBytes) throws IOException {
+        this.path = path;
+        this.seq = seq;
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            this.mapped = new MappedRegion(channel, chunkBytes);
+        }
+        MappedRegion.Reader header = mapped.reader(0);
+        int version = header.getInt() == MAGIC ? header.getInt() : -1;
+        if (version < 1 || version > VERSION) {
+            throw new IOException("セグメントファイルの形式が不正です: " + path);
+        }
+        this.int8 = header.getInt() == 1;
+        this.dimension = header.getInt();
+        this.rows = header.getInt();
+        int tombstoneCount = header.getInt();
+        this.vectorsOffset = header.getLong();
+        this.metaOffset = header.getLong();
+        long roomsOffset = header.getLong();
+        long tombstonesOffset = header.getLong();
+        // version 1 のファイルにはモデルの記録が無い
+        this.model = version >= 2 ? header.readString() : null;
+        this.rowBytes = rowBytes(int8, dimension);
+
+        MappedRegion.Reader rooms = mapped.reader(roomsOffset);
+        int roomCount = rooms.getInt();
+        this.roomIds = new String[roomCount];
+        this.roomStarts = new int[roomCount];
+        this.roomCounts = new int[roomCount];
+        for (int i = 0; i < roomCount; i++) {
+            roomIds[i] = rooms.readString();
+            roomStarts[i] = rooms.getInt();
+            roomCounts[i] = rooms.getInt();
+        }
+
+        MappedRegion.Reader deletes = mapped.reader(tombstonesOffset);
+        deletes.getInt();
+        this.tombstones = new ArrayList<>(tombstoneCount);
+        for (int i = 0; i < tombstoneCount; i++) {
+            tombstones.add(deletes.readString());
+        }
+    }
+
+    static VectorSegment open(Path path, long seq) throws IOException {
+        return new VectorSegment(path, seq);
+    }
+
+    /**
+     * マップの単位を指定して開く（境界をまたぐ読み取りを小さいファイルで確かめる用）。
+     */
+    static VectorSegment open(Path path, long seq, int chunkBytes) throws IOException {
+        return new VectorSegment(path, seq, chunkBytes);
+    }
+
+    /**
+     * 新しい行を書き出して開く（tail の書き出し用）。
+     */
+    static VectorSegment writeVectors(Path path, long seq, boolean int8, int dimension, String model,
+            List<StoredVector> rows, Collection<String> tombstones) throws IOException {
+        List<SegmentRow> sources = new ArrayList<>(rows.size());
+        for (StoredVector row : rows) {
+            sources.add(new NewRow(row));
+        }
+        return write(path, seq, int8, dimension, model, sources, tombstones);
+    }
+
+    /**
+     * 行を書き出して開く。行は roomId 順に並べ替えて保存する（同じルーム内は渡した順）。
+     * 一時ファイルに書いてからリネームするので、途中で止まっても既存のファイルは壊れない。
+     */
+    static VectorSegment write(Path path, long seq, boolean int8, int dimension, String model,
+            Collection<SegmentRow> rows, Collection<String> tombstones) throws IOException {
+        List<SegmentRow> sorted = new ArrayList<>(rows);
+        sorted.sort((a, b) -> a.roomId().compareTo(b.roomId()));
+
+        List<String> roomIds = new ArrayList<>();
+        List<int[]> roomRanges = new ArrayList<>();
+        for (int i = 0; i < sorted.size(); i++) {
+            String roomId = sorted.get(i).roomId();
+            if (roomIds.isEmpty() || !roomIds.get(roomIds.size() - 1).equals(roomId)) {
+                roomIds.add(roomId);
+                roomRanges.add(new int[] { i, 0 });
+            }
+            roomRanges.get(roomRanges.size() - 1)[1]++;
+        }
+
+        long stringBytes = 0;
+        for (SegmentRow row : sorted) {
+            stringBytes += row.stringBytes();
+        }
+        long roomBytes = Integer.BYTES;
+        for (String roomId : roomIds) {
+            roomBytes += stringBytes(bytes(roomId)) + Integer.BYTES * 2;
+        }
+
+        long vectorsOffset = HEADER_BYTES + stringBytes(bytes(model));
+        long metaOffset = vectorsOffset + (long) rowBytes(int8, dimension) * sorted.size();
+        long roomsOffset = metaOffset + (long) META_ROW_BYTES * sorted.size() + stringBytes;
+        long tombstonesOffset = roomsOffset + roomBytes;
+
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(tmp), 1 << 16))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(int8 ? 1 : 0);
+            out.writeInt(dimension);
+            out.writeInt(sorted.size());
+            out.writeInt(tombstones.size());
+            out.writeLong(vectorsOffset);
+            out.writeLong(metaOffset);
+            out.writeLong(roomsOffset);
+            out.writeLong(tombstonesOffset);
+            writeString(out, bytes(model));
+
+            for (SegmentRow row : sorted) {
+                row.writeVector(out, int8);
+            }
+
+            long stringPosition = metaOffset + (long) META_ROW_BYTES * sorted.size();
+            for (SegmentRow row : sorted) {
+                out.writeLong(row.time());
+                out.writeLong(stringPosition);
+                stringPosition += row.stringBytes();
+            }
+            for (SegmentRow row : sorted) {
+                row.writeStrings(out);
+            }
+
+            out.writeInt(roomIds.size());
+            for (int i = 0; i < roomIds.size(); i++) {
+                writeString(out, bytes(roomIds.get(i)));
+                out.writeInt(roomRanges.get(i)[0]);
+                out.writeInt(roomRanges.get(i)[1]);
+            }
+
+            out.writeInt(tombstones.size());
+            for (String docId : tombstones) {
+                writeString(out, bytes(docId));
+            }
+        }
+        try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+            channel.force(true);
+        }
+        Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        return open(path, seq);
+    }
+
+    Path path() {
+        return path;
+    }
+
+    long seq() {
+        return seq;
+    }
+
+    int rows() {
+        return rows;
+    }
+
+    /** ファイルの大きさ（バイト） */
+    long bytes() {
+        return mapped.size();
+    }
+
+    int dimension() {
+        return dimension;
+    }
+
+    String model() {
+        return model;
+    }
+
+    boolean isInt8() {
+        return int8;
+    }
+
+    List<String> tombstones() {
+        return tombstones;
+    }
+
+    /**
+     * room_id が prefix で始まるルームの行範囲を [先頭行, 件数] で返す。
+     */
+    List<int[]> roomRanges(String prefix) {
+        List<int[]> ranges = new ArrayList<>();
+        int i = lowerBound(prefix);
+        while (i < roomIds.length && roomIds[i].startsWith(prefix)) {
+            ranges.add(new int[] { roomStarts[i], roomCounts[i] });
+            i++;
+        }
+        return ranges;
+    }
+
+    String docId(int row) {
+        return mapped.reader(mapped.getLong(metaOffset + (long) META_ROW_BYTES * row + Long.BYTES)).readString();
+    }
+
+    StoredVector read(int row, boolean withPayload) {
+        long metaRow = metaOffset + (long) META_ROW_BYTES * row;
+        long time = mapped.getLong(metaRow);
+        MappedRegion.Reader strings = mapped.reader(mapped.getLong(metaRow + Long.BYTES));
+        String docId = strings.readString();
+        String roomId = strings.readString();
+        String sender = strings.readString();
+        String message = withPayload ? strings.readString() : null;
+        Date timestamp = time != Long.MIN_VALUE ? new Date(time) : null;
+
+        MappedRegion.Reader buffer = mapped.reader(vectorsOffset + (long) rowBytes * row);
+        if (int8) {
+            float scale = buffer.getFloat();
+            float offset = buffer.getFloat();
+            byte[] codes = new byte[dimension];
+            buffer.get(codes);
+            return new StoredVector(docId, roomId, message, sender, timestamp, null,
+                    new QuantizedVector(codes, scale, offset), model);
+        }
+        List<Double> embedding = new ArrayList<>(dimension);
+        for (int i = 0; i < dimension; i++) {
+            embedding.add((double) buffer.getFloat());
+        }
+        return new StoredVector(docId, roomId, message, sender, timestamp, embedding, null, model);
+    }
+
+    /**
+     * 既存の行を、復元せずにバイト列のまま別のセグメントへ写すための参照（compaction 用）。
+     */
+    SegmentRow copyOf(int row) {
+        return new CopiedRow(this, row);
+    }
+
+    private int lowerBound(String key) {
+        int lo = 0;
+        int hi = roomIds.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (roomIds[mid].compareTo(key) < 0) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    private static int rowBytes(boolean int8, int dimension) {
+        return int8 ? Float.BYTES * 2 + dimension : Float.BYTES * dimension;
+    }
+
+    private static byte[] bytes(String s) {
+        return s != null ? s.getBytes(StandardCharsets.UTF_8) : null;
+    }
+
+    private static long stringBytes(byte[] b) {
+        return Integer.BYTES + (b != null ? b.length : 0);
+    }
+
+    private static void writeString(DataOutputStream out, byte[] b) throws IOException {
+        if (b == null) {
+            out.writeInt(-1);
+        } else {
+            out.writeInt(b.length);
+            out.write(b);
+        }
+    }
+
+    static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] b = new byte[length];
+        buffer.get(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /** セグメントに書き出す1行 */
+    interface SegmentRow {
+
+        String roomId();
+
+        long time();
+
+        long stringBytes();
+
+        void writeStrings(DataOutputStream out) throws IOException;
+
+        void writeVector(DataOutputStream out, boolean int8) throws IOException;
+    }
+
+    private static final class NewRow implements SegmentRow {
+        private final StoredVector vector;
+        private final byte[][] strings;
+
+        NewRow(StoredVector vector) {
+            this.vector = vector;
+            this.strings = new byte[][] { bytes(vector.docId()), bytes(vector.roomId()), bytes(vector.sender()),
+                    bytes(vector.message()) };
+        }
+
+        @Override
+        public String roomId() {
+            return vector.roomId() != null ? vector.roomId() : "";
+        }
+
+        @Override
+        public long time() {
+            return vector.timestamp() != null ? vector.timestamp().getTime() : Long.MIN_VALUE;
+        }
+
+        @Override
+        public long stringBytes() {
+            long total = 0;
+            for (byte[] s : strings) {
+                total += VectorSegment.stringBytes(s);
+            }
+            return total;
+        }
+
+        @Override
+        public void writeStrings(DataOutputStream out) throws IOException {
+            for (byte[] s : strings) {
+                writeString(out, s);
+            }
+        }
+
+        @Override
+        public void writeVector(DataOutputStream out, boolean int8) throws IOException {
+            if (int8) {
+                QuantizedVector q = vector.quantized() != null
+                        ? vector.quantized()
+                        : QuantizedVector.quantize(vector.values());
+                out.writeFloat(q.scale());
+                out.writeFloat(q.offset());
+                out.write(q.codes());
+            } else {
+                for (float x : vector.values()) {
+                    out.writeFloat(x);
+                }
+            }
+        }
+    }
+
+    private static final class CopiedRow implements SegmentRow {
+        private final VectorSegment segment;
+        private final int row;
+        private final String roomId;
+        private final long stringsStart;
+        private final int stringsLength;
+
+        CopiedRow(VectorSegment segment, int row) {
+            this.segment = segment;
+            this.row = row;
+            long metaRow = segment.metaOffset + (long) META_ROW_BYTES * row;
+            this.stringsStart = segment.mapped.getLong(metaRow + Long.BYTES);
+            MappedRegion.Reader buffer = segment.mapped.reader(stringsStart);
+            buffer.readString();
+            String room = buffer.readString();
+            this.roomId = room != null ? room : "";
+            buffer.readString();
+            buffer.readString();
+            this.stringsLength = (int) (buffer.position() - stringsStart);
+        }
+
+        @Override
+        public String roomId() {
+            return roomId;
+        }
+
+        @Override
+        public long time() {
+            return segment.mapped.getLong(segment.metaOffset + (long) META_ROW_BYTES * row);
+        }
+
+        @Override
+        public long stringBytes() {
+            return stringsLength;
+        }
+
+        @Override
+        public void writeStrings(DataOutputStream out) throws IOException {
+            out.write(slice(stringsStart, stringsLength));
+        }
+
+        @Override
+        public void writeVector(DataOutputStream out, boolean int8) throws IOException {
+            // 形式が同じセグメント同士でだけ使う
+            out.write(slice(segment.vectorsOffset + (long) segment.rowBytes * row, segment.rowBytes));
+        }
+
+        private byte[] slice(long position, int length) {
+            byte[] b = new byte[length];
+            segment.mapped.get(position, b);
+            return b;
+        }
+    }
+}
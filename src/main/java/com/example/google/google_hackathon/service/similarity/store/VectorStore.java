@@ -0,0 +1,69 @@
+package com.example.google.google_hackathon.service.similarity.store;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+
+import com.example.google.google_hackathon.service.similarity.RoomVectorIndex;
+
+/**
+ * チャット埋め込みの保存先。similarity.vector-store で実装を切り替える
+ * （firestore: chat_embeddings / memory: プロセス内のみ / mmap: ローカルのセグメントファイル）。
+ * ルームは room_id のプレフィックスで指定する（Firestore の範囲検索と同じ意味）。
+ */
+public interface VectorStore {
+
+    /**
+     * 1件保存する。同じドキュメントIDがあれば置き換える。
+     *
+     * @return 保存したドキュメントのID
+     */
+    String upsert(StoredVector vector) throws Exception;
+
+    /**
+     * まとめて保存する（全件の埋め込み直し用）。既定は1件ずつ upsert する。
+     */
+    default void upsertAll(List<StoredVector> vectors) throws Exception {
+        for (StoredVector vector : vectors) {
+            upsert(vector);
+        }
+    }
+
+    void delete(String docId) throws Exception;
+
+    /**
+     * room_id が roomPrefix で始まる行をすべて渡す。
+     *
+     * @param withPayload false なら本文を読まない（二段階検索の前半。送信者と日時は絞り込みに使うので読む）
+     */
+    void scan(String roomPrefix, boolean withPayload, Consumer<StoredVector> consumer) throws Exception;
+
+    /**
+     * 指定したドキュメントの本文・送信者・日時を取得する（二段階検索の後半）。見つからないものは含まれない。
+     */
+    Map<String, StoredVector> fetch(Collection<String> docIds) throws Exception;
+
+    /**
+     * 類似度上位 topK 件を返す。常駐インデックスを使わずに、その場で読み込んで採点する。
+     */
+    default List<RoomVectorIndex.Hit> search(String roomPrefix, List<Double> query, int topK) throws Exception {
+        RoomVectorIndex index = new RoomVectorIndex(roomPrefix);
+        scan(roomPrefix, true, vector -> vector.addTo(index));
+        return index.search(query, topK);
+    }
+
+    /**
+     * すべて消去する（chat_messages から作り直す前に使う）。supportsClear が false の実装では呼ばない。
+     */
+    void clear() throws Exception;
+
+    /**
+     * clear で消去できるか。既定は true。
+     */
+    default boolean supportsClear() {
+        return true;
+    }
+
+    String name();
+}
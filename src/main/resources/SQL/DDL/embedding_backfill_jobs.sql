@@ -0,0 +1,17 @@
+CREATE TABLE public.embedding_backfill_jobs (
+    id BIGSERIAL PRIMARY KEY,                           -- 主キー
+    mode VARCHAR(16) NOT NULL,                          -- missing: 埋め込みの無いメッセージだけ / all: すべて埋め込み直す
+    status VARCHAR(16) NOT NULL DEFAULT 'RUNNING',      -- RUNNING / PAUSED / DONE / FAILED
+    last_message_id BIGINT NOT NULL DEFAULT 0,          -- ここまで処理した chat_messages.id（再開はこの次から）
+    max_message_id BIGINT NOT NULL DEFAULT 0,           -- 開始時点の chat_messages.id の最大値（以降の分は通常の索引付けが処理する）
+    processed BIGINT NOT NULL DEFAULT 0,                -- 読んだメッセージ数
+    embedded BIGINT NOT NULL DEFAULT 0,                 -- 埋め込んで保存した数
+    skipped BIGINT NOT NULL DEFAULT 0,                  -- 埋め込み済み・本文なし・相づちや重複で飛ばした数
+    failed BIGINT NOT NULL DEFAULT 0,                   -- 埋め込みに失敗した数（embedding_outbox に回して再試行する）
+    last_error TEXT,                                    -- 直近の失敗内容
+    started_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    finished_at TIMESTAMP
+);
+
+CREATE INDEX idx_embedding_backfill_jobs_status ON public.embedding_backfill_jobs (status, id);
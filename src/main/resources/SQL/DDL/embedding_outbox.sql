@@ -0,0 +1,13 @@
+CREATE TABLE public.embedding_outbox (
+    id BIGSERIAL PRIMARY KEY,                           -- 主キー
+    chat_message_id BIGINT NOT NULL,                    -- 索引付け対象の chat_messages.id
+    status VARCHAR(16) NOT NULL DEFAULT 'PENDING',      -- PENDING / DONE / FAILED
+    attempts INT NOT NULL DEFAULT 0,                    -- 失敗した回数
+    next_attempt_at TIMESTAMP NOT NULL,                 -- この時刻以降にリレーが処理する
+    last_error TEXT,                                    -- 直近の失敗内容
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP,
+    updated_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE INDEX idx_embedding_outbox_due ON public.embedding_outbox (status, next_attempt_at);
+CREATE INDEX idx_embedding_outbox_chat_message_id ON public.embedding_outbox (chat_message_id);
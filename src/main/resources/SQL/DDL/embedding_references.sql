@@ -0,0 +1,9 @@
+CREATE TABLE public.embedding_references (
+    chat_message_id BIGINT PRIMARY KEY,                 -- 埋め込みを作らなかった chat_messages.id
+    duplicate_of BIGINT NOT NULL,                       -- 代わりに参照する（埋め込み済みの）chat_messages.id
+    room_id VARCHAR(255),                               -- ルームID
+    distance INT NOT NULL,                              -- SimHash のハミング距離（0 なら本文がほぼ同一）
+    created_at TIMESTAMP NOT NULL DEFAULT CURRENT_TIMESTAMP
+);
+
+CREATE INDEX idx_embedding_references_duplicate_of ON public.embedding_references (duplicate_of);
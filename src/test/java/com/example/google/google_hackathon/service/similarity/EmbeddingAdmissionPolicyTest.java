@@ -0,0 +1,167 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.google.google_hackathon.entity.ChatMessageEntity;
+import com.example.google.google_hackathon.entity.EmbeddingReferenceEntity;
+import com.example.google.google_hackathon.repository.EmbeddingReferenceRepository;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * 正規化と SimHash の距離、相づちの判定、保存済みのメッセージだけを参照先にする重複判定を確かめる。
+ */
+class EmbeddingAdmissionPolicyTest {
+
+	private static final String MEETING = "明日の定例ミーティングは会議室Bで15時から開始します。資料は共有フォルダに置いてあります";
+	private static final String RELEASE = "来週のリリース手順について確認したいことがあります。ステージング環境のデプロイは誰が担当ですか";
+
+	// メッセージID → 保存した参照
+	private final Map<Long, EmbeddingReferenceEntity> references = new LinkedHashMap<>();
+	private EmbeddingAdmissionPolicy policy;
+
+	@BeforeEach
+	void setUp() {
+		policy = new EmbeddingAdmissionPolicy(repository(), new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(policy, "enabled", true);
+		ReflectionTestUtils.setField(policy, "minLength", 3);
+		ReflectionTestUtils.setField(policy, "minDistinctChars", 2);
+		ReflectionTestUtils.setField(policy, "trivialPhrases", "了解,ありがとうございます");
+		ReflectionTestUtils.setField(policy, "dedupEnabled", true);
+		ReflectionTestUtils.setField(policy, "maxDistance", 3);
+		ReflectionTestUtils.setField(policy, "windowPerRoom", 500);
+		ReflectionTestUtils.setField(policy, "maxRooms", 10000);
+	}
+
+	@Test
+	void normalizeIgnoresWidthCaseAndSymbols() {
+		assertEquals("abc123テスト", EmbeddingAdmissionPolicy.normalize("ＡＢＣ　１２３！ ﾃｽﾄ😀"));
+		assertEquals("", EmbeddingAdmissionPolicy.normalize(null));
+	}
+
+	@Test
+	void simHashDistanceFollowsTextSimilarity() {
+		long meeting = fingerprint(MEETING);
+		// 記号・空白・全角半角の違いだけなら同じ指紋
+		assertEquals(meeting,
+				fingerprint("明日の定例ミーティングは、会議室Ｂで１５時から開始します！ 資料は共有フォルダに置いてあります。"));
+		// 1文字違いは近く、無関係な文は遠い
+		int edited = Long.bitCount(meeting ^ fingerprint(MEETING.replace('B', 'C')));
+		int unrelated = Long.bitCount(meeting ^ fingerprint(RELEASE));
+		assertTrue(edited > 0 && edited <= 8, "edited: " + edited);
+		assertTrue(unrelated >= 16, "unrelated: " + unrelated);
+	}
+
+	@Test
+	void shortAndRepetitiveMessagesAreTrivial() {
+		assertEquals(EmbeddingAdmissionPolicy.Result.TRIVIAL, policy.evaluate(message(1, "2", "ok")).result());
+		assertEquals(EmbeddingAdmissionPolicy.Result.TRIVIAL, policy.evaluate(message(2, "2", "wwwwww")).result());
+		assertEquals(EmbeddingAdmissionPolicy.Result.TRIVIAL, policy.evaluate(message(3, "2", "了解！")).result());
+		assertEquals(EmbeddingAdmissionPolicy.Result.TRIVIAL,
+				policy.evaluate(message(4, "2", "ありがとうございます。")).result());
+		assertTrue(policy.evaluate(message(5, "2", "了解です、対応します")).admitted());
+	}
+
+	@Test
+	void onlyStoredMessagesBecomeDuplicateTargets() {
+		ChatMessageEntity first = message(1, "2", MEETING);
+		assertTrue(policy.evaluate(first).admitted());
+		// 埋め込みを保存する前は参照先にしない
+		assertTrue(policy.evaluate(message(2, "2", MEETING + "！")).admitted());
+
+		policy.recordIndexed(first);
+		EmbeddingAdmissionPolicy.Decision decision = policy.evaluate(message(3, "2", MEETING + "！"));
+		assertEquals(EmbeddingAdmissionPolicy.Result.DUPLICATE, decision.result());
+		assertEquals(Long.valueOf(1L), decision.duplicateOf());
+		assertEquals(Long.valueOf(1L), references.get(3L).getDuplicateOf());
+		assertEquals(Set.of(3L), policy.referencedIds(List.of(1L, 2L, 3L)));
+
+		// 別のルーム・無関係な本文・再試行された自分自身は重複にしない
+		assertTrue(policy.evaluate(message(4, "3", MEETING)).admitted());
+		assertTrue(policy.evaluate(message(5, "2", RELEASE)).admitted());
+		assertTrue(policy.evaluate(first).admitted());
+	}
+
+	@Test
+	void forgettingAMessageReturnsItsOrphans() {
+		ChatMessageEntity first = message(1, "2", MEETING);
+		policy.recordIndexed(first);
+		policy.evaluate(message(2, "2", MEETING));
+		policy.evaluate(message(3, "2", MEETING + "。"));
+
+		assertEquals(List.of(2L, 3L), policy.forget(first));
+		assertTrue(references.isEmpty());
+		// 指紋も捨てたので、同じ本文はもう重複にならない
+		assertTrue(policy.evaluate(message(4, "2", MEETING)).admitted());
+	}
+
+	private static long fingerprint(String text) {
+		return EmbeddingAdmissionPolicy.simHash(EmbeddingAdmissionPolicy.normalize(text));
+	}
+
+	private static ChatMessageEntity message(long id, String roomId, String text) {
+		ChatMessageEntity message = new ChatMessageEntity();
+		message.setId(id);
+		message.setRoomId(roomId);
+		message.setText(text);
+		return message;
+	}
+
+	/**
+	 * EmbeddingAdmissionPolicy が使うメソッドだけを、references に対して実装したリポジトリ。
+	 */
+	@SuppressWarnings("unchecked")
+	private EmbeddingReferenceRepository repository() {
+		return (EmbeddingReferenceRepository) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { EmbeddingReferenceRepository.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "save": {
+						EmbeddingReferenceEntity reference = (EmbeddingReferenceEntity) args[0];
+						references.put(reference.getChatMessageId(), reference);
+						return reference;
+					}
+					case "existsById":
+						return references.containsKey(args[0]);
+					case "deleteById":
+						references.remove(args[0]);
+						return null;
+					case "deleteAll":
+						for (EmbeddingReferenceEntity reference : (Iterable<EmbeddingReferenceEntity>) args[0]) {
+							references.remove(reference.getChatMessageId());
+						}
+						return null;
+					case "findByDuplicateOf":
+						return references.values().stream()
+								.filter(reference -> reference.getDuplicateOf().equals(args[0]))
+								.collect(Collectors.toList());
+					case "findAllById": {
+						List<EmbeddingReferenceEntity> found = new ArrayList<>();
+						for (Long id : (Collection<Long>) args[0]) {
+							if (references.containsKey(id)) {
+								found.add(references.get(id));
+							}
+						}
+						return found;
+					}
+					case "toString":
+						return "EmbeddingReferenceRepository(in-memory)";
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+}
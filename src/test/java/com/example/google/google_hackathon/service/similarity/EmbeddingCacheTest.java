@@ -0,0 +1,116 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.file.Path;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * テキストの正規化によるキーの共有と、メモリ・ディスクそれぞれの上限付き LRU を確かめる。
+ */
+class EmbeddingCacheTest {
+
+	private static final String MODEL = "model-a";
+	// 1エントリ（3次元）のメモリ上の重みとディスク上のファイルの大きさ
+	private static final long ENTRY_WEIGHT = 200 + 3 * Float.BYTES;
+	private static final long FILE_BYTES = Integer.BYTES + 3 * Float.BYTES;
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void normalizedTextsShareTheKeyButModelsDoNot() {
+		assertEquals(EmbeddingCache.keyOf(MODEL, "ＡＢＣ　１２３"), EmbeddingCache.keyOf(MODEL, "  ABC \n 123 "));
+		assertNotEquals(EmbeddingCache.keyOf(MODEL, "abc"), EmbeddingCache.keyOf("model-b", "abc"));
+		assertNotEquals(EmbeddingCache.keyOf(MODEL, "abc"), EmbeddingCache.keyOf(MODEL, "ABC"));
+
+		EmbeddingCache cache = memoryOnly(new SimpleMeterRegistry(), 1 << 20, 100);
+		cache.put(MODEL, "ＡＢＣ　１２３", vector(1));
+		assertEquals(vector(1), cache.get(MODEL, "ABC 123"));
+		assertNull(cache.get("model-b", "ABC 123"));
+	}
+
+	@Test
+	void memoryTierEvictsLeastRecentlyUsed() {
+		MeterRegistry registry = new SimpleMeterRegistry();
+		EmbeddingCache cache = memoryOnly(registry, 1 << 20, 2);
+		cache.put(MODEL, "a", vector(1));
+		cache.put(MODEL, "b", vector(2));
+		// a を使ったので、次に追い出されるのは b
+		assertNotNull(cache.get(MODEL, "a"));
+		cache.put(MODEL, "c", vector(3));
+
+		assertEquals(2, cache.size());
+		assertNull(cache.get(MODEL, "b"));
+		assertEquals(vector(1), cache.get(MODEL, "a"));
+		assertEquals(vector(3), cache.get(MODEL, "c"));
+		assertEquals(1.0, registry.counter("embedding.cache.evictions").count(), 0.0);
+		assertEquals(3.0, registry.counter("embedding.cache.requests", "result", "hit", "tier", "memory").count(), 0.0);
+		assertEquals(1.0, registry.counter("embedding.cache.requests", "result", "miss", "tier", "none").count(), 0.0);
+	}
+
+	@Test
+	void memoryTierRespectsByteCap() {
+		EmbeddingCache cache = memoryOnly(new SimpleMeterRegistry(), ENTRY_WEIGHT * 2, 100);
+		cache.put(MODEL, "a", vector(1));
+		cache.put(MODEL, "b", vector(2));
+		cache.put(MODEL, "c", vector(3));
+
+		assertEquals(2, cache.size());
+		assertEquals(ENTRY_WEIGHT * 2, cache.weightBytes());
+		assertNull(cache.get(MODEL, "a"));
+	}
+
+	@Test
+	void diskTierSurvivesRestart() {
+		EmbeddingCache first = new EmbeddingCache(new SimpleMeterRegistry(), 1 << 20, 100, dir.toString(), 1 << 20);
+		first.put(MODEL, "a", vector(1));
+		first.put(MODEL, "b", vector(2));
+
+		MeterRegistry registry = new SimpleMeterRegistry();
+		EmbeddingCache restarted = new EmbeddingCache(registry, 1 << 20, 100, dir.toString(), 1 << 20);
+		assertEquals(FILE_BYTES * 2, restarted.diskBytes());
+		assertEquals(0, restarted.size());
+		assertEquals(vector(2), restarted.get(MODEL, "b"));
+		// ディスクから読んだものはメモリにも載る
+		assertEquals(vector(2), restarted.get(MODEL, "b"));
+		assertEquals(1.0, registry.counter("embedding.cache.requests", "result", "hit", "tier", "disk").count(), 0.0);
+		assertEquals(1.0, registry.counter("embedding.cache.requests", "result", "hit", "tier", "memory").count(), 0.0);
+	}
+
+	@Test
+	void diskTierEvictsLeastRecentlyUsedFiles() {
+		MeterRegistry registry = new SimpleMeterRegistry();
+		// メモリには1件しか載らないので、読み直しはディスクから
+		EmbeddingCache cache = new EmbeddingCache(registry, 1 << 20, 1, dir.toString(), FILE_BYTES * 2);
+		cache.put(MODEL, "a", vector(1));
+		cache.put(MODEL, "b", vector(2));
+		assertEquals(vector(1), cache.get(MODEL, "a"));
+		cache.put(MODEL, "c", vector(3));
+
+		assertEquals(FILE_BYTES * 2, cache.diskBytes());
+		assertEquals(1.0, registry.counter("embedding.cache.disk.evictions").count(), 0.0);
+		EmbeddingCache restarted = new EmbeddingCache(new SimpleMeterRegistry(), 1 << 20, 100, dir.toString(),
+				FILE_BYTES * 2);
+		assertNull(restarted.get(MODEL, "b"));
+		assertEquals(vector(1), restarted.get(MODEL, "a"));
+		assertEquals(vector(3), restarted.get(MODEL, "c"));
+	}
+
+	private static EmbeddingCache memoryOnly(MeterRegistry registry, long maxBytes, int maxEntries) {
+		return new EmbeddingCache(registry, maxBytes, maxEntries, "", 0);
+	}
+
+	private static List<Double> vector(int seed) {
+		return List.of(seed * 0.5, -seed * 0.25, 1.0);
+	}
+}
@@ -0,0 +1,188 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.Proxy;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import com.example.google.google_hackathon.entity.EmbeddingOutboxEntity;
+import com.example.google.google_hackathon.repository.EmbeddingOutboxRepository;
+
+/**
+ * outbox 行の猶予・リース・指数バックオフ・上限回数での FAILED を、メモリ上の行で確かめる。
+ */
+class EmbeddingOutboxServiceTest {
+
+	private static final long GRACE_MS = 60_000L;
+	private static final long LEASE_MS = 300_000L;
+	private static final long BACKOFF_BASE_MS = 1_000L;
+	private static final long BACKOFF_MAX_MS = 5_000L;
+
+	private final List<EmbeddingOutboxEntity> rows = new ArrayList<>();
+	private EmbeddingOutboxService service;
+
+	@BeforeEach
+	void setUp() {
+		service = new EmbeddingOutboxService(repository());
+		ReflectionTestUtils.setField(service, "graceMillis", GRACE_MS);
+		ReflectionTestUtils.setField(service, "leaseMillis", LEASE_MS);
+		ReflectionTestUtils.setField(service, "maxAttempts", 3);
+		ReflectionTestUtils.setField(service, "backoffBaseMillis", BACKOFF_BASE_MS);
+		ReflectionTestUtils.setField(service, "backoffMaxMillis", BACKOFF_MAX_MS);
+	}
+
+	@Test
+	void enqueuedRowsWaitForTheGracePeriod() {
+		service.enqueue(1L);
+
+		assertEquals(1, service.countByStatus(EmbeddingOutboxEntity.STATUS_PENDING));
+		// コミット直後は非同期の索引付けに任せるので、リレーはまだ拾わない
+		assertTrue(service.claimDue(10).isEmpty());
+		assertTrue(rows.get(0).getNextAttemptAt().isAfter(LocalDateTime.now().plusSeconds(59)));
+	}
+
+	@Test
+	void claimedRowsAreLeasedAndDeduplicated() {
+		service.enqueue(1L);
+		service.enqueue(1L);
+		service.enqueue(2L);
+		makeDue();
+
+		assertEquals(List.of(1L, 2L), service.claimDue(10));
+		// リース中は他のリレーから見えない
+		assertTrue(service.claimDue(10).isEmpty());
+		for (EmbeddingOutboxEntity row : rows) {
+			assertTrue(row.getNextAttemptAt().isAfter(LocalDateTime.now().plusSeconds(299)));
+		}
+	}
+
+	@Test
+	void claimRespectsTheLimit() {
+		for (long id = 1; id <= 5; id++) {
+			service.enqueue(id);
+		}
+		makeDue();
+
+		assertEquals(List.of(1L, 2L), service.claimDue(2));
+		assertEquals(List.of(3L, 4L, 5L), service.claimDue(10));
+	}
+
+	@Test
+	void failuresBackOffExponentiallyThenGiveUp() {
+		service.enqueue(1L);
+		EmbeddingOutboxEntity row = rows.get(0);
+
+		LocalDateTime before = LocalDateTime.now();
+		service.recordFailure(1L, new IllegalStateException("first"));
+		assertEquals(1, row.getAttempts());
+		assertEquals("first", row.getLastError());
+		assertBackoff(before, row.getNextAttemptAt(), BACKOFF_BASE_MS);
+
+		before = LocalDateTime.now();
+		service.recordFailure(1L, new IllegalStateException("second"));
+		assertEquals(EmbeddingOutboxEntity.STATUS_PENDING, row.getStatus());
+		assertBackoff(before, row.getNextAttemptAt(), BACKOFF_BASE_MS * 2);
+
+		service.recordFailure(1L, new IllegalStateException("third"));
+		assertEquals(3, row.getAttempts());
+		assertEquals(EmbeddingOutboxEntity.STATUS_FAILED, row.getStatus());
+		makeDue();
+		assertTrue(service.claimDue(10).isEmpty());
+		assertEquals(1, service.countByStatus(EmbeddingOutboxEntity.STATUS_FAILED));
+	}
+
+	@Test
+	void backoffIsCapped() {
+		ReflectionTestUtils.setField(service, "maxAttempts", 100);
+		service.enqueue(1L);
+		for (int i = 0; i < 10; i++) {
+			service.recordFailure(1L, new IllegalStateException("again"));
+		}
+		LocalDateTime before = LocalDateTime.now();
+		service.recordFailure(1L, new IllegalStateException("again"));
+		assertBackoff(before, rows.get(0).getNextAttemptAt(), BACKOFF_MAX_MS);
+	}
+
+	@Test
+	void markDoneClosesOnlyPendingRows() {
+		service.enqueue(1L);
+		service.enqueue(2L);
+		ReflectionTestUtils.setField(service, "maxAttempts", 1);
+		service.recordFailure(2L, new IllegalStateException("gone"));
+
+		service.markDone(1L);
+		service.markDone(2L);
+
+		assertEquals(EmbeddingOutboxEntity.STATUS_DONE, rows.get(0).getStatus());
+		assertEquals(EmbeddingOutboxEntity.STATUS_FAILED, rows.get(1).getStatus());
+		assertEquals(0, service.countByStatus(EmbeddingOutboxEntity.STATUS_PENDING));
+	}
+
+	// 待ち時間は backoff 以上、backoff + base（ずらし幅）以下
+	private static void assertBackoff(LocalDateTime before, LocalDateTime next, long backoffMillis) {
+		assertTrue(!next.isBefore(before.plusNanos(backoffMillis * 1_000_000)), next + " < " + backoffMillis);
+		assertTrue(!next.isAfter(LocalDateTime.now().plusNanos((backoffMillis + BACKOFF_BASE_MS) * 1_000_000)),
+				next + " > " + backoffMillis);
+	}
+
+	private void makeDue() {
+		for (EmbeddingOutboxEntity row : rows) {
+			row.setNextAttemptAt(LocalDateTime.now().minusSeconds(1));
+		}
+	}
+
+	/**
+	 * EmbeddingOutboxService が使うクエリだけを、rows に対して実装したリポジトリ。
+	 */
+	private EmbeddingOutboxRepository repository() {
+		return (EmbeddingOutboxRepository) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[] { EmbeddingOutboxRepository.class }, (proxy, method, args) -> {
+					switch (method.getName()) {
+					case "save": {
+						EmbeddingOutboxEntity row = (EmbeddingOutboxEntity) args[0];
+						row.setId((long) rows.size() + 1);
+						rows.add(row);
+						return row;
+					}
+					case "lockDue": {
+						LocalDateTime now = (LocalDateTime) args[0];
+						return rows.stream()
+								.filter(row -> EmbeddingOutboxEntity.STATUS_PENDING.equals(row.getStatus()))
+								.filter(row -> !row.getNextAttemptAt().isAfter(now))
+								.limit((Integer) args[1])
+								.collect(Collectors.toList());
+					}
+					case "findByChatMessageIdAndStatus":
+						return rows.stream()
+								.filter(row -> row.getChatMessageId().equals(args[0]) && row.getStatus().equals(args[1]))
+								.collect(Collectors.toList());
+					case "markDone": {
+						int updated = 0;
+						for (EmbeddingOutboxEntity row : rows) {
+							if (row.getChatMessageId().equals(args[0])
+									&& EmbeddingOutboxEntity.STATUS_PENDING.equals(row.getStatus())) {
+								row.setStatus(EmbeddingOutboxEntity.STATUS_DONE);
+								row.setUpdatedAt((LocalDateTime) args[1]);
+								updated++;
+							}
+						}
+						return updated;
+					}
+					case "countByStatus":
+						return rows.stream().filter(row -> row.getStatus().equals(args[0])).count();
+					case "toString":
+						return "EmbeddingOutboxRepository(in-memory)";
+					default:
+						throw new UnsupportedOperationException(method.getName());
+					}
+				});
+	}
+}
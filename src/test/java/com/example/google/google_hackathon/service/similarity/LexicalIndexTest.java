@@ -0,0 +1,97 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 文字 n-gram の切り出しと、BM25 の採点・完全一致の判定・絞り込みを確かめる。
+ */
+class LexicalIndexTest {
+
+	@Test
+	void gramsAreBigramsAndTrigramsPerToken() {
+		assertEquals(List.of("東京", "京タ", "タワ", "ワー", "東京タ", "京タワ", "タワー"), LexicalIndex.grams("東京タワー"));
+		// NFKC 正規化・小文字化し、記号で区切る。1文字だけの並びはその1文字
+		assertEquals(List.of("ab", "bc", "abc", "x"), LexicalIndex.grams("ＡＢＣ、x"));
+		assertTrue(LexicalIndex.grams(null).isEmpty());
+	}
+
+	@Test
+	void rareTermsAndShortDocumentsScoreHigher() {
+		LexicalIndex index = new LexicalIndex("1");
+		index.add("1", "明日の会議は延期です", "a", new Date(0L));
+		index.add("2", "会議室の予約をお願いします。明日の午後、会議室Aが空いていれば助かります", "b", new Date(0L));
+		index.add("3", "デプロイ手順をまとめました", "c", new Date(0L));
+
+		LexicalIndex.Result result = index.search("会議", 10);
+		// 短い本文の方が長さの正規化で上になる。「会議」を含まない本文は出ない
+		assertEquals(List.of("1", "2"), docIds(result.hits()));
+		assertTrue(result.hits().get(0).similarity() > result.hits().get(1).similarity());
+
+		// 1件にしか無い n-gram（デプロイ）の方が idf が高い
+		LexicalIndex.Result rare = index.search("デプロイ 会議", 10);
+		assertEquals("3", rare.hits().get(0).docId());
+	}
+
+	@Test
+	void fullMatchRequiresEveryQueryGramInTopHit() {
+		LexicalIndex index = new LexicalIndex("1");
+		index.add("1", "リリースノートを更新しました", "a", new Date(0L));
+		index.add("2", "ノートPCの貸し出し", "b", new Date(0L));
+
+		assertTrue(index.search("リリースノート", 10).fullMatch());
+		assertFalse(index.search("リリース予定", 10).fullMatch());
+	}
+
+	@Test
+	void removedRowsAndFilteredRowsAreExcluded() {
+		LexicalIndex index = new LexicalIndex("2");
+		index.add("1", "2-1", "障害の報告です", "alice", new Date(1_000L));
+		index.add("2", "2-2", "障害の続報です", "bob", new Date(2_000L));
+		index.add("3", "2-1", "障害は解消しました", "alice", new Date(3_000L));
+		index.remove("3");
+
+		assertEquals(List.of("1", "2"), sorted(docIds(index.search("障害", 10).hits())));
+		assertEquals(List.of("2"), docIds(index.search("障害", 10, 1_500L).hits()));
+		SearchFilter filter = new SearchFilter(Set.of("alice"), null, null, "2-1");
+		assertEquals(List.of("1"), docIds(index.search("障害", 10, Long.MIN_VALUE, filter).hits()));
+	}
+
+	@Test
+	void estimatedBytesGrowWithRowsAndTerms() {
+		LexicalIndex index = new LexicalIndex("1");
+		long empty = index.estimatedBytes();
+		index.add("1", "明日の会議は延期です", "a", new Date(0L));
+		long one = index.estimatedBytes();
+		assertTrue(one > empty);
+		// 同じ語だけの行は語の表を増やさないので、新しい語を含む行より増え方が小さい
+		index.add("2", "明日の会議は延期です", "a", new Date(0L));
+		long same = index.estimatedBytes() - one;
+		index.add("3", "リリースノートを更新しました", "a", new Date(0L));
+		long different = index.estimatedBytes() - one - same;
+		assertTrue(same > 0);
+		assertTrue(different > same);
+	}
+
+	private static List<String> docIds(List<RoomVectorIndex.Hit> hits) {
+		List<String> docIds = new ArrayList<>();
+		for (RoomVectorIndex.Hit hit : hits) {
+			docIds.add(hit.docId());
+		}
+		return docIds;
+	}
+
+	private static List<String> sorted(List<String> values) {
+		List<String> copy = new ArrayList<>(values);
+		copy.sort(null);
+		return copy;
+	}
+}
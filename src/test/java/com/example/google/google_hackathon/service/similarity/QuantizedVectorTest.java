@@ -0,0 +1,96 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * int8 量子化の誤差が、1段階（scale）の半分とコサイン類似度の許容範囲に収まることを確かめる。
+ */
+class QuantizedVectorTest {
+
+	@Test
+	void elementErrorIsWithinHalfAStep() {
+		float[] vector = randomVector(new Random(1), 768);
+		QuantizedVector quantized = QuantizedVector.quantize(vector);
+		float[] restored = quantized.dequantize();
+
+		assertEquals(vector.length, restored.length);
+		for (int i = 0; i < vector.length; i++) {
+			// 丸めの誤差に float の計算誤差を少し足す
+			assertEquals(vector[i], restored[i], quantized.scale() / 2 + 1e-6);
+		}
+	}
+
+	@Test
+	void cosineSimilarityIsPreserved() {
+		Random random = new Random(2);
+		for (int n = 0; n < 20; n++) {
+			float[] a = randomVector(random, 768);
+			float[] b = randomVector(random, 768);
+			float[] qa = QuantizedVector.quantize(a).dequantize();
+			float[] qb = QuantizedVector.quantize(b).dequantize();
+
+			assertTrue(cosine(a, qa) > 0.999, "自分自身とのコサイン類似度");
+			assertEquals(cosine(a, b), cosine(qa, qb), 0.01);
+		}
+	}
+
+	@Test
+	void bytesRoundTrip() {
+		QuantizedVector quantized = QuantizedVector.quantize(randomVector(new Random(3), 64));
+		QuantizedVector decoded = QuantizedVector.fromBytes(quantized.toBytes());
+
+		assertEquals(quantized.scale(), decoded.scale(), 0.0);
+		assertEquals(quantized.offset(), decoded.offset(), 0.0);
+		float[] expected = quantized.dequantize();
+		float[] actual = decoded.dequantize();
+		for (int i = 0; i < expected.length; i++) {
+			assertEquals(expected[i], actual[i], 0.0);
+		}
+	}
+
+	@Test
+	void storesOneBytePerElementAndKeepsTheRange() {
+		float[] vector = { -1.5f, 0.25f, 2.0f, 0.0f };
+		QuantizedVector quantized = QuantizedVector.quantize(vector);
+
+		// [scale][offset] の 8 バイト + 要素ごとに 1 バイト
+		assertEquals(8 + vector.length, quantized.toBytes().length);
+		// 最小値と最大値は両端の段階にそのまま載る
+		float[] restored = quantized.dequantize();
+		assertEquals(-1.5f, restored[0], 1e-6);
+		assertEquals(2.0f, restored[2], 1e-6);
+	}
+
+	@Test
+	void constantVectorDoesNotDivideByZero() {
+		float[] restored = QuantizedVector.quantize(new float[] { 0.5f, 0.5f, 0.5f }).dequantize();
+		for (float value : restored) {
+			assertEquals(0.5f, value, 1e-6);
+		}
+	}
+
+	private static float[] randomVector(Random random, int dimension) {
+		float[] vector = new float[dimension];
+		for (int i = 0; i < dimension; i++) {
+			vector[i] = (float) random.nextGaussian();
+		}
+		return vector;
+	}
+
+	private static double cosine(float[] a, float[] b) {
+		double dot = 0.0;
+		double normA = 0.0;
+		double normB = 0.0;
+		for (int i = 0; i < a.length; i++) {
+			dot += a[i] * b[i];
+			normA += a[i] * a[i];
+			normB += b[i] * b[i];
+		}
+		return dot / Math.sqrt(normA * normB);
+	}
+}
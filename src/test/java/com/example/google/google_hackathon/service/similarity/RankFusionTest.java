@@ -0,0 +1,60 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * RRF でのまとめ方と、自動採番IDの古い埋め込みをメッセージIDに揃える処理を確かめる。
+ */
+class RankFusionTest {
+
+	@Test
+	void hitsInBothListsRankFirst() {
+		List<RoomVectorIndex.Hit> vector = List.of(hit("1", 0.9), hit("2", 0.8), hit("3", 0.7));
+		List<RoomVectorIndex.Hit> lexical = List.of(hit("3", 12.0), hit("4", 6.0));
+
+		RankFusion.Fused fused = RankFusion.fuseRanked(vector, lexical, 60, 10);
+		// 2 と 4 は同じ順位（2位）なので同点。先に入っていたベクトル側が上になる
+		assertEquals(List.of("3", "1", "2", "4"), docIds(fused.hits()));
+		// 両方にあるものはベクトル側の類似度のまま、n-gram 側だけのものは1位で割った BM25
+		assertEquals(0.7, fused.hits().get(0).similarity(), 1e-9);
+		assertEquals(0.5, fused.hits().get(3).similarity(), 1e-9);
+		assertEquals(1.0, fused.relevance()[0], 1e-9);
+		for (int i = 1; i < fused.relevance().length; i++) {
+			assertTrue(fused.relevance()[i] <= fused.relevance()[i - 1]);
+		}
+	}
+
+	@Test
+	void legacyVectorHitsMergeWithMessageIds() {
+		Date sentAt = new Date(1_700_000_000_123L);
+		RoomVectorIndex.Hit legacy = new RoomVectorIndex.Hit("Xb3kq9autoId", null, "alice", sentAt, 0.9);
+		RoomVectorIndex.Hit current = new RoomVectorIndex.Hit("42", null, "alice", sentAt, 0.8);
+		RoomVectorIndex.Hit lexical = new RoomVectorIndex.Hit("42", "本文", "alice", sentAt, 3.0);
+
+		List<RoomVectorIndex.Hit> fused = RankFusion.fuse(List.of(legacy, current, hit("7", 0.5)), List.of(lexical),
+				60, 10);
+		assertEquals(List.of("42", "7"), docIds(fused));
+		// 本文は n-gram 側から、類似度は順位の高い方（古い埋め込み）のベクトル側から
+		assertEquals("本文", fused.get(0).message());
+		assertEquals(0.9, fused.get(0).similarity(), 1e-9);
+	}
+
+	private static RoomVectorIndex.Hit hit(String docId, double similarity) {
+		return new RoomVectorIndex.Hit(docId, "m" + docId, "s" + docId, new Date(Long.parseLong(docId)), similarity);
+	}
+
+	private static List<String> docIds(List<RoomVectorIndex.Hit> hits) {
+		List<String> docIds = new ArrayList<>();
+		for (RoomVectorIndex.Hit hit : hits) {
+			docIds.add(hit.docId());
+		}
+		return docIds;
+	}
+}
@@ -0,0 +1,87 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * HNSW モードの近似検索が、全件検索の上位 K 件をどれだけ拾えるか（recall@K）を確かめる。
+ */
+class RoomVectorIndexHnswTest {
+
+	private static final int DIMENSION = 32;
+	private static final int ROWS = 2000;
+	private static final int QUERIES = 50;
+	private static final int TOP_K = 10;
+
+	@Test
+	void hnswRecallAgainstExactSearch() {
+		Random random = new Random(42);
+		RoomVectorIndex exact = new RoomVectorIndex("1", HnswSettings.disabled(), RoomVectorIndex.Storage.FLOAT32,
+				new ScalarKernel());
+		RoomVectorIndex hnsw = new RoomVectorIndex("1", new HnswSettings(true, 16, 200, 64, 0),
+				RoomVectorIndex.Storage.FLOAT32, new ScalarKernel());
+		for (int i = 0; i < ROWS; i++) {
+			List<Double> vector = randomVector(random);
+			exact.add("d" + i, "m" + i, "s", new Date(0L), vector);
+			hnsw.add("d" + i, "m" + i, "s", new Date(0L), vector);
+		}
+
+		int found = 0;
+		for (int q = 0; q < QUERIES; q++) {
+			List<Double> query = randomVector(random);
+			Set<String> expected = docIds(exact.search(query, TOP_K));
+			for (String docId : docIds(hnsw.search(query, TOP_K))) {
+				if (expected.contains(docId)) {
+					found++;
+				}
+			}
+		}
+		double recall = (double) found / (QUERIES * TOP_K);
+		assertTrue(recall >= 0.9, "recall@" + TOP_K + " = " + recall);
+	}
+
+	@Test
+	void hnswSkipsRemovedRows() {
+		Random random = new Random(7);
+		RoomVectorIndex hnsw = new RoomVectorIndex("1", new HnswSettings(true, 16, 200, 64, 0),
+				RoomVectorIndex.Storage.FLOAT32, new ScalarKernel());
+		List<List<Double>> vectors = new ArrayList<>();
+		for (int i = 0; i < 500; i++) {
+			vectors.add(randomVector(random));
+			hnsw.add("d" + i, "m" + i, "s", new Date(0L), vectors.get(i));
+		}
+		// グラフを作らせてから削除する
+		assertEquals("d3", hnsw.search(vectors.get(3), 1).get(0).docId());
+		hnsw.remove("d3");
+
+		List<RoomVectorIndex.Hit> hits = hnsw.search(vectors.get(3), TOP_K);
+		assertEquals(TOP_K, hits.size());
+		assertFalse(docIds(hits).contains("d3"));
+	}
+
+	private static List<Double> randomVector(Random random) {
+		List<Double> vector = new ArrayList<>(DIMENSION);
+		for (int i = 0; i < DIMENSION; i++) {
+			vector.add(random.nextGaussian());
+		}
+		return vector;
+	}
+
+	private static Set<String> docIds(List<RoomVectorIndex.Hit> hits) {
+		Set<String> docIds = new HashSet<>();
+		for (RoomVectorIndex.Hit hit : hits) {
+			docIds.add(hit.docId());
+		}
+		return docIds;
+	}
+}
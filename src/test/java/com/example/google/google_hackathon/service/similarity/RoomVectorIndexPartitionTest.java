@@ -0,0 +1,98 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 月ごとの区分を新しい順に採点して途中で打ち切る recent 検索が、全件検索と同じ上位 K 件を返すことを確かめる。
+ */
+class RoomVectorIndexPartitionTest {
+
+	private static final int DIMENSION = 24;
+	private static final int TOP_K = 10;
+	private static final long DAY = 24L * 60 * 60 * 1000;
+
+	@Test
+	void earlyStoppingMatchesFullSearch() {
+		for (RoomVectorIndex.Storage storage : RoomVectorIndex.Storage.values()) {
+			Random random = new Random(11);
+			RoomVectorIndex index = newIndex(random, storage);
+			for (int q = 0; q < 30; q++) {
+				List<Double> query = randomVector(random);
+				assertEquals(docIds(index.search(query, TOP_K, SearchWindow.full())),
+						docIds(index.search(query, TOP_K, SearchWindow.recent(0))), storage + " query " + q);
+			}
+		}
+	}
+
+	@Test
+	void lookbackMatchesFullSearchOverTheSameRange() {
+		Random random = new Random(12);
+		RoomVectorIndex index = newIndex(random, RoomVectorIndex.Storage.FLOAT32);
+		SearchWindow window = SearchWindow.recent(3);
+		long minTimestamp = window.minTimestamp(System.currentTimeMillis());
+		SearchFilter range = new SearchFilter(Set.of(), minTimestamp, null, null);
+		for (int q = 0; q < 30; q++) {
+			List<Double> query = randomVector(random);
+			List<RoomVectorIndex.Hit> hits = index.search(query, TOP_K, window);
+			assertEquals(docIds(index.search(query, TOP_K, SearchWindow.full(), range)), docIds(hits));
+			for (RoomVectorIndex.Hit hit : hits) {
+				// 日時の無い行も遡る月数の指定があれば対象外
+				assertTrue(hit.timestamp() != null && hit.timestamp().getTime() >= minTimestamp);
+			}
+		}
+	}
+
+	@Test
+	void rowsWithoutTimestampAreSearchedWithoutLookback() {
+		RoomVectorIndex index = new RoomVectorIndex("1");
+		List<Double> target = randomVector(new Random(13));
+		index.add("old", "m", "s", null, target);
+		index.add("new", "m", "s", new Date(), randomVector(new Random(14)));
+
+		assertEquals("old", index.search(target, 1, SearchWindow.recent(0)).get(0).docId());
+		assertFalse(docIds(index.search(target, 2, SearchWindow.recent(1))).contains("old"));
+	}
+
+	// 24か月分の行（月ごとに件数を変え、日時の無い行も混ぜる）
+	private static RoomVectorIndex newIndex(Random random, RoomVectorIndex.Storage storage) {
+		RoomVectorIndex index = new RoomVectorIndex("1", HnswSettings.disabled(), storage, new ScalarKernel());
+		long now = System.currentTimeMillis();
+		int row = 0;
+		for (int month = 0; month < 24; month++) {
+			for (int i = 0; i < 20 + month * 5; i++) {
+				Date timestamp = new Date(now - month * 30L * DAY - random.nextInt(28) * DAY);
+				index.add("d" + row++, "m", "s", timestamp, randomVector(random));
+			}
+		}
+		for (int i = 0; i < 20; i++) {
+			index.add("d" + row++, "m", "s", null, randomVector(random));
+		}
+		return index;
+	}
+
+	private static List<Double> randomVector(Random random) {
+		List<Double> vector = new ArrayList<>(DIMENSION);
+		for (int i = 0; i < DIMENSION; i++) {
+			vector.add(random.nextGaussian());
+		}
+		return vector;
+	}
+
+	private static List<String> docIds(List<RoomVectorIndex.Hit> hits) {
+		List<String> docIds = new ArrayList<>();
+		for (RoomVectorIndex.Hit hit : hits) {
+			docIds.add(hit.docId());
+		}
+		return docIds;
+	}
+}
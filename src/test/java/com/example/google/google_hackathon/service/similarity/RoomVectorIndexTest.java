@@ -0,0 +1,164 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * 常駐インデックスの全件検索が素朴なコサイン類似度の計算と同じ順位・値を返すことと、
+ * 追加・削除・compact の振る舞いを確かめる。
+ */
+class RoomVectorIndexTest {
+
+	private static final int DIMENSION = 32;
+	private static final int ROWS = 300;
+	private static final int TOP_K = 10;
+
+	@Test
+	void exactSearchMatchesBruteForce() {
+		for (RoomVectorIndex.Storage storage : RoomVectorIndex.Storage.values()) {
+			Random random = new Random(21);
+			RoomVectorIndex index = newIndex(storage);
+			List<List<Double>> vectors = new ArrayList<>();
+			for (int i = 0; i < ROWS; i++) {
+				List<Double> vector = randomVector(random);
+				vectors.add(vector);
+				index.add("d" + i, "message " + i, "sender", new Date(), vector);
+			}
+			// int8 は量子化の誤差の分だけ類似度がずれる
+			double tolerance = storage == RoomVectorIndex.Storage.INT8 ? 0.02 : 1e-5;
+
+			for (int q = 0; q < 20; q++) {
+				List<Double> query = randomVector(random);
+				List<RoomVectorIndex.Hit> hits = index.search(query, TOP_K);
+				assertEquals(TOP_K, hits.size());
+				for (int i = 0; i < hits.size(); i++) {
+					RoomVectorIndex.Hit hit = hits.get(i);
+					int row = Integer.parseInt(hit.docId().substring(1));
+					assertEquals(cosine(query, vectors.get(row)), hit.similarity(), tolerance, storage + " " + hit);
+					assertEquals("message " + row, hit.message());
+					if (i > 0) {
+						assertTrue(hits.get(i - 1).similarity() >= hit.similarity());
+					}
+				}
+				if (storage == RoomVectorIndex.Storage.FLOAT32) {
+					assertEquals(bruteForce(vectors, query), docIds(hits));
+				}
+			}
+		}
+	}
+
+	@Test
+	void duplicateDocIdsAndOtherDimensionsAreIgnored() {
+		RoomVectorIndex index = newIndex(RoomVectorIndex.Storage.FLOAT32);
+		Random random = new Random(22);
+
+		assertTrue(index.add("a", "m", "s", null, randomVector(random)));
+		assertEquals(DIMENSION, index.dimension());
+		// ロード中の追記と重なっても二重にならない
+		assertFalse(index.add("a", "m", "s", null, randomVector(random)));
+		// 次元の違うベクトルは取り込まない
+		assertFalse(index.add("b", "m", "s", null, List.of(1.0, 0.0)));
+		assertFalse(index.add("c", "m", "s", null, List.of()));
+		assertEquals(1, index.size());
+
+		assertThrows(IllegalArgumentException.class, () -> index.search(List.of(1.0, 0.0), TOP_K));
+	}
+
+	@Test
+	void removedRowsDisappearAndCompactKeepsResults() {
+		Random random = new Random(23);
+		RoomVectorIndex index = newIndex(RoomVectorIndex.Storage.FLOAT32);
+		List<List<Double>> vectors = new ArrayList<>();
+		for (int i = 0; i < 50; i++) {
+			List<Double> vector = randomVector(random);
+			vectors.add(vector);
+			index.add("d" + i, "2-" + (i % 3), "message " + i, "s" + (i % 5), new Date(), vector);
+		}
+		List<Double> query = vectors.get(7);
+		assertEquals("d7", index.search(query, 1).get(0).docId());
+		assertEquals("2-1", index.roomOf("d7"));
+
+		assertTrue(index.remove("d7"));
+		assertFalse(index.remove("d7"));
+		assertNull(index.roomOf("d7"));
+		List<String> beforeCompact = docIds(index.search(query, TOP_K));
+		assertFalse(beforeCompact.contains("d7"));
+		assertEquals(1.0 / 50, index.removedRatio(), 1e-9);
+
+		assertEquals(1, index.compact());
+		assertEquals(49, index.size());
+		assertEquals(0.0, index.removedRatio(), 0.0);
+		assertEquals(beforeCompact, docIds(index.search(query, TOP_K)));
+		// 絞り込み用のビットマップも詰め直されている
+		assertEquals("2-2", index.roomOf("d8"));
+		SearchFilter bySender = new SearchFilter(Set.of("s2"), null, null, null);
+		for (RoomVectorIndex.Hit hit : index.search(query, 50, SearchWindow.full(), bySender)) {
+			assertEquals("s2", hit.sender());
+		}
+	}
+
+	@Test
+	void emptyIndexReturnsNothing() {
+		RoomVectorIndex index = newIndex(RoomVectorIndex.Storage.FLOAT32);
+		assertTrue(index.search(randomVector(new Random(24)), TOP_K).isEmpty());
+		assertTrue(index.search(null, TOP_K).isEmpty());
+	}
+
+	private static RoomVectorIndex newIndex(RoomVectorIndex.Storage storage) {
+		return new RoomVectorIndex("2", HnswSettings.disabled(), storage, new ScalarKernel());
+	}
+
+	private static List<String> bruteForce(List<List<Double>> vectors, List<Double> query) {
+		List<Map.Entry<String, Double>> scored = new ArrayList<>();
+		for (int i = 0; i < vectors.size(); i++) {
+			scored.add(Map.entry("d" + i, cosine(query, vectors.get(i))));
+		}
+		scored.sort(Map.Entry.<String, Double>comparingByValue(Comparator.reverseOrder()));
+		List<String> ids = new ArrayList<>();
+		for (int i = 0; i < TOP_K; i++) {
+			ids.add(scored.get(i).getKey());
+		}
+		return ids;
+	}
+
+	private static double cosine(List<Double> a, List<Double> b) {
+		double dot = 0.0;
+		double normA = 0.0;
+		double normB = 0.0;
+		for (int i = 0; i < a.size(); i++) {
+			dot += a.get(i) * b.get(i);
+			normA += a.get(i) * a.get(i);
+			normB += b.get(i) * b.get(i);
+		}
+		return dot / Math.sqrt(normA * normB);
+	}
+
+	private static List<String> docIds(List<RoomVectorIndex.Hit> hits) {
+		List<String> ids = new ArrayList<>();
+		for (RoomVectorIndex.Hit hit : hits) {
+			ids.add(hit.docId());
+		}
+		return ids;
+	}
+
+	private static List<Double> randomVector(Random random) {
+		List<Double> vector = new ArrayList<>(DIMENSION);
+		for (int i = 0; i < DIMENSION; i++) {
+			vector.add(random.nextGaussian());
+		}
+		return vector;
+	}
+}
@@ -0,0 +1,137 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.BitSet;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * RowBitmap の and / or / toArray が java.util.BitSet と同じ結果になることを、
+ * 配列とビットマップの境目（4096 件）の前後と、上位16ビットが違う複数のコンテナで確かめる。
+ */
+class RowBitmapTest {
+
+	// コンテナ（上位16ビット）ごとの件数。4096 以下は配列、それより多いとビットマップ
+	private static final int[] CARDINALITIES = { 0, 1, 100, 4095, 4096, 4097, 20000 };
+
+	@Test
+	void toArrayMatchesBitSetAcrossThreshold() {
+		Random random = new Random(1);
+		for (int cardinality : CARDINALITIES) {
+			BitSet expected = new BitSet();
+			RowBitmap bitmap = new RowBitmap();
+			fill(random, expected, bitmap, 0, cardinality, false);
+
+			assertMatches(expected, bitmap);
+		}
+	}
+
+	@Test
+	void addOutOfOrderKeepsRowsSorted() {
+		Random random = new Random(2);
+		BitSet expected = new BitSet();
+		RowBitmap bitmap = new RowBitmap();
+		// コンテナもコンテナの中も順不同に、重複も含めて追加する
+		for (int key : new int[] { 3, 0, 2 }) {
+			fill(random, expected, bitmap, key, 5000, true);
+		}
+
+		assertMatches(expected, bitmap);
+	}
+
+	@Test
+	void andAndOrMatchBitSet() {
+		Random random = new Random(3);
+		for (int a : CARDINALITIES) {
+			for (int b : CARDINALITIES) {
+				BitSet expectedA = new BitSet();
+				BitSet expectedB = new BitSet();
+				RowBitmap bitmapA = new RowBitmap();
+				RowBitmap bitmapB = new RowBitmap();
+				// 片方にしか無いコンテナ（0 と 2）と、両方にあるコンテナ（1）を作る
+				fill(random, expectedA, bitmapA, 0, a, false);
+				fill(random, expectedA, bitmapA, 1, a, false);
+				fill(random, expectedB, bitmapB, 1, b, false);
+				fill(random, expectedB, bitmapB, 2, b, false);
+
+				BitSet and = (BitSet) expectedA.clone();
+				and.and(expectedB);
+				BitSet or = (BitSet) expectedA.clone();
+				or.or(expectedB);
+
+				assertMatches(and, RowBitmap.and(bitmapA, bitmapB));
+				assertMatches(and, RowBitmap.and(bitmapB, bitmapA));
+				assertMatches(or, RowBitmap.or(bitmapA, bitmapB));
+				assertMatches(or, RowBitmap.or(bitmapB, bitmapA));
+			}
+		}
+	}
+
+	@Test
+	void andOfDenseContainersCanDropBackToArray() {
+		// どちらもビットマップだが、重なりは 4096 件以下
+		BitSet expectedA = new BitSet();
+		BitSet expectedB = new BitSet();
+		RowBitmap bitmapA = new RowBitmap();
+		RowBitmap bitmapB = new RowBitmap();
+		for (int row = 0; row < 20000; row++) {
+			if (row % 2 == 0) {
+				expectedA.set(row);
+				bitmapA.add(row);
+			}
+			if (row % 7 == 0) {
+				expectedB.set(row);
+				bitmapB.add(row);
+			}
+		}
+		BitSet and = (BitSet) expectedA.clone();
+		and.and(expectedB);
+
+		RowBitmap result = RowBitmap.and(bitmapA, bitmapB);
+		assertMatches(and, result);
+		// 結果を続けて組み合わせても同じ
+		assertMatches(and, RowBitmap.and(result, bitmapA));
+		assertMatches(expectedA, RowBitmap.or(result, bitmapA));
+	}
+
+	@Test
+	void disjointContainersGiveEmptyAnd() {
+		RowBitmap a = new RowBitmap();
+		RowBitmap b = new RowBitmap();
+		a.add(1);
+		b.add(1 << 16 | 1);
+
+		assertTrue(RowBitmap.and(a, b).isEmpty());
+		assertEquals(2, RowBitmap.or(a, b).cardinality());
+	}
+
+	/**
+	 * 上位16ビットが key のコンテナに、違う行を cardinality 件入れる。
+	 */
+	private static void fill(Random random, BitSet expected, RowBitmap bitmap, int key, int cardinality,
+			boolean withDuplicates) {
+		BitSet low = new BitSet(1 << 16);
+		while (low.cardinality() < cardinality) {
+			int row = key << 16 | random.nextInt(1 << 16);
+			low.set(row & 0xffff);
+			expected.set(row);
+			bitmap.add(row);
+			if (withDuplicates && random.nextInt(4) == 0) {
+				bitmap.add(row);
+			}
+		}
+	}
+
+	private static void assertMatches(BitSet expected, RowBitmap actual) {
+		assertArrayEquals(expected.stream().toArray(), actual.toArray());
+		assertEquals(expected.cardinality(), actual.cardinality());
+		assertEquals(expected.isEmpty(), actual.isEmpty());
+		for (int row = expected.nextSetBit(0); row >= 0; row = expected.nextSetBit(row + 1)) {
+			assertTrue(actual.contains(row));
+		}
+	}
+}
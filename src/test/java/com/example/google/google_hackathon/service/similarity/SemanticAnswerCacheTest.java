@@ -0,0 +1,106 @@
+package com.example.google.google_hackathon.service.similarity;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.List;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * 似た質問へのヒットと、ルームのバージョンによる無効化（回答を作っている間に変わったら保存しない）を確かめる。
+ */
+class SemanticAnswerCacheTest {
+
+	private static final List<Double> QUESTION = List.of(1.0, 0.0, 0.0);
+	// QUESTION とのコサイン類似度は約 0.995
+	private static final List<Double> SIMILAR = List.of(1.0, 0.1, 0.0);
+	// QUESTION とのコサイン類似度は約 0.707
+	private static final List<Double> DIFFERENT = List.of(1.0, 1.0, 0.0);
+
+	private SemanticAnswerCache cache;
+
+	@BeforeEach
+	void setUp() {
+		cache = new SemanticAnswerCache(new SimpleMeterRegistry());
+		ReflectionTestUtils.setField(cache, "enabled", true);
+		ReflectionTestUtils.setField(cache, "threshold", 0.95);
+		ReflectionTestUtils.setField(cache, "maxEntriesPerRoom", 2);
+		ReflectionTestUtils.setField(cache, "ttlMillis", 600_000L);
+		ReflectionTestUtils.setField(cache, "maxRooms", 1000);
+	}
+
+	@Test
+	void similarQuestionInTheSameWindowHits() {
+		put("2", cache.roomVersion("2"), QUESTION, "answer");
+
+		SemanticAnswerCache.CachedAnswer hit = cache.lookup("2", SearchWindow.full(), SIMILAR);
+		assertNotNull(hit);
+		assertEquals("answer", hit.answer());
+		assertEquals(0.995, hit.similarity(), 0.001);
+		assertNull(cache.lookup("2", SearchWindow.full(), DIFFERENT));
+		assertNull(cache.lookup("2", SearchWindow.recent(3), QUESTION));
+		assertNull(cache.lookup("3", SearchWindow.full(), QUESTION));
+	}
+
+	@Test
+	void invalidationDropsEntriesOfTheRoomAndItsPrefixes() {
+		put("2", cache.roomVersion("2"), QUESTION, "parent");
+		put("2-1", cache.roomVersion("2-1"), QUESTION, "child");
+		put("3", cache.roomVersion("3"), QUESTION, "other");
+
+		// 2-1 のメッセージは、プレフィックスとして 2 を引く質問の対象でもある
+		cache.invalidateRoom("2-1");
+
+		assertNull(cache.lookup("2", SearchWindow.full(), QUESTION));
+		assertNull(cache.lookup("2-1", SearchWindow.full(), QUESTION));
+		assertEquals("other", cache.lookup("3", SearchWindow.full(), QUESTION).answer());
+	}
+
+	@Test
+	void answersBuiltBeforeAnInvalidationAreNotStored() {
+		long version = cache.roomVersion("2");
+		// 回答を作っている間にメッセージが増えた
+		cache.invalidateRoom("2");
+		put("2", version, QUESTION, "stale");
+		assertNull(cache.lookup("2", SearchWindow.full(), QUESTION));
+
+		put("2", cache.roomVersion("2"), QUESTION, "fresh");
+		assertEquals("fresh", cache.lookup("2", SearchWindow.full(), QUESTION).answer());
+	}
+
+	@Test
+	void recreatedRoomDoesNotReuseAnOldVersion() {
+		long version = cache.roomVersion("2");
+		// ルームのエントリが捨てられてから invalidate され、put で作り直された
+		cache.clear();
+		cache.invalidateRoom("2");
+		put("2", version, QUESTION, "stale");
+
+		assertNull(cache.lookup("2", SearchWindow.full(), QUESTION));
+	}
+
+	@Test
+	void oldestEntriesAndExpiredEntriesAreDropped() {
+		long version = cache.roomVersion("2");
+		put("2", version, List.of(1.0, 0.0, 0.0), "a");
+		put("2", version, List.of(0.0, 1.0, 0.0), "b");
+		put("2", version, List.of(0.0, 0.0, 1.0), "c");
+
+		// ルームごとの上限は 2 件なので、最初の回答は捨てられている
+		assertNull(cache.lookup("2", SearchWindow.full(), List.of(1.0, 0.0, 0.0)));
+		assertEquals("c", cache.lookup("2", SearchWindow.full(), List.of(0.0, 0.0, 1.0)).answer());
+
+		ReflectionTestUtils.setField(cache, "ttlMillis", -1L);
+		assertNull(cache.lookup("2", SearchWindow.full(), List.of(0.0, 0.0, 1.0)));
+	}
+
+	private void put(String roomKey, long version, List<Double> question, String answer) {
+		cache.put(roomKey, version, SearchWindow.full(), question, answer, List.of());
+	}
+}
@@ -0,0 +1,250 @@
+package com.example.google.google_hackathon.service.similarity.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * セグメントの書き出し・まとめ（compaction）と、書き出す前に落ちたときの tail ログからの復元を確かめる。
+ */
+class MappedFileVectorStoreTest {
+
+	// 定期的な書き出しはテスト中に走らせない
+	private static final long NO_FLUSH = 3_600_000L;
+
+	@TempDir
+	Path dir;
+
+	@Test
+	void recoversUnflushedWritesFromTailLog() throws Exception {
+		MappedFileVectorStore crashed = new MappedFileVectorStore(dir, false, NO_FLUSH, 1000, 8, 2.0, true);
+		crashed.upsert(vector("1", "2-1", 0.1f));
+		crashed.upsert(vector("2", "2-1", 0.2f));
+		crashed.upsert(vector("3", "2-2", 0.3f));
+		crashed.upsert(vector("1", "2-1", 0.4f));
+		crashed.delete("2");
+		// 書き出す前に落ちた時点のファイルを別のディレクトリに写してから閉じ、写した方で開き直す
+		Path crashDir = Files.createDirectory(dir.resolve("crash"));
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, Files::isRegularFile)) {
+			for (Path file : stream) {
+				Files.copy(file, crashDir.resolve(file.getFileName()));
+			}
+		}
+		crashed.close();
+		assertEquals(0, segmentFiles(crashDir).size());
+
+		MappedFileVectorStore recovered = new MappedFileVectorStore(crashDir, false, NO_FLUSH, 1000, 8, 2.0, true);
+		try {
+			Map<String, StoredVector> rows = scan(recovered, "2");
+			assertEquals(2, rows.size());
+			assertFalse(rows.containsKey("2"));
+			assertEquals(0.4f, rows.get("1").values()[0], 0.0);
+			assertEquals("2-2", rows.get("3").roomId());
+		} finally {
+			recovered.close();
+		}
+	}
+
+	@Test
+	void compactionKeepsOnlyLatestRows() throws Exception {
+		MappedFileVectorStore store = new MappedFileVectorStore(dir, false, NO_FLUSH, 1000, 2, 2.0, true);
+		store.upsert(vector("1", "2-1", 0.1f));
+		store.upsert(vector("2", "2-1", 0.2f));
+		store.flush();
+		store.upsert(vector("1", "2-1", 0.5f));
+		store.upsert(vector("3", "3", 0.3f));
+		store.flush();
+		store.delete("2");
+		store.flush();
+		assertEquals(3, segmentFiles().size());
+
+		store.compact();
+		assertEquals(1, segmentFiles().size());
+		assertEquals(0.5f, scan(store, "2").get("1").values()[0], 0.0);
+		store.close();
+
+		// まとめたセグメントだけで開き直せる
+		MappedFileVectorStore reopened = new MappedFileVectorStore(dir, false, NO_FLUSH, 1000, 2, 2.0, true);
+		try {
+			Map<String, StoredVector> rows = scan(reopened, "");
+			assertEquals(2, rows.size());
+			assertEquals(0.5f, rows.get("1").values()[0], 0.0);
+			assertNotNull(rows.get("3"));
+			assertFalse(rows.containsKey("2"));
+			assertEquals("message-1", reopened.fetch(List.of("1")).get("1").message());
+		} finally {
+			reopened.close();
+		}
+	}
+
+	@Test
+	void compactsEachModelSeparately() throws Exception {
+		MappedFileVectorStore store = new MappedFileVectorStore(dir, false, NO_FLUSH, 1000, 2, 2.0, true);
+		try {
+			store.upsert(vector("1", "2", 0.1f, "old"));
+			store.upsert(vector("2", "2", 0.2f, "old"));
+			store.flush();
+			// 再埋め込みの途中: 新しいモデルの行が増えていく
+			store.upsert(vector("1", "2", 0.3f, "new"));
+			store.flush();
+			store.upsert(vector("3", "2", 0.4f, "new"));
+			store.flush();
+
+			// 古いモデルの行（"2"）が残っていても、新しいモデルの組だけでまとめる
+			store.compact();
+			assertEquals(2, segmentFiles().size());
+			Map<String, StoredVector> rows = scan(store, "2");
+			assertEquals("new", rows.get("1").model());
+			assertEquals("old", rows.get("2").model());
+			assertEquals("new", rows.get("3").model());
+
+			// 古いモデルの行がすべて上書きされたら、そのセグメントも一緒に消える
+			store.upsert(vector("2", "2", 0.5f, "new"));
+			store.flush();
+			store.compact();
+			assertEquals(1, segmentFiles().size());
+			rows = scan(store, "2");
+			assertEquals(3, rows.size());
+			assertEquals(0.5f, rows.get("2").values()[0], 0.0);
+			assertTrue(rows.values().stream().allMatch(vector -> "new".equals(vector.model())));
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	void compactionLeavesLargeBaseSegmentAlone() throws Exception {
+		List<StoredVector> base = new ArrayList<>();
+		for (int i = 1; i <= 40; i++) {
+			base.add(vector(String.valueOf(i), "2", i / 100f));
+		}
+		Path basePath = dir.resolve("segment-000000000001.seg");
+		VectorSegment.writeVectors(basePath, 1, false, 16, "model", base, List.of());
+		long baseModified = Files.getLastModifiedTime(basePath).toMillis();
+
+		MappedFileVectorStore store = new MappedFileVectorStore(dir, false, NO_FLUSH, 4, 2, 2.0, true);
+		try {
+			store.upsert(vector("41", "2", 0.41f));
+			store.flush();
+			store.upsert(vector("1", "2", 0.5f));
+			store.flush();
+			assertEquals(3, segmentFiles().size());
+
+			// 小さい2つだけをまとめ、土台は書き直さない
+			store.compact();
+			assertEquals(2, segmentFiles().size());
+			assertTrue(Files.exists(basePath));
+			assertEquals(baseModified, Files.getLastModifiedTime(basePath).toMillis());
+			Map<String, StoredVector> rows = scan(store, "2");
+			assertEquals(41, rows.size());
+			assertEquals(0.5f, rows.get("1").values()[0], 0.0);
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	void int8SegmentsStayCloseToOriginal() throws Exception {
+		MappedFileVectorStore store = new MappedFileVectorStore(dir, true, NO_FLUSH, 1000, 8, 2.0, true);
+		try {
+			StoredVector original = vector("1", "2", 0.25f);
+			store.upsert(original);
+			store.flush();
+			float[] expected = original.values();
+			float[] actual = scan(store, "2").get("1").values();
+			assertEquals(expected.length, actual.length);
+			double dot = 0.0;
+			double normA = 0.0;
+			double normB = 0.0;
+			for (int i = 0; i < expected.length; i++) {
+				dot += expected[i] * actual[i];
+				normA += expected[i] * expected[i];
+				normB += actual[i] * actual[i];
+			}
+			assertTrue(dot / Math.sqrt(normA * normB) > 0.999);
+		} finally {
+			store.close();
+		}
+	}
+
+	@Test
+	void segmentReadsAcrossChunkBoundaries() throws Exception {
+		List<StoredVector> vectors = new ArrayList<>();
+		for (int i = 1; i <= 20; i++) {
+			vectors.add(vector(String.valueOf(i), "2-" + (i % 3), i / 100f));
+		}
+		Path whole = dir.resolve("whole.seg");
+		VectorSegment.writeVectors(whole, 1, false, 16, "model", vectors, List.of("99"));
+		VectorSegment expected = VectorSegment.open(whole, 1);
+		// 値や文字列がマップの境界をまたぐように、半端な大きさで分けて開く
+		VectorSegment chunked = VectorSegment.open(whole, 1, 7);
+		assertEquals(expected.rows(), chunked.rows());
+		assertEquals(List.of("99"), chunked.tombstones());
+		for (int row = 0; row < expected.rows(); row++) {
+			StoredVector a = expected.read(row, true);
+			StoredVector b = chunked.read(row, true);
+			assertEquals(a.docId(), chunked.docId(row));
+			assertEquals(a.roomId(), b.roomId());
+			assertEquals(a.message(), b.message());
+			assertEquals(a.timestamp(), b.timestamp());
+			assertEquals(a.embedding(), b.embedding());
+		}
+
+		// 分けてマップした側からコピーしても同じ中身になる
+		List<VectorSegment.SegmentRow> copies = new ArrayList<>();
+		for (int row = 0; row < chunked.rows(); row++) {
+			copies.add(chunked.copyOf(row));
+		}
+		VectorSegment copied = VectorSegment.write(dir.resolve("copied.seg"), 2, false, 16, "model", copies, List.of());
+		for (int row = 0; row < expected.rows(); row++) {
+			assertEquals(expected.read(row, true).embedding(), copied.read(row, true).embedding());
+			assertEquals(expected.docId(row), copied.docId(row));
+		}
+	}
+
+	private static StoredVector vector(String docId, String roomId, float first) {
+		return vector(docId, roomId, first, "model");
+	}
+
+	private static StoredVector vector(String docId, String roomId, float first, String model) {
+		List<Double> embedding = new ArrayList<>();
+		embedding.add((double) first);
+		for (int i = 1; i < 16; i++) {
+			embedding.add(Math.sin(i + Double.parseDouble(docId)));
+		}
+		return new StoredVector(docId, roomId, "message-" + docId, "sender", new Date(1_700_000_000_000L), embedding,
+				null, model);
+	}
+
+	private static Map<String, StoredVector> scan(MappedFileVectorStore store, String roomPrefix) {
+		Map<String, StoredVector> rows = new HashMap<>();
+		store.scan(roomPrefix, true, vector -> rows.put(vector.docId(), vector));
+		return rows;
+	}
+
+	private List<Path> segmentFiles() throws IOException {
+		return segmentFiles(dir);
+	}
+
+	private static List<Path> segmentFiles(Path dir) throws IOException {
+		List<Path> files = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(dir, "segment-*.seg")) {
+			stream.forEach(files::add);
+		}
+		return files;
+	}
+}